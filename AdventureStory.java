@@ -1,5 +1,11 @@
 // Title: AdventureStory
-// Files: AdventureStory.java, TestAdventureStory.java
+// Files: AdventureStory.java, BatchPlayer.java, BookmarkResume.java, BookmarkStore.java,
+//        Config.java, FrameCache.java, InputReader.java, LazyDescriptions.java, Metrics.java,
+//        Renderer.java, RoomIndex.java, Session.java, SessionConfig.java, SessionJournal.java,
+//        SessionScheduler.java, StoryAnalyzer.java, StoryBenchmark.java, StoryCache.java,
+//        StoryCompiler.java, StoryDeduplicator.java, StoryGenerator.java, StoryGraph.java,
+//        StoryHandle.java, StoryParser.java, StorySimulator.java, StoryValidator.java,
+//        TestAdventureStory.java
 //
 // Author: Jules Vigy
 // Email: jules.vigy@aol.com
@@ -10,6 +16,7 @@ import java.util.Random;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.FileInputStream;
 
@@ -19,6 +26,17 @@ public class AdventureStory {
         DEFAULT, ROOMS, TRANS
     }
 
+    /**
+     * Output buffer of the print and display methods, one per thread.
+     */
+    private static final ThreadLocal<Renderer> RENDERER = ThreadLocal.withInitial(Renderer::new);
+
+    /**
+     * Room frames laid out by displayFrame, shared by all the threads and stories. The stories
+     * themselves are only held weakly, see FrameCache.
+     */
+    static final FrameCache FRAMES = new FrameCache(FrameCache.DEFAULT_FRAMES);
+
     /**
      * Prompts the user for a value by displaying prompt. Note: This method should not add a new
      * line to the output of prompt.
@@ -34,14 +52,29 @@ public class AdventureStory {
      * @return Returns the value read from the user.
      */
     public static int promptInt(Scanner sc, String prompt, int min, int max) {
+        return promptInt(sc, System.out, prompt, min, max);
+    }
+
+    /**
+     * Prompts for an int value the same as promptInt(Scanner, String, int, int), but writes the
+     * prompt and errors to out instead of System.out.
+     *
+     * @param sc     The Scanner instance to read from.
+     * @param out    The stream to write to.
+     * @param prompt The name of the value for which the user is prompted.
+     * @param min    The minimum acceptable int value (inclusive).
+     * @param max    The maximum acceptable int value (inclusive).
+     * @return Returns the value read from the user.
+     */
+    public static int promptInt(Scanner sc, PrintStream out, String prompt, int min, int max) {
         int userInt; // int used to store user input
         while (true) {
             // prompts user for int and checks that input is an int.
-            System.out.print(prompt);
+            out.print(prompt);
             if (sc.hasNextInt()) {
                 userInt = sc.nextInt();
             } else { // discards line when input is not an int.
-                System.out.println("Invalid value.");
+                out.println("Invalid value.");
                 sc.nextLine();
                 continue;
             }
@@ -49,7 +82,7 @@ public class AdventureStory {
                 sc.nextLine();
                 return userInt;
             } else {
-                System.out.println("Invalid value.");
+                out.println("Invalid value.");
                 continue;
             }
         }
@@ -68,9 +101,23 @@ public class AdventureStory {
      *         there are no non-whitespace characters read, the null character is returned.
      */
     public static char promptChar(Scanner sc, String prompt) {
+        return promptChar(sc, System.out, prompt);
+    }
+
+    /**
+     * Prompts for a char value the same as promptChar(Scanner, String), but writes the prompt to
+     * out instead of System.out.
+     *
+     * @param sc The Scanner instance to read from.
+     * @param out The stream to write to.
+     * @param prompt The user prompt.
+     * @return Returns the first non-whitespace character (in lower case) read from the user. If 
+     *         there are no non-whitespace characters read, the null character is returned.
+     */
+    public static char promptChar(Scanner sc, PrintStream out, String prompt) {
         char userCharForReturn;
         String userString;
-        System.out.print(prompt);
+        out.print(prompt);
         // checks to see if there is something worth while to read
         if (sc.hasNextLine() && !(userString = sc.nextLine().trim()).equals("")) {
             userString = userString.trim(); // user line is read and trimmed
@@ -94,8 +141,21 @@ public class AdventureStory {
      * @return Returns the string entered by the user with leading and trailing whitespace removed.
      */
     public static String promptString(Scanner sc, String prompt) {
+        return promptString(sc, System.out, prompt);
+    }
+
+    /**
+     * Prompts for a string value the same as promptString(Scanner, String), but writes the prompt
+     * to out instead of System.out.
+     *
+     * @param sc The Scanner instance to read from.
+     * @param out The stream to write to.
+     * @param prompt The user prompt.
+     * @return Returns the string entered by the user with leading and trailing whitespace removed.
+     */
+    public static String promptString(Scanner sc, PrintStream out, String prompt) {
         String userString;
-        System.out.print(prompt); // prompts user to enter something
+        out.print(prompt); // prompts user to enter something
         if (sc.hasNextLine()) {
             userString = sc.nextLine();
             userString = userString.trim(); // what user enters is read and trimmed
@@ -105,6 +165,108 @@ public class AdventureStory {
         }
     }
 
+    /**
+     * Prompts for an int value the same as promptInt(Scanner, String, int, int), but reads from
+     * an InputReader.
+     *
+     * @param in     The InputReader instance to read from System.in.
+     * @param prompt The name of the value for which the user is prompted.
+     * @param min    The minimum acceptable int value (inclusive).
+     * @param max    The maximum acceptable int value (inclusive).
+     * @return Returns the value read from the user.
+     */
+    public static int promptInt(InputReader in, String prompt, int min, int max) {
+        return promptInt(in, System.out, prompt, min, max);
+    }
+
+    /**
+     * Prompts for a char value the same as promptChar(Scanner, String), but reads from an
+     * InputReader.
+     *
+     * @param in The InputReader instance to read from System.in.
+     * @param prompt The user prompt.
+     * @return Returns the first non-whitespace character (in lower case) read from the user. If
+     *         there are no non-whitespace characters read, the null character is returned.
+     */
+    public static char promptChar(InputReader in, String prompt) {
+        return promptChar(in, System.out, prompt);
+    }
+
+    /**
+     * Prompts for a string value the same as promptString(Scanner, String), but reads from an
+     * InputReader.
+     *
+     * @param in The InputReader instance to read from System.in.
+     * @param prompt The user prompt.
+     * @return Returns the string entered by the user with leading and trailing whitespace removed,
+     *         or null if the input has ended.
+     */
+    public static String promptString(InputReader in, String prompt) {
+        return promptString(in, System.out, prompt);
+    }
+
+    /**
+     * Prompts for an int value the same as promptInt(Scanner, PrintStream, String, int, int), but
+     * reads from an InputReader, with the same re-prompts.
+     *
+     * @param in     The InputReader instance to read from.
+     * @param out    The stream to write to.
+     * @param prompt The name of the value for which the user is prompted.
+     * @param min    The minimum acceptable int value (inclusive).
+     * @param max    The maximum acceptable int value (inclusive).
+     * @return Returns the value read from the user.
+     */
+    public static int promptInt(InputReader in, PrintStream out, String prompt, int min, int max) {
+        while (true) {
+            out.print(prompt);
+            if (!in.hasNextInt()) { // discards line when input is not an int.
+                out.println("Invalid value.");
+                in.nextLine();
+                continue;
+            }
+            int userInt = in.nextInt();
+            if ((min <= userInt) && (userInt <= max)) { // checks if input is within range.
+                in.nextLine();
+                return userInt;
+            }
+            out.println("Invalid value.");
+        }
+    }
+
+    /**
+     * Prompts for a char value the same as promptChar(Scanner, PrintStream, String), but reads
+     * from an InputReader.
+     *
+     * @param in The InputReader instance to read from.
+     * @param out The stream to write to.
+     * @param prompt The user prompt.
+     * @return Returns the first non-whitespace character (in lower case) read from the user. If
+     *         there are no non-whitespace characters read, the null character is returned.
+     */
+    public static char promptChar(InputReader in, PrintStream out, String prompt) {
+        out.print(prompt);
+        String userString;
+        if (in.hasNextLine() && !(userString = in.nextLine().trim()).equals("")) {
+            return userString.toLowerCase().charAt(0);
+        }
+        return '\0';
+    }
+
+    /**
+     * Prompts for a string value the same as promptString(Scanner, PrintStream, String), but reads
+     * from an InputReader.
+     *
+     * @param in The InputReader instance to read from.
+     * @param out The stream to write to.
+     * @param prompt The user prompt.
+     * @return Returns the string entered by the user with leading and trailing whitespace removed,
+     *         or null if the input has ended.
+     */
+    public static String promptString(InputReader in, PrintStream out, String prompt) {
+        out.print(prompt);
+        return in.hasNextLine() ? in.nextLine().trim() : null;
+    }
+
     /**
      * Saves the current position in the story to a file.
      *
@@ -112,6 +274,9 @@ public class AdventureStory {
      * Line 1: The value of Config.MAGIC_BOOKMARK
      * Line 2: The filename of the story file from storyFile
      * Line 3: The current room id from curRoom
+     * Lines 4 and 5, only when the story file was parsed lately without errors and has not changed
+     * since: the fingerprint of the story file and the position of the room in it, see
+     * BookmarkResume.
      *
      * Note: use PrintWriter to print to the file.
      *
@@ -128,6 +293,11 @@ public class AdventureStory {
             writeToStory.println(Config.MAGIC_BOOKMARK);
             writeToStory.println(storyFile);
             writeToStory.println(curRoom);
+            String[] index = BookmarkResume.index(storyFile, curRoom);
+            if (index != null) { // lets the room be shown before the story is parsed
+                writeToStory.println(index[0]);
+                writeToStory.println(index[1]);
+            }
             writeToStory.close();
         } catch (IOException e) {
             return false;
@@ -145,6 +315,8 @@ public class AdventureStory {
      * If the first line is Config.MAGIC_STORY, then the file is parsed using the parseStory method.
      * If the first line is Config.MAGIC_BOOKMARK, the the file is parsed using the parseBookmark
      * method.
+     * If the first line is Config.MAGIC_COMPILED, the file is a story compiled by StoryCompiler and
+     * is loaded without being parsed.
      * Otherwise, print an error message, terminated by a new line, to System.out, displaying: 
      * "First line: trimmedLineRead does not correspond to known value.", where trimmedLineRead is 
      * the trimmed value of the first line from the file. 
@@ -177,6 +349,79 @@ public class AdventureStory {
      * @return false if there is an IOException or a parsing error. Otherwise, true. 
      */
     public static boolean parseFile(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        return parseFile(fName, rooms, trans, curRoom, null);
+    }
+
+    /**
+     * The parseFile method, which leaves the room descriptions of a story file in the file when
+     * lazy is not null, see StoryParser.parseLazily. main uses it when Config.LAZY_DESCRIPTIONS
+     * is true, and decodes the description of a room when the room is shown, see displayFrame.
+     *
+     * @param lazy null to load the descriptions, or an array of at least length 1, in which the
+     *             descriptions are stored at index 0, or null if they were loaded.
+     */
+    private static boolean parseFile(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom, LazyDescriptions[] lazy) {
+        Metrics.ParseEvent event = new Metrics.ParseEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int firstRoom = rooms.size();
+        boolean parsed = false;
+        try {
+            parsed = loadFile(fName, rooms, trans, curRoom, lazy);
+            return parsed;
+        } finally {
+            int transitions = 0;
+            for (int i = firstRoom; i < trans.size(); i++) {
+                transitions += trans.get(i).size();
+            }
+            Metrics.parsed(event, start, fName, rooms.size() - firstRoom, transitions, parsed);
+        }
+    }
+
+    /**
+     * The parseFile method without the Metrics, also used by StoryParser to load the story of a
+     * bookmark so that it is not counted twice.
+     */
+    static boolean loadFile(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        return loadFile(fName, rooms, trans, curRoom, null);
+    }
+
+    /**
+     * The loadFile method, which leaves the room descriptions of a story file in the file when
+     * lazy is not null, with the errors of either way of loading the file handled the same.
+     */
+    private static boolean loadFile(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom, LazyDescriptions[] lazy) {
+        if (lazy != null) {
+            lazy[0] = null;
+        }
+        if (new File(fName).length() > Integer.MAX_VALUE) { // too large to map into memory
+            return parseFileWithScanner(fName, rooms, trans, curRoom);
+        }
+        try { // maps the file and parses it in place, see StoryParser
+            if (lazy != null) {
+                return StoryParser.parseLazily(fName, rooms, trans, curRoom, lazy);
+            }
+            return StoryParser.parseFile(fName, rooms, trans, curRoom);
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + fName);
+            return false;
+        } catch (NullPointerException e) {
+            System.out.print("Unable to read first line from file: " + fName + " ");
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * The parseFile method reading the file through a Scanner, for files too large to be mapped by
+     * StoryParser.
+     */
+    private static boolean parseFileWithScanner(String fName, ArrayList<String[]> rooms,
         ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
         String firstLine;
         Scanner scan = null;
@@ -361,7 +606,7 @@ public class AdventureStory {
         ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
         String[] arrStringHelper = new String[Config.ROOM_DET_LEN];
         String readText;
-        String roomDesc = "";
+        StringBuilder roomDesc = new StringBuilder(); // description of the current room
         int linesReadCounter = 0;
         ParseState textFileState = ParseState.DEFAULT;
 
@@ -369,7 +614,7 @@ public class AdventureStory {
             linesReadCounter += 1; // keeps track of what line No. is read.
             // reads and checks is line is empty when in a room state
             if (((readText = sc.nextLine()).isEmpty()) && (textFileState == ParseState.ROOMS)) {
-                roomDesc = roomDesc + "\n";
+                roomDesc.append('\n');
                 continue;
             } // if line is simply empty then continue
             if (readText.isEmpty()) {
@@ -395,12 +640,11 @@ public class AdventureStory {
             } // checks to see if in Rooms state and adds the to trans.
             else if (textFileState == ParseState.ROOMS) {
                 if (readText.startsWith(";;;")) {
-                    rooms.get(rooms.size() - 1)[Config.ROOM_DESC] = roomDesc.trim();
-                    roomDesc = "";
+                    rooms.get(rooms.size() - 1)[Config.ROOM_DESC] = roomDesc.toString().trim();
+                    roomDesc.setLength(0);
                     textFileState = ParseState.TRANS;
                 } else { // if room desc has a space
-                    roomDesc += readText;
-                    roomDesc += '\n';
+                    roomDesc.append(readText).append('\n');
                 }
             } else { // block sets rooms state and adds the string[] it builds
                 if (readText.startsWith("R")) {
@@ -448,6 +692,7 @@ public class AdventureStory {
                 } else { // line was unable to be read error message is given and input is cleared
                     System.out.println(
                         "Error parsing file on line: " + linesReadCounter + ": " + readText);
+                    Metrics.PARSE_ERRORS.increment();
                     readText = "";
                 }
             }
@@ -455,6 +700,7 @@ public class AdventureStory {
         if (curRoom[0] == null) {
             curRoom[0] = rooms.get(0)[Config.ROOM_ID];
         }
+        RoomIndex.rebuild(rooms); // id lookups for this story are now constant time
         return true;
     }
 
@@ -475,14 +721,7 @@ public class AdventureStory {
      * @return The index of the room with the given id if found in rooms. Otherwise, -1.
      */
     public static int getRoomIndex(String id, ArrayList<String[]> rooms) {
-        String[] tempString = null;
-        for (int i = 0; i < rooms.size(); i++) { // iterates through arrayList
-            tempString = rooms.get(i);
-            if (tempString[Config.ROOM_ID].equals(id)) { // checks index 0 of string[]
-                return i; // if room designation matches that index of arrayList returned.
-            }
-        }
-        return -1;
+        return RoomIndex.indexOf(rooms, id); // hash lookup, built once per loaded story
     }
 
     /**
@@ -495,14 +734,7 @@ public class AdventureStory {
      * @return The reference to the String array in rooms with the room id of id. Otherwise, null.
      */
     public static String[] getRoomDetails(String id, ArrayList<String[]> rooms) {
-        String[] tempString = null;
-        for (int i = 0; i < rooms.size(); i++) {
-            tempString = rooms.get(i); // checks to see which element of arrayList matches.
-            if (tempString[Config.ROOM_ID].equals(id)) {
-                return rooms.get(i); // returns String[] of correct index.
-            }
-        }
-        return null;
+        return RoomIndex.details(rooms, id); // shares the index used by getRoomIndex
     }
 
     /**
@@ -512,9 +744,8 @@ public class AdventureStory {
      * @param c The character to print out.
      */
     public static void printLine(int len, char c) {
-        for (int i = 0; i < len; i++) {
-            System.out.print(c);
-        }
+        Renderer renderer = RENDERER.get();
+        renderer.line(len, c).flush(System.out); // single write for the whole line
     }
 
     /**
@@ -540,34 +771,11 @@ public class AdventureStory {
      * @param val The string to print out.
      */
     public static void printString(int len, String val) {
-        int lineCounter = 0; // keeps track of char for width
-        for (int i = 0; i < val.length(); i++) {
-            if (val.charAt(i) == '\n') { // if char is \n print one "\n"
-                System.out.println("");
-                lineCounter = 0;
-                continue;
-            }
-            if (lineCounter == len - 1) { // checks length
-                if (Character.isWhitespace(val.charAt(i))) {
-                    System.out.println("");
-                    lineCounter = 0; // resets counter to zero if length is reached
-                } else if (!Character.isLetterOrDigit(val.charAt(i))) {
-                    System.out.println(val.charAt(i));
-                    lineCounter = 0; // resets counter to zero if length is reached
-                } else if (Character.isWhitespace(val.charAt(i - 1))) {
-                    System.out.println("");
-                    System.out.print(val.charAt(i));
-                    lineCounter = 1; // resets counter to one
-                } else {
-                    System.out.print("-");
-                    System.out.println("");
-                    System.out.print(val.charAt(i));
-                    lineCounter = 1; // resets counter to one
-                }
-            } else { // else this is how most chars are printed
-                System.out.print(val.charAt(i));
-                lineCounter += 1;
-            }
+        Renderer renderer = RENDERER.get();
+        try { // wrapped in the buffer, then one write
+            renderer.wrapped(len, val);
+        } finally {
+            renderer.flush(System.out);
         }
     }
 
@@ -590,19 +798,9 @@ public class AdventureStory {
 
         if (strArr == null) {
             return;
-        } // prints rows of "-"
-        printLine(Config.DISPLAY_WIDTH, Config.LINE_CHAR); // top line
-        System.out.println("");
-        // prints rooms title
-        printString(Config.DISPLAY_WIDTH, strArr[Config.ROOM_TITLE]);
-        System.out.println("");
-        System.out.println("");
-        // prints room desc
-        printString(Config.DISPLAY_WIDTH, strArr[Config.ROOM_DESC]);
-        System.out.println("");
-        // prints row of "-"
-        printLine(Config.DISPLAY_WIDTH, Config.LINE_CHAR); // bottom line
-        System.out.println("");
+        } // lines, title and description are written together
+        Renderer renderer = RENDERER.get();
+        renderer.room(strArr).flush(System.out);
         return;
     }
 
@@ -636,20 +834,50 @@ public class AdventureStory {
         int check = getRoomIndex(id, rooms);
         if (check < 0) { // if index not found return null
             return null;
-        } // if terminal transition return current tran
-        if (trans.get(check).get(0)[Config.TRAN_DESC].equals(Config.SUCCESS)
-            || trans.get(check).get(0)[Config.TRAN_DESC].equals(Config.FAIL)) {
-            return trans.get(check);
-        } // prints out each transition for a given room
-        for (int j = 0; j < trans.get(check).size(); j++) {
-            if (trans.get(check).get(0)[Config.TRAN_PROB] == null) {
-                System.out.print(j + ") ");
-                System.out.println(trans.get(check).get(j)[Config.TRAN_DESC]);
-            }
-        }
+        } // terminal rooms print nothing, otherwise the whole menu is written at once
+        Renderer renderer = RENDERER.get();
+        renderer.transitions(trans.get(check)).flush(System.out);
         return trans.get(check); // return the AL for the given index to curTran in Main
     }
 
+    /**
+     * Prints out the room details and the transitions for a given room, exactly as displayRoom
+     * followed by displayTransitions would, but as a single write to System.out. A room shown
+     * again with the same display width and line character is not laid out again, see FRAMES.
+     *
+     * @param id The room id of the room and transitions to output.
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details.
+     * @return null if the id cannot be found in rooms. Otherwise, the reference to the ArrayList of
+     *         transitions for the given room.
+     */
+    public static ArrayList<String[]> displayFrame(String id, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        return displayFrame(id, rooms, trans, RENDERER.get(), null);
+    }
+
+    /**
+     * The displayFrame method, laying the room out with the display width and line character of
+     * a renderer, see main. For a story loaded with lazy descriptions, the description is decoded
+     * when the room is shown and is not stored in rooms, so that only the descriptions recently
+     * shown are kept, see LazyDescriptions.
+     *
+     * @param lazy The descriptions of the story, or null if rooms has them.
+     */
+    private static ArrayList<String[]> displayFrame(String id, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, Renderer renderer, LazyDescriptions lazy) {
+        int check = getRoomIndex(id, rooms);
+        if (check < 0) { // nothing is output for an unknown room
+            return null;
+        }
+        try {
+            renderer.frame(FRAMES, check, rooms.get(check), lazy, trans.get(check));
+        } finally { // the room is still shown if its transitions cannot be
+            renderer.flush(System.out);
+        }
+        return trans.get(check);
+    }
+
     /**
      * Returns the next room id, selected randomly based on the transition probability weights.
      *
@@ -674,6 +902,7 @@ public class AdventureStory {
      *         Otherwise, return null. Also, return null if there is a NumberFormatException. 
      */
     public static String probTrans(Random rand, ArrayList<String[]> curTrans) {
+        Metrics.PROB_TRANS.increment();
         if (curTrans == null) { // if curTran null return null
             return null;
         }
@@ -701,14 +930,77 @@ public class AdventureStory {
         }
     }
 
+    /**
+     * Returns the next room id, selected randomly based on the transition probability weights of
+     * the room with the given id in a compiled story.
+     *
+     * The weights were parsed when the story was compiled, so this does not parse or allocate
+     * anything. The random number drawn and the room id returned are the same as those of
+     * probTrans(rand, curTrans) for the transitions of that room. See StoryGraph.pick.
+     *
+     * @param rand The Random class from which to draw random values.
+     * @param graph The compiled story.
+     * @param id The id of the current room.
+     * @return The room id that was randomly selected. Otherwise, null if the room cannot be found
+     *         or does not have valid weights adding up to more than 0.
+     */
+    public static String probTrans(Random rand, StoryGraph graph, String id) {
+        return probTrans(rand, graph, id, null);
+    }
+
+    /**
+     * probTrans(rand, graph, id), also recording the random integer drawn in a journal.
+     */
+    private static String probTrans(Random rand, StoryGraph graph, String id,
+        SessionJournal journal) {
+        Metrics.PROB_TRANS.increment();
+        int room = graph.indexOf(id);
+        if (room < 0 || graph.totalWeight(room) == 0) {
+            return null;
+        }
+        int drawn = rand.nextInt(graph.totalWeight(room)); // the same as graph.pick
+        if (journal != null) {
+            journal.drawn(drawn);
+        }
+        return graph.targetId(graph.transitionAt(room, drawn));
+    }
+
+    /**
+     * Closes the journal of the last game, and starts the journal of a new game in
+     * Config.JOURNAL_FILE if it is set. If the file cannot be written, "Error writing journal:
+     * file" is output, terminated by a new line, and the game is not recorded.
+     *
+     * @param last The journal of the last game, or null.
+     * @param storyFile The filename of the story, or of the bookmark it was loaded from.
+     * @param graph The whole story.
+     * @param startRoom The id of the first room of the game.
+     * @param seed The seed of the Random of the game, or null if it has drawn from it already.
+     * @return The journal of the new game, or null if it is not recorded.
+     */
+    private static SessionJournal startJournal(SessionJournal last, String storyFile,
+        StoryGraph graph, String startRoom, Long seed) {
+        if (last != null) {
+            last.close();
+        }
+        if (Config.JOURNAL_FILE == null) {
+            return null;
+        }
+        try {
+            return SessionJournal.create(Config.JOURNAL_FILE, storyFile, graph, startRoom, seed);
+        } catch (IOException e) {
+            System.out.println("Error writing journal: " + Config.JOURNAL_FILE);
+            return null;
+        }
+    }
+
     /**
      * This is the main method for the Story Adventure game. It consists of the main game loop and
      * play again loop with calls to the various supporting methods. This method will evolve over 
      * the 3 milestones.
      * 
-     * The Scanner object to read from System.in and the Random object with a seed of Config.SEED 
-     * will be created in the main method and used as arguments for the supporting methods as 
-     * required.
+     * The InputReader object to read from System.in and the Random object with a seed of
+     * Config.SEED will be created in the main method and used as arguments for the supporting
+     * methods as required.
      *
      * Milestone #1:
      *   - Print out the welcome message: "Welcome to this choose your own adventure system!"
@@ -795,11 +1087,17 @@ public class AdventureStory {
      *   - Repeat until the character returned by promptChar is an 'n'
      *   - Print out "Thank you for playing!", terminated by a newline.
      *
+     * When Config.JOURNAL_FILE is set, each game is also recorded in a SessionJournal, so that it
+     * can be replayed from a bug report. A bookmark is then resumed with the whole story loaded
+     * first rather than with BookmarkResume, as the journal records the rooms by their index.
+     *
      * @param args Unused
      */
     public static void main(String[] args) {
-        Scanner scan = new Scanner(System.in);
-        Random rand = new Random(Config.SEED);
+        InputReader scan = new InputReader(System.in);
+        SessionConfig config = SessionConfig.defaults(); // Config as the game starts
+        Random rand = config.random();
+        Renderer renderer = new Renderer(config);
         boolean gameStatus = true; // for initial prompt and reprompt
         boolean gameOver = false;
         boolean gameTime = true;
@@ -807,6 +1105,11 @@ public class AdventureStory {
         ArrayList<String[]> rooms = new ArrayList<String[]>();
         ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
         ArrayList<String[]> curTrans = null;
+        StoryGraph graph = null; // compiled story, used to pick weighted transitions
+        LazyDescriptions[] lazy = // descriptions still in the story file, if any
+            Config.LAZY_DESCRIPTIONS ? new LazyDescriptions[1] : null;
+        BookmarkResume resume = null; // story still being parsed after resuming a bookmark
+        SessionJournal journal = null; // records the game if Config.JOURNAL_FILE is set
         String[] curRoom = new String[1];
         String randomTran = "";
         Integer userInt = null; // stores user int
@@ -816,7 +1119,10 @@ public class AdventureStory {
         // loop to promt for intial file
         while (gameStatus) {
             userFile = promptString(scan, "Please enter the story filename: ");
-            boolean gameStatusInitial = parseFile(userFile, rooms, trans, curRoom);
+            resume = Config.JOURNAL_FILE == null // a journal needs the whole story
+                ? BookmarkResume.start(userFile, rooms, trans, curRoom) : null;
+            boolean gameStatusInitial =
+                resume != null || parseFile(userFile, rooms, trans, curRoom, lazy);
             if (!gameStatusInitial) { // if parseFile return false
                 userChar = promptChar(scan, "Do you want to try again? ");
                 if (userChar == 'n') { // does not want to play
@@ -827,6 +1133,8 @@ public class AdventureStory {
                     continue;
                 }
             } else {
+                graph = StoryGraph.compile(rooms, trans);
+                journal = startJournal(journal, userFile, graph, curRoom[0], config.seed());
                 break;
             }
         }
@@ -834,8 +1142,16 @@ public class AdventureStory {
             if (userInt != null) {
                 curRoom[0] = curTrans.get(userInt)[Config.TRAN_ROOM_ID];
             }
-            displayRoom(curRoom[0], rooms);
-            curTrans = displayTransitions(curRoom[0], rooms, trans);
+            Metrics.TurnEvent turn = new Metrics.TurnEvent();
+            turn.begin();
+            long turnStart = System.nanoTime();
+            String turnRoom = curRoom[0];
+            curTrans = displayFrame(curRoom[0], rooms, trans, renderer, // room and transitions
+                lazy != null && resume == null ? lazy[0] : null);
+            int journalRoom = journal == null ? -1 : graph.indexOf(curRoom[0]);
+            if (journalRoom >= 0) {
+                journal.room(journalRoom);
+            }
             if (curRoom[0] != null) {
                 // if user has won the game
                 if (curTrans.get(0)[Config.TRAN_DESC].equals(Config.SUCCESS)
@@ -853,7 +1169,13 @@ public class AdventureStory {
                     gameTime = false;
                 }
             } // black checks if random is to be selected or prompts user for int
-            if ((gameTime) && ((randomTran = probTrans(rand, curTrans)) == null)) {
+            boolean chooses = gameTime && (randomTran = probTrans(rand, graph, curRoom[0],
+                journalRoom >= 0 ? journal : null)) == null;
+            Metrics.turned(turn, turnStart, turnRoom); // the time waiting for input is not counted
+            if (journal != null) { // before waiting for a player who may never answer
+                journal.flush();
+            }
+            if (chooses) {
                 userInt = promptInt(scan, "Choose: ", -2, curTrans.size() - 1);
                 if (userInt == -1) {
                     userChar = promptChar(scan, "Are you sure you want to quit the adventure? ");
@@ -881,9 +1203,28 @@ public class AdventureStory {
                         userInt = null; // userInt is set to null in order to display same room
                     }
                 }
+                if (journalRoom >= 0 && gameOver) {
+                    journal.quit();
+                } else if (journalRoom >= 0) {
+                    journal.chose(userInt == null ? -1 : userInt);
+                }
             } else {
                 curRoom[0] = randomTran;
             }
+            if (resume != null) { // the whole story is needed to leave the bookmarked room
+                if (!resume.finish(rooms, trans) && !gameOver) {
+                    gameOver = true;
+                    gameTime = false;
+                }
+                graph = StoryGraph.compile(rooms, trans);
+                resume = null;
+                if (lazy != null) { // finish loads the descriptions
+                    lazy[0] = null;
+                }
+            }
+            if (journal != null) {
+                journal.flush();
+            }
             // loop that is engages once a terminal state is activated
             while (gameOver) {
                 userChar = promptChar(scan, "Do you want to try again? ");
@@ -897,8 +1238,14 @@ public class AdventureStory {
                     trans = new ArrayList<ArrayList<String[]>>();
                     curTrans = null;
                     userFile = promptString(scan, "Please enter the story filename: ");
-                    gameStatus = parseFile(userFile, rooms, trans, curRoom);
+                    resume = Config.JOURNAL_FILE == null
+                        ? BookmarkResume.start(userFile, rooms, trans, curRoom) : null;
+                    gameStatus =
+                        resume != null || parseFile(userFile, rooms, trans, curRoom, lazy);
                     if (gameStatus) {
+                        graph = StoryGraph.compile(rooms, trans);
+                        journal = startJournal(journal, userFile, graph, curRoom[0],
+                            null); // rand has drawn for the games before
                         gameOver = false;
                         gameTime = true;
                         userInt = null;
@@ -908,5 +1255,8 @@ public class AdventureStory {
                 }
             }
         } while (gameTime); // game status check
+        if (journal != null) {
+            journal.close();
+        }
     }
 }
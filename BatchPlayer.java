@@ -0,0 +1,349 @@
+// Title: AdventureStory
+// Files: BatchPlayer.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Plays many games of a story without a player, for regression testing.
+ *
+ * Each game is a Session, so it is played exactly as AdventureStory.main would play it, with the
+ * same output. replay plays recorded play scripts, each a file of the player's input for one
+ * game (the choices, confirmations and bookmark names, one per line), and autoPlay plays games
+ * whose choices are drawn at random from a seed, see Session.autoChoose.
+ *
+ * The games are played concurrently on a SessionScheduler, WINDOW games at a time, each writing
+ * its transcript to its own buffer. The transcripts are then written to a single buffered output
+ * in the order of the games, each after a "== name" line, so the transcript of a batch is the
+ * same however the games were scheduled, and can be compared with the transcript of an earlier
+ * run.
+ *
+ * Given a directory for the journals, each game is also recorded in a SessionJournal there, named
+ * after the index of the game in the batch (0.journal, 1.journal, ...), so that a game whose
+ * transcript shows a bug can be replayed on its own with java SessionJournal.
+ *
+ * Usage: java BatchPlayer [-journals dir] storyFile transcriptFile script...
+ *        java BatchPlayer [-journals dir] storyFile transcriptFile -seed seed games [maxTurns]
+ *        Outputs the number of games won, lost and unfinished, and the turns per second.
+ */
+public class BatchPlayer {
+
+    /**
+     * Games played at the same time
+     */
+    public static final int WINDOW = 256;
+
+    /**
+     * Default number of rooms shown before a game of autoPlay gives up
+     */
+    public static final long DEFAULT_MAX_TURNS = 10_000;
+
+    /**
+     * Creates the session of one game of a batch.
+     */
+    interface Game {
+        /**
+         * @param game The index of the game in the batch.
+         * @param out Where the game's transcript is written.
+         * @return The session of the game.
+         */
+        Session create(int game, PrintStream out) throws IOException;
+    }
+
+    /**
+     * Starts the journal of one game of a batch.
+     */
+    interface Journals {
+        /**
+         * @param game The index of the game in the batch.
+         * @return The journal of the game, started at its first room.
+         */
+        SessionJournal create(int game) throws IOException;
+    }
+
+    /**
+     * The results of a batch of games.
+     */
+    public static class Summary {
+        int games;
+        int successes;
+        int failures;
+        long turns;
+        long nanos;
+
+        /**
+         * @return The number of games played.
+         */
+        public int games() {
+            return games;
+        }
+
+        /**
+         * @return The number of games won.
+         */
+        public int successes() {
+            return successes;
+        }
+
+        /**
+         * @return The number of games lost or quit.
+         */
+        public int failures() {
+            return failures;
+        }
+
+        /**
+         * @return The number of games whose input ended, or that gave up, before the end.
+         */
+        public int unfinished() {
+            return games - successes - failures;
+        }
+
+        /**
+         * @return The number of rooms shown in all the games.
+         */
+        public long turns() {
+            return turns;
+        }
+
+        /**
+         * @return The number of rooms shown per second of the batch.
+         */
+        public double turnsPerSecond() {
+            return nanos == 0 ? 0 : turns * 1e9 / nanos;
+        }
+
+        /**
+         * @return One line of the results.
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%d games: %d won, %d lost, %d unfinished; %d turns in %.3f s, %.0f turns/s",
+                games, successes, failures, unfinished(), turns, nanos / 1e9, turnsPerSecond());
+        }
+    }
+
+    /**
+     * Plays a batch of games from the command line arguments.
+     *
+     * @param args See the class comment.
+     */
+    public static void main(String[] args) throws IOException {
+        String journalDir = null;
+        if (args.length > 1 && args[0].equals("-journals")) {
+            journalDir = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        boolean auto = args.length > 2 && args[2].equals("-seed");
+        if (args.length < 3 || auto && (args.length < 5 || args.length > 6)) {
+            System.out.println("Usage: java BatchPlayer [-journals dir] storyFile transcriptFile "
+                + "script...");
+            System.out.println("       java BatchPlayer [-journals dir] storyFile transcriptFile "
+                + "-seed seed games [maxTurns]");
+            return;
+        }
+        if (journalDir != null) {
+            Files.createDirectories(Paths.get(journalDir));
+        }
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.load(args[0], curRoom);
+        if (graph == null) {
+            System.out.println(args[0] + ": unable to parse the story");
+            System.exit(2);
+        }
+        Summary summary;
+        try (OutputStream transcript =
+            new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16)) {
+            if (auto) {
+                long maxTurns = args.length > 5 ? Long.parseLong(args[5]) : DEFAULT_MAX_TURNS;
+                summary = autoPlay(graph, args[0], curRoom[0], Long.parseLong(args[3]),
+                    Integer.parseInt(args[4]), maxTurns, transcript, journalDir);
+            } else {
+                summary = replay(graph, args[0], curRoom[0],
+                    Arrays.asList(args).subList(2, args.length), transcript, journalDir);
+            }
+        }
+        System.out.println(summary);
+    }
+
+    /**
+     * Plays one game per play script.
+     *
+     * @param graph The story.
+     * @param storyFile The filename of the story, saved in bookmarks.
+     * @param startRoom The id of the room the games start in.
+     * @param scripts The names of the play script files.
+     * @param transcript Where the transcripts of the games are written, in order.
+     * @return The results.
+     * @throws IOException If a script cannot be read or the transcript cannot be written.
+     */
+    public static Summary replay(StoryGraph graph, String storyFile, String startRoom,
+        List<String> scripts, OutputStream transcript) throws IOException {
+        return replay(graph, storyFile, startRoom, scripts, transcript, null);
+    }
+
+    /**
+     * Plays one game per play script, recording each in a journal.
+     *
+     * @param graph The story.
+     * @param storyFile The filename of the story, saved in bookmarks and journals.
+     * @param startRoom The id of the room the games start in.
+     * @param scripts The names of the play script files.
+     * @param transcript Where the transcripts of the games are written, in order.
+     * @param journalDir The directory the journals are written to, or null to record none.
+     * @return The results.
+     * @throws IOException If a script cannot be read, or the transcript or a journal cannot be
+     *                     written.
+     */
+    public static Summary replay(StoryGraph graph, String storyFile, String startRoom,
+        List<String> scripts, OutputStream transcript, String journalDir) throws IOException {
+        SessionConfig config = SessionConfig.defaults();
+        return play(scripts.size(), i -> "== " + scripts.get(i), (i, out) -> {
+            String input = new String(Files.readAllBytes(Paths.get(scripts.get(i))),
+                StandardCharsets.UTF_8);
+            return new Session(StoryHandle.of(graph), storyFile, startRoom,
+                new InputReader(input), out, config);
+        }, journals(journalDir, storyFile, graph, startRoom, i -> config.seed()), transcript);
+    }
+
+    /**
+     * Plays games whose choices are drawn at random, game i from the seed seed + i.
+     *
+     * @param graph The story.
+     * @param storyFile The filename of the story, saved in bookmarks.
+     * @param startRoom The id of the room the games start in.
+     * @param seed The seed of the first game.
+     * @param games The number of games.
+     * @param maxTurns The number of rooms shown before a game gives up.
+     * @param transcript Where the transcripts of the games are written, in order.
+     * @return The results.
+     * @throws IOException If the transcript cannot be written.
+     */
+    public static Summary autoPlay(StoryGraph graph, String storyFile, String startRoom,
+        long seed, int games, long maxTurns, OutputStream transcript) throws IOException {
+        return autoPlay(graph, storyFile, startRoom, seed, games, maxTurns, transcript, null);
+    }
+
+    /**
+     * Plays games whose choices are drawn at random, game i from the seed seed + i, recording
+     * each in a journal.
+     *
+     * @param graph The story.
+     * @param storyFile The filename of the story, saved in bookmarks and journals.
+     * @param startRoom The id of the room the games start in.
+     * @param seed The seed of the first game.
+     * @param games The number of games.
+     * @param maxTurns The number of rooms shown before a game gives up.
+     * @param transcript Where the transcripts of the games are written, in order.
+     * @param journalDir The directory the journals are written to, or null to record none.
+     * @return The results.
+     * @throws IOException If the transcript or a journal cannot be written.
+     */
+    public static Summary autoPlay(StoryGraph graph, String storyFile, String startRoom,
+        long seed, int games, long maxTurns, OutputStream transcript, String journalDir)
+        throws IOException {
+        return play(games, i -> "== seed " + (seed + i),
+            (i, out) -> new Session(StoryHandle.of(graph), storyFile, startRoom,
+                new InputReader(""), out, SessionConfig.defaults().withSeed(seed + i))
+                .autoChoose(new Random(~(seed + i)), maxTurns),
+            journals(journalDir, storyFile, graph, startRoom, i -> seed + i), transcript);
+    }
+
+    /**
+     * @return The journals of the games of a batch in journalDir, or null if journalDir is null.
+     */
+    private static Journals journals(String journalDir, String storyFile, StoryGraph graph,
+        String startRoom, IntFunction<Long> seeds) {
+        if (journalDir == null) {
+            return null;
+        }
+        return i -> SessionJournal.create(Paths.get(journalDir, i + ".journal").toString(),
+            storyFile, graph, startRoom, seeds.apply(i));
+    }
+
+    /**
+     * Plays the games of a batch, WINDOW at a time, and writes their transcripts in order.
+     */
+    private static Summary play(int games, IntFunction<String> names, Game game,
+        Journals journals, OutputStream transcript) throws IOException {
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        try (SessionScheduler scheduler = new SessionScheduler()) {
+            for (int first = 0; first < games; first += WINDOW) {
+                int count = Math.min(WINDOW, games - first);
+                ArrayList<Session> sessions = new ArrayList<Session>(count);
+                ArrayList<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+                ArrayList<Future<String>> results = new ArrayList<Future<String>>(count);
+                ArrayList<SessionJournal> journaled = new ArrayList<SessionJournal>();
+                for (int i = first; i < first + count; i++) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+                    Session session = game.create(i, new PrintStream(output, false,
+                        StandardCharsets.UTF_8)).encoding(StandardCharsets.UTF_8);
+                    if (journals != null) {
+                        SessionJournal journal = journals.create(i);
+                        journaled.add(journal);
+                        session.journalTo(journal);
+                    }
+                    sessions.add(session);
+                    outputs.add(output);
+                    results.add(scheduler.submit(session));
+                }
+                for (int i = 0; i < count; i++) {
+                    String result = join(results.get(i));
+                    summary.games++;
+                    summary.turns += sessions.get(i).turns();
+                    if (Config.SUCCESS.equals(result)) {
+                        summary.successes++;
+                    } else if (Config.FAIL.equals(result)) {
+                        summary.failures++;
+                    }
+                    transcript.write((names.apply(first + i) + System.lineSeparator())
+                        .getBytes(StandardCharsets.UTF_8));
+                    outputs.get(i).writeTo(transcript);
+                }
+                for (SessionJournal journal : journaled) { // the games have returned
+                    journal.close();
+                    if (journal.checkError()) {
+                        throw new IOException("Error writing a journal of the batch");
+                    }
+                }
+            }
+        }
+        transcript.flush();
+        summary.nanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * @return The result of a game, or null if it threw.
+     */
+    private static String join(Future<String> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// Title: AdventureStory
+// Files: BookmarkResume.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resumes a bookmark by showing the bookmarked room before the rest of the story is parsed.
+ *
+ * saveBookmark writes two more lines after the three lines of a bookmark when the story was last
+ * parsed without errors and has not changed since, using the StoryCache.Index recorded by that
+ * parse, so saving a bookmark does not read the story file again:
+ *
+ * Line No: Contents
+ *       4: The fingerprint of the story file: "size:modified:checksum", where modified is the
+ *          modification time in milliseconds and checksum the CRC32C of the file in hexadecimal
+ *       5: The position in the story file of the line of the current room
+ *
+ * Bookmarks without these lines, and older versions of the game reading bookmarks with them,
+ * work as before, since only the first three lines are read by parseBookmark.
+ *
+ * When the fingerprint still matches the story file, which is checked with the checksum as the
+ * size and the modification time can survive an edit, start parses the bookmarked room alone from
+ * its position in the file, and parses the whole story in the background. The game can display
+ * the room and prompt for a choice straight away, and calls finish to swap in the whole story
+ * before leaving the room. A story that parsed with errors is never indexed, so resuming does not
+ * output anything that parsing the whole story first would not have.
+ */
+public class BookmarkResume {
+
+    private final String storyFile;
+    private final CompletableFuture<Boolean> parsing; // whole story parse, true if successful
+    private final ArrayList<String[]> rooms = new ArrayList<String[]>();
+    private final ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+
+    private BookmarkResume(String storyFile, String roomId) {
+        this.storyFile = storyFile;
+        this.parsing = CompletableFuture.supplyAsync(() -> {
+            try {
+                return StoryParser.parseFile(storyFile, rooms, trans, new String[] {roomId});
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Returns the lines 4 and 5 of a bookmark of a room, if the story can be resumed from it.
+     *
+     * @param storyFile The filename of the story file, as written on line 2 of the bookmark.
+     * @param roomId The id of the current room.
+     * @return The fingerprint and the position of the room line, or null if the story has not
+     *         been parsed lately, was parsed with errors, has changed since or has no such room.
+     */
+    static String[] index(String storyFile, String roomId) {
+        File file = new File(storyFile);
+        StoryCache.Index index = StoryCache.indexOf(file);
+        if (index == null || file.length() != index.size
+            || file.lastModified() != index.modified) {
+            return null;
+        }
+        int offset = index.offsetOf(roomId);
+        if (offset < 0) {
+            return null;
+        }
+        return new String[] {index.fingerprint(), Integer.toString(offset)};
+    }
+
+    /**
+     * Starts resuming a bookmark file that has the lines 4 and 5, see the class comment.
+     *
+     * On success rooms and trans contain only the bookmarked room and its transitions, and
+     * curRoom[0] is its id. finish must be called before moving to another room.
+     *
+     * @param bookmarkFile The name of the file, which may not be a bookmark at all.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return The resume to finish, or null if the file cannot be resumed this way, in which case
+     *         nothing has been changed or output and parseFile must be used as usual.
+     */
+    public static BookmarkResume start(String bookmarkFile, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        String[] lines = new String[5];
+        try (Scanner sc = new Scanner(new File(bookmarkFile))) {
+            for (int i = 0; i < lines.length; i++) {
+                if (!sc.hasNextLine()) {
+                    return null;
+                }
+                lines[i] = sc.nextLine().trim();
+                if (i == 0 && !lines[0].equals(Config.MAGIC_BOOKMARK)) {
+                    return null; // a story, read no further
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String storyFile = lines[1];
+        String roomId = lines[2];
+        if (!matches(new File(storyFile), lines[3])) {
+            return null;
+        }
+        ArrayList<String[]> room = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> roomTrans = new ArrayList<ArrayList<String[]>>();
+        try {
+            if (!StoryParser.parseRoom(storyFile, Integer.parseInt(lines[4]), room, roomTrans)
+                || !room.get(0)[Config.ROOM_ID].equals(roomId) || roomTrans.get(0).isEmpty()) {
+                return null;
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        rooms.addAll(room);
+        trans.addAll(roomTrans);
+        RoomIndex.rebuild(rooms);
+        curRoom[0] = roomId;
+        return new BookmarkResume(storyFile, roomId);
+    }
+
+    /**
+     * Waits for the whole story to be parsed and replaces the contents of rooms and trans with it.
+     * If the story could not be parsed, "Error reading file: storyFile" is output, terminated by a
+     * new line, and rooms and trans are left as they were.
+     *
+     * @param rooms The rooms given to start.
+     * @param trans The transitions given to start.
+     * @return true if rooms and trans now contain the whole story.
+     */
+    public boolean finish(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        if (!parsing.join()) {
+            System.out.println("Error reading file: " + storyFile);
+            return false;
+        }
+        rooms.clear();
+        rooms.addAll(this.rooms);
+        trans.clear();
+        trans.addAll(this.trans);
+        RoomIndex.rebuild(rooms);
+        return true;
+    }
+
+    /**
+     * Returns true if a story file matches a fingerprint: the same size and checksum. The
+     * modification time is not trusted, as an edit that keeps the size can keep it too.
+     */
+    private static boolean matches(File file, String fingerprint) {
+        String[] parts = fingerprint.split(":");
+        if (parts.length != 3 || !file.isFile()) {
+            return false;
+        }
+        try {
+            if (file.length() != Long.parseLong(parts[0])) {
+                return false;
+            }
+            return StoryCompiler.checksum(StoryParser.map(file.getPath()))
+                == Long.parseLong(parts[2], 16);
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,604 @@
+// Title: AdventureStory
+// Files: BookmarkStore.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.CRC32C;
+
+/**
+ * The bookmarks of many players, kept in a single append-only log file instead of a file each.
+ *
+ * saveBookmark opens, writes and closes a new file for every bookmark. A BookmarkStore instead
+ * appends one record per bookmark saved or removed to its log, and keeps the latest bookmark of
+ * each player and name in memory, so get never reads the file. The log starts with the line
+ * Config.MAGIC_BOOKMARK_LOG, followed by the records:
+ *
+ * Bytes  | Contents
+ * ------------------------------------------------------------------------------------------
+ * 4      | The length of the rest of the record, after the checksum
+ * 4      | The CRC32C of the rest of the record
+ * 4 + n  | The player: its length in bytes and its UTF-8 bytes
+ * 4 + n  | The name of the bookmark, the same way
+ * 4      | The number of lines of the bookmark, 0 when it was removed
+ * 4 + n  | Each line of the bookmark, the same way
+ *
+ * The lines of a bookmark are those of a bookmark file, see AdventureStory.saveBookmark, so
+ * importFile and exportFile convert between the two without any change, and a bookmark in the
+ * store resumes exactly as the same bookmark saved in a file.
+ *
+ * A save returns once its record is on disk. A FileChannel.force is much slower than appending a
+ * record, so the players saving at the same time share one: while a force is running, the other
+ * saves append their records and wait, and the next force makes all of them durable at once. A
+ * record cut short by a crash fails its checksum, and it and anything after it are truncated when
+ * the log is opened again. A record that fails to be appended is cut off the log at once, see
+ * discard, so that the saves after it are not lost in the same way.
+ *
+ * Records replaced or removed stay in the log until it is compacted. Once the log has more than
+ * COMPACT_MIN_BYTES of such records and they take more room than the live ones, the next save
+ * rewrites the live records to a new log and moves it over the old one, so the log never grows
+ * to more than about twice the size of the bookmarks it holds. The save is on disk before the
+ * compaction starts, so a compaction that fails does not fail the save: the old log is kept, the
+ * failure is counted in compactionErrors, and the next save tries again.
+ *
+ * All the methods are thread safe.
+ */
+public class BookmarkStore implements AutoCloseable {
+
+    /**
+     * Bytes of replaced or removed records below which the log is never compacted
+     */
+    public static final long COMPACT_MIN_BYTES = 1 << 20;
+
+    /**
+     * A bookmark in the store.
+     */
+    private static class Bookmark {
+        final String[] lines; // of the bookmark file
+        final int size; // bytes of its record in the log
+
+        Bookmark(String[] lines, int size) {
+            this.lines = lines;
+            this.size = size;
+        }
+    }
+
+    private final Path log;
+    private final HashMap<String, HashMap<String, Bookmark>> players; // player -> name -> bookmark
+    private FileChannel channel; // at the end of the log
+    private long live; // bytes of the records of the bookmarks in the store
+    private long garbage; // bytes of the records replaced or removed
+    private long appended; // bytes appended since the store was opened
+    private long durable; // bytes of appended known to be on disk
+    private boolean syncing; // a force is running
+    private boolean failed; // a record cut short could not be removed, see discard
+    private long syncs; // forces run
+    private long compactionErrors; // compactions run by a save that failed
+
+    private BookmarkStore(Path log) {
+        this.log = log;
+        this.players = new HashMap<String, HashMap<String, Bookmark>>();
+    }
+
+    /**
+     * Opens the bookmark log file, creating it if it does not exist, and reads its bookmarks.
+     *
+     * @param logFile The filename of the log.
+     * @return The store.
+     * @throws IOException If the log cannot be read or written, or is not a bookmark log.
+     */
+    public static BookmarkStore open(String logFile) throws IOException {
+        BookmarkStore store = new BookmarkStore(Paths.get(logFile));
+        store.load();
+        return store;
+    }
+
+    /**
+     * Reads the records of the log, truncating it after the last whole record.
+     */
+    private void load() throws IOException {
+        byte[] header = (Config.MAGIC_BOOKMARK_LOG + "\n").getBytes(StandardCharsets.UTF_8);
+        channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE);
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(log));
+            if (data.remaining() == 0) {
+                channel.write(ByteBuffer.wrap(header));
+                channel.force(true);
+                return;
+            }
+            if (data.remaining() < header.length || !data.slice().limit(header.length)
+                .equals(ByteBuffer.wrap(header))) {
+                throw new IOException(log + " is not a bookmark log");
+            }
+            data.position(header.length);
+            CRC32C crc = new CRC32C();
+            while (data.remaining() >= 8) {
+                int start = data.position();
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length < 0 || length > data.remaining()) {
+                    data.position(start);
+                    break;
+                }
+                ByteBuffer record = data.slice().limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum || !apply(record, length + 8)) {
+                    data.position(start);
+                    break;
+                }
+                data.position(start + 8 + length);
+            }
+            if (data.hasRemaining()) { // cut short by a crash
+                channel.truncate(data.position());
+            }
+            channel.position(data.position());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies a record read from the log to the bookmarks in memory.
+     *
+     * @return false if the record is not well formed.
+     */
+    private boolean apply(ByteBuffer record, int size) {
+        try {
+            String player = readString(record);
+            String name = readString(record);
+            int count = record.getInt();
+            if (count < 0 || count > record.remaining() / 4) {
+                return false;
+            }
+            String[] lines = new String[count];
+            for (int i = 0; i < count; i++) {
+                lines[i] = readString(record);
+            }
+            if (record.hasRemaining()) {
+                return false;
+            }
+            if (count == 0) {
+                garbage += size;
+                drop(player, name);
+            } else {
+                put(player, name, new Bookmark(lines, size));
+            }
+            return true;
+        } catch (RuntimeException e) { // e.g. BufferUnderflowException
+            return false;
+        }
+    }
+
+    /**
+     * Saves a bookmark of the current room of a player, the same bookmark as saveBookmark writes
+     * to a file.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark, replacing any bookmark of the player with that name.
+     * @param storyFile The filename containing the cyoa story.
+     * @param curRoom The id of the current room.
+     * @return false on an IOException, and true once the bookmark is on disk.
+     */
+    public boolean save(String player, String name, String storyFile, String curRoom) {
+        String[] index = BookmarkResume.index(storyFile, curRoom);
+        String[] lines = index == null
+            ? new String[] {Config.MAGIC_BOOKMARK, storyFile, curRoom}
+            : new String[] {Config.MAGIC_BOOKMARK, storyFile, curRoom, index[0], index[1]};
+        return write(player, name, lines);
+    }
+
+    /**
+     * Returns the lines of a bookmark, as they would be in a bookmark file.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark.
+     * @return The lines, or null if the player has no bookmark with that name.
+     */
+    public synchronized String[] get(String player, String name) {
+        HashMap<String, Bookmark> bookmarks = players.get(player);
+        Bookmark bookmark = bookmarks == null ? null : bookmarks.get(name);
+        return bookmark == null ? null : bookmark.lines.clone();
+    }
+
+    /**
+     * Loads the story and current room of a bookmark, the same as AdventureStory.parseFile does
+     * for the same bookmark in a file.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return false if there is no such bookmark or its story could not be parsed.
+     */
+    public boolean resume(String player, String name, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        String[] lines = get(player, name);
+        if (lines == null) {
+            return false;
+        }
+        String text = String.join("\n", Arrays.asList(lines).subList(1, lines.length)) + "\n";
+        return AdventureStory.parseBookmark(new Scanner(text), rooms, trans, curRoom);
+    }
+
+    /**
+     * Removes a bookmark.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark.
+     * @return false if there was no such bookmark or on an IOException.
+     */
+    public boolean remove(String player, String name) {
+        if (get(player, name) == null) {
+            return false;
+        }
+        return write(player, name, new String[0]);
+    }
+
+    /**
+     * @param player The player.
+     * @return The names of the bookmarks of the player, sorted.
+     */
+    public synchronized List<String> names(String player) {
+        HashMap<String, Bookmark> bookmarks = players.get(player);
+        ArrayList<String> names = new ArrayList<String>();
+        if (bookmarks != null) {
+            names.addAll(bookmarks.keySet());
+            names.sort(null);
+        }
+        return names;
+    }
+
+    /**
+     * @return The number of bookmarks of all the players.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (HashMap<String, Bookmark> bookmarks : players.values()) {
+            size += bookmarks.size();
+        }
+        return size;
+    }
+
+    /**
+     * Adds a bookmark file to the store.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark.
+     * @param bookmarkFile The filename of the bookmark file.
+     * @return false if the file is not a bookmark file or on an IOException.
+     */
+    public boolean importFile(String player, String name, String bookmarkFile) {
+        ArrayList<String> lines = new ArrayList<String>();
+        try (Scanner sc = new Scanner(new File(bookmarkFile))) {
+            while (sc.hasNextLine() && lines.size() < 5) { // the lines saveBookmark writes
+                lines.add(sc.nextLine().trim());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (lines.size() < 3 || !lines.get(0).equals(Config.MAGIC_BOOKMARK)) {
+            return false;
+        }
+        return write(player, name, lines.toArray(new String[0]));
+    }
+
+    /**
+     * Writes a bookmark of the store to a bookmark file, which parseFile can then resume.
+     *
+     * @param player The player.
+     * @param name The name of the bookmark.
+     * @param bookmarkFile The filename of the bookmark file.
+     * @return false if there is no such bookmark or on an IOException.
+     */
+    public boolean exportFile(String player, String name, String bookmarkFile) {
+        String[] lines = get(player, name);
+        if (lines == null) {
+            return false;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(bookmarkFile))) {
+            for (String line : lines) {
+                out.println(line);
+            }
+            return !out.checkError();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the log with only the records of the bookmarks in the store.
+     *
+     * @throws IOException If the new log cannot be written, in which case the old one is kept.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        while (syncing) { // the channel is not closed under a force
+            waitForSync();
+        }
+        Path tmp = log.resolveSibling(log.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, ByteBuffer.wrap((Config.MAGIC_BOOKMARK_LOG + "\n")
+                .getBytes(StandardCharsets.UTF_8)));
+            for (String player : players.keySet()) {
+                HashMap<String, Bookmark> bookmarks = players.get(player);
+                for (String name : bookmarks.keySet()) {
+                    write(out, record(player, name, bookmarks.get(name).lines));
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally { // the new log, or the old one if it could not be replaced
+            channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        syncDirectory();
+        failed = false; // the new log has only whole records
+        garbage = 0;
+        durable = appended; // everything live has just been forced
+    }
+
+    /**
+     * @return The number of bytes of the log.
+     */
+    public synchronized long logSize() throws IOException {
+        checkOpen();
+        return channel.size();
+    }
+
+    /**
+     * @return The number of forces run, fewer than the saves when players save together.
+     */
+    public synchronized long syncs() {
+        return syncs;
+    }
+
+    /**
+     * @return The number of compactions run by a save that failed, keeping the old log.
+     */
+    public synchronized long compactionErrors() {
+        return compactionErrors;
+    }
+
+    /**
+     * Closes the log. The bookmarks saved are all on disk already.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        while (syncing) {
+            waitForSync();
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Appends the record of a bookmark, or of its removal when lines is empty, and waits for it
+     * to be on disk.
+     */
+    private boolean write(String player, String name, String[] lines) {
+        ByteBuffer record = record(player, name, lines);
+        int size = record.remaining();
+        long end;
+        try {
+            synchronized (this) {
+                checkOpen();
+                if (failed) {
+                    throw new IOException("Bookmark log ends with a record cut short: " + log);
+                }
+                long start = channel.position();
+                try {
+                    write(channel, record);
+                } catch (IOException e) {
+                    discard(start);
+                    throw e;
+                }
+                appended += size;
+                end = appended;
+                if (lines.length == 0) {
+                    garbage += size;
+                    drop(player, name);
+                } else {
+                    put(player, name, new Bookmark(lines, size));
+                }
+            }
+            sync(end);
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (this) { // the save is on disk, whether or not the log is compacted
+            if (channel != null && garbage > COMPACT_MIN_BYTES && garbage > live) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    compactionErrors++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the first end bytes appended are on disk, running a force for them and for
+     * everything appended since unless another thread is running one already.
+     */
+    private void sync(long end) throws IOException {
+        FileChannel forced;
+        long target;
+        synchronized (this) {
+            while (durable < end && syncing) {
+                waitForSync();
+            }
+            if (durable >= end) { // forced by another save, or by a compaction
+                return;
+            }
+            checkOpen();
+            syncing = true;
+            forced = channel;
+            target = appended;
+        }
+        boolean done = false;
+        try {
+            forced.force(false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                syncs++;
+                if (done) {
+                    durable = Math.max(durable, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitForSync() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the bookmark log");
+        }
+    }
+
+    /**
+     * Forces the directory of the log, so that the compacted log survives a crash. Not every
+     * platform can open a directory, in which case the move is left to the file system.
+     */
+    private void syncDirectory() {
+        Path dir = log.toAbsolutePath().getParent();
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // e.g. Windows
+        }
+    }
+
+    /**
+     * Cuts the part of a record that could not be appended whole off the end of the log. Left
+     * there, it would fail its checksum when the log is opened again, and the records saved after
+     * it would be truncated with it. If the log cannot be cut either, every later save fails,
+     * rather than report a bookmark saved that the log would lose, until the log is compacted or
+     * the store is opened again.
+     *
+     * @param start The end of the log before the record was appended.
+     */
+    private void discard(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Bookmark log closed: " + log);
+        }
+    }
+
+    private void put(String player, String name, Bookmark bookmark) {
+        HashMap<String, Bookmark> bookmarks = players.get(player);
+        if (bookmarks == null) {
+            bookmarks = new HashMap<String, Bookmark>();
+            players.put(player, bookmarks);
+        }
+        Bookmark old = bookmarks.put(name, bookmark);
+        live += bookmark.size;
+        if (old != null) {
+            live -= old.size;
+            garbage += old.size;
+        }
+    }
+
+    private void drop(String player, String name) {
+        HashMap<String, Bookmark> bookmarks = players.get(player);
+        Bookmark old = bookmarks == null ? null : bookmarks.remove(name);
+        if (old != null) {
+            live -= old.size;
+            garbage += old.size;
+            if (bookmarks.isEmpty()) {
+                players.remove(player);
+            }
+        }
+    }
+
+    /**
+     * @return The record of a bookmark, ready to be written.
+     */
+    private static ByteBuffer record(String player, String name, String[] lines) {
+        byte[][] strings = new byte[lines.length + 2][];
+        strings[0] = player.getBytes(StandardCharsets.UTF_8);
+        strings[1] = name.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 4 * strings.length;
+        for (int i = 0; i < strings.length; i++) {
+            if (i >= 2) {
+                strings[i] = lines[i - 2].getBytes(StandardCharsets.UTF_8);
+            }
+            length += strings[i].length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt(0);
+        for (int i = 0; i < strings.length; i++) {
+            if (i == 2) {
+                record.putInt(lines.length);
+            }
+            record.putInt(strings[i].length).put(strings[i]);
+        }
+        if (lines.length == 0) {
+            record.putInt(0);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private static void write(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0 || length > data.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        String value = new String(data.array(), data.arrayOffset() + data.position(), length,
+            StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+}
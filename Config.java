@@ -41,6 +41,9 @@ public class Config {
      */
     public static String MAGIC_STORY = "#!STORY";
     public static String MAGIC_BOOKMARK = "#!BOOKMARK";
+    public static String MAGIC_COMPILED = "#!COMPILED";
+    public static String MAGIC_BOOKMARK_LOG = "#!BOOKMARKS";
+    public static String MAGIC_JOURNAL = "#!JOURNAL";
 
     /**
      * Character used when printing a line
@@ -51,4 +54,27 @@ public class Config {
      * Random seed to use
      */
     public static long SEED = 6;
+
+    /**
+     * Whether to output the Metrics snapshot to System.err when the program exits
+     */
+    public static boolean METRICS_AT_EXIT = false;
+
+    /**
+     * Whether to share the repeated strings and transitions of the stories loaded, see
+     * StoryDeduplicator. Off by default, as it makes parsing a story slower
+     */
+    public static boolean DEDUPLICATE = false;
+
+    /**
+     * Whether AdventureStory.main leaves the room descriptions of a story in the story file until
+     * each room is first shown, see StoryParser.parseLazily
+     */
+    public static boolean LAZY_DESCRIPTIONS = false;
+
+    /**
+     * Filename of the SessionJournal AdventureStory.main records each game in, replacing the one
+     * of the game before, or null to record none
+     */
+    public static String JOURNAL_FILE = null;
 }
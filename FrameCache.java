@@ -0,0 +1,148 @@
+// Title: AdventureStory
+// Files: FrameCache.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently shown room frames, fully laid out, so that showing a room again does not wrap
+ * its text again.
+ *
+ * A frame is everything shown on entering a room: the two lines of the line character, the title
+ * and the description wrapped to the display width, and the transition menu. Wrapping goes
+ * through the text one character at a time, and stories often loop back to the same rooms (the
+ * chairs of Goldilocks.story.txt), so Renderer.frame keeps the last frames it laid out here, by
+ * room index, display width and line character, and only appends the cached text on a revisit.
+ *
+ * Each StoryGraph has its own cache, created with it, so a reloaded story never shows the frames
+ * of the last version. AdventureStory.displayFrame shares one cache between the stories main
+ * loads, so each frame also records the room array and the transition list it was laid out from,
+ * and a frame of another story at the same index, or of a room whose transitions were replaced,
+ * is a miss. The frames only hold the room arrays and transition lists weakly, so the cache does
+ * not keep the stories played earlier in memory.
+ *
+ * The cache keeps at most maxFrames frames and evicts the least recently shown one. All the
+ * methods are thread safe, and the frames are laid out outside of the lock.
+ */
+public class FrameCache {
+
+    /**
+     * Number of frames kept by the caches of the StoryGraphs and of AdventureStory
+     */
+    public static final int DEFAULT_FRAMES = 256;
+
+    /**
+     * A laid out frame.
+     */
+    private static class Frame {
+        final WeakReference<Object> source; // laid out from, compared by identity, or null
+        final WeakReference<Object> transitions; // the same
+        final String text;
+
+        Frame(Object source, Object transitions, String text) {
+            this.source = source == null ? null : new WeakReference<Object>(source);
+            this.transitions = transitions == null ? null : new WeakReference<Object>(transitions);
+            this.text = text;
+        }
+
+        /**
+         * @return true if the frame was laid out from source and transitions.
+         */
+        boolean from(Object source, Object transitions) {
+            return same(this.source, source) && same(this.transitions, transitions);
+        }
+
+        private static boolean same(WeakReference<Object> reference, Object value) {
+            return reference == null ? value == null : value != null && reference.get() == value;
+        }
+    }
+
+    private final LinkedHashMap<Long, Frame> frames; // oldest first
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxFrames The number of frames to keep, at least 1.
+     */
+    public FrameCache(int maxFrames) {
+        this.frames = new LinkedHashMap<Long, Frame>(maxFrames * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Frame> eldest) {
+                return size() > maxFrames;
+            }
+        };
+    }
+
+    /**
+     * Returns the frame of a room, if it was laid out recently with the same settings.
+     *
+     * @param room The room index.
+     * @param width The display width.
+     * @param lineChar The line character.
+     * @param source What the frame was laid out from, or null if the room index is enough.
+     * @param transitions The transitions it was laid out from, or null.
+     * @return The frame, or null if it is not cached.
+     */
+    public synchronized String get(int room, int width, char lineChar, Object source,
+        Object transitions) {
+        Frame frame = frames.get(key(room, width, lineChar));
+        if (frame == null || !frame.from(source, transitions)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return frame.text;
+    }
+
+    /**
+     * Caches the frame of a room, evicting the least recently shown frame if the cache is full.
+     *
+     * @param room The room index.
+     * @param width The display width.
+     * @param lineChar The line character.
+     * @param source What the frame was laid out from, or null if the room index is enough.
+     * @param transitions The transitions it was laid out from, or null.
+     * @param text The frame.
+     */
+    public synchronized void put(int room, int width, char lineChar, Object source,
+        Object transitions, String text) {
+        if (width >>> 16 == 0) { // wider frames are not cached, see key
+            frames.put(key(room, width, lineChar), new Frame(source, transitions, text));
+        }
+    }
+
+    /**
+     * @return The number of frames cached.
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return The number of frames found in the cache.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of frames that had to be laid out.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return The room in the high 32 bits, then the width and the line character in 16 bits
+     *         each. Widths of more than 16 bits never match, as they are never put.
+     */
+    private static Long key(int room, int width, char lineChar) {
+        return (long) room << 32 | (width & 0xffffL) << 16 | lineChar;
+    }
+}
@@ -0,0 +1,263 @@
+// Title: AdventureStory
+// Files: InputReader.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Reads the player's input for the prompts, the same as a Scanner but without regular
+ * expressions.
+ *
+ * Scanner matches every int and line against a regular expression and allocates a String for
+ * each token, which is most of the cost of a turn when the input is piped or scripted.
+ * InputReader decodes the input in blocks from a byte channel into a reusable char buffer, and
+ * finds the tokens and lines in it by hand. hasNextInt, nextInt, hasNextLine and nextLine behave
+ * exactly as those of a Scanner with its default delimiter and locale, so the prompts of
+ * AdventureStory read an InputReader the same way as a Scanner, with the same re-prompts:
+ *
+ * Method      | Behavior
+ * ------------------------------------------------------------------------------------------
+ * hasNextInt  | Skips whitespace, including new lines, without consuming it, and returns true
+ *             | if the next token (up to the next whitespace) is an int.
+ * nextInt     | Consumes the int hasNextInt found, but not the rest of its line.
+ * hasNextLine | Returns true unless the input has ended.
+ * nextLine    | Consumes and returns the rest of the line, without its line separator (\n,
+ *             | \r\n, \r, \u2028, \u2029 or \u0085).
+ *
+ * A token of an optional sign and ASCII digits, which is what players type, is parsed by hand.
+ * Any other token holding a digit (e.g. "1,000" or Unicode digits) is rare, and is parsed by a
+ * Scanner so that it is accepted exactly when a Scanner would accept it. As with a Scanner, an
+ * IOException while reading ends the input.
+ *
+ * An InputReader is not thread safe, use one per player.
+ */
+public class InputReader {
+
+    /**
+     * Bytes read from the channel at a time
+     */
+    public static final int BUFFER_BYTES = 8192;
+
+    private final ReadableByteChannel channel; // null if reading a String
+    private final ByteBuffer bytes; // read but not decoded yet
+    private final CharsetDecoder decoder;
+    private char[] chars; // decoded input, of which pos to limit is not consumed yet
+    private CharBuffer decoded; // wraps chars
+    private int pos;
+    private int limit;
+    private boolean ended; // all the input is in chars
+    private boolean token; // hasNextInt found a token
+    private int intOffset = -1; // chars from pos to the end of the int hasNextInt found, or -1
+    private int intValue;
+
+    /**
+     * Creates a reader of a stream in the default charset, the same as new Scanner(in).
+     *
+     * @param in The input, e.g. System.in.
+     */
+    public InputReader(InputStream in) {
+        this(Channels.newChannel(in), Charset.defaultCharset());
+    }
+
+    /**
+     * Creates a reader of a byte channel.
+     *
+     * @param channel The input.
+     * @param charset The charset of the input.
+     */
+    public InputReader(ReadableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.bytes = ByteBuffer.allocate(BUFFER_BYTES);
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = new char[BUFFER_BYTES];
+        this.decoded = CharBuffer.wrap(chars);
+    }
+
+    /**
+     * Creates a reader of a String, the same as new Scanner(text), e.g. for play scripts.
+     *
+     * @param text The input.
+     */
+    public InputReader(String text) {
+        this.channel = null;
+        this.bytes = null;
+        this.decoder = null;
+        this.chars = text.toCharArray();
+        this.limit = chars.length;
+        this.ended = true;
+    }
+
+    /**
+     * Returns whether the next token of the input is an int, without consuming any input.
+     *
+     * @return true if nextInt would return an int.
+     */
+    public boolean hasNextInt() {
+        if (intOffset >= 0) {
+            return true;
+        }
+        int start = 0;
+        int c = peek(start);
+        while (c >= 0 && Character.isWhitespace(c)) {
+            c = peek(++start);
+        }
+        token = c >= 0;
+        if (!token) {
+            return false;
+        }
+        boolean plain = true; // [-+]?[0-9]+
+        boolean digit = false; // the token has a digit
+        boolean negative = c == '-';
+        long value = 0;
+        int end = start;
+        if (c == '-' || c == '+') {
+            c = peek(++end);
+        }
+        for (; c >= 0 && !Character.isWhitespace(c); c = peek(++end)) {
+            if (c >= '0' && c <= '9') {
+                digit = true;
+                if (value <= Integer.MAX_VALUE + 1L) { // larger values are not ints anyway
+                    value = value * 10 + (c - '0');
+                }
+            } else {
+                plain = false;
+                digit |= Character.isDigit(c);
+            }
+        }
+        if (!digit) {
+            return false;
+        }
+        if (!plain) { // rare, so left to a Scanner rather than copying its rules
+            Scanner other = new Scanner(new String(chars, pos + start, end - start));
+            if (!other.hasNextInt()) {
+                return false;
+            }
+            intValue = other.nextInt();
+        } else if (value > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE)) {
+            return false;
+        } else {
+            intValue = (int) (negative ? -value : value);
+        }
+        intOffset = end;
+        return true;
+    }
+
+    /**
+     * Consumes the next token of the input as an int. The rest of its line is not consumed.
+     *
+     * @return The int.
+     * @throws InputMismatchException If the next token is not an int.
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public int nextInt() {
+        if (!hasNextInt()) {
+            throw token ? new InputMismatchException() : new NoSuchElementException();
+        }
+        pos += intOffset;
+        intOffset = -1;
+        return intValue;
+    }
+
+    /**
+     * @return true if there is input left, even an empty line.
+     */
+    public boolean hasNextLine() {
+        return peek(0) >= 0;
+    }
+
+    /**
+     * Consumes the rest of the current line and its line separator.
+     *
+     * @return The rest of the line, without the line separator.
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public String nextLine() {
+        int end = 0;
+        int c = peek(end);
+        if (c < 0) {
+            throw new NoSuchElementException("No line found");
+        }
+        while (c >= 0 && c != '\n' && c != '\r' && c != '\u2028' && c != '\u2029'
+            && c != '\u0085') {
+            c = peek(++end);
+        }
+        String line = new String(chars, pos, end);
+        pos += end;
+        intOffset = -1;
+        if (c >= 0) {
+            pos++;
+            if (c == '\r' && peek(0) == '\n') {
+                pos++;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Returns a char of the input without consuming it, reading more input if needed.
+     *
+     * @param offset The number of chars after the next one not consumed.
+     * @return The char, or -1 if the input ends before.
+     */
+    private int peek(int offset) {
+        while (pos + offset >= limit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return chars[pos + offset];
+    }
+
+    /**
+     * Decodes more input after limit, moving the chars not consumed to the start of the buffer
+     * and growing it when they fill it.
+     *
+     * @return false if the input has ended.
+     */
+    private boolean fill() {
+        if (ended) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(chars, pos, chars, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (chars.length - limit < BUFFER_BYTES / 2) { // e.g. a very long line
+            char[] larger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, larger, 0, limit);
+            chars = larger;
+            decoded = CharBuffer.wrap(chars);
+        }
+        int read;
+        try {
+            read = channel.read(bytes);
+        } catch (IOException e) { // the same as Scanner, the input ends
+            read = -1;
+        }
+        bytes.flip();
+        decoded.limit(chars.length).position(limit);
+        decoder.decode(bytes, decoded, read < 0);
+        if (read < 0) {
+            decoder.flush(decoded);
+            ended = true;
+        }
+        bytes.compact();
+        limit = decoded.position();
+        return true;
+    }
+}
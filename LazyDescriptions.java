@@ -0,0 +1,105 @@
+// Title: AdventureStory
+// Files: LazyDescriptions.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The room descriptions of a story, decoded from the mapped story file only when a room is shown.
+ *
+ * The descriptions are usually most of a story, and a player only ever sees a few of them, so
+ * keeping every one as a String for the whole game wastes most of the memory the story uses.
+ * StoryParser.parseLazily keeps only the position of the first line of each description and of
+ * the ";;;" line that ends it, 8 bytes per room. get decodes the lines between them, with exactly
+ * the same rules as parseStory, and keeps the last CACHE_ROOMS descriptions decoded, so going back
+ * and forth between rooms does not decode them again.
+ *
+ * The mapped file is read only and the file must not be changed while the story is played, the
+ * same as for any mapped story. All the methods are thread safe, and the descriptions are decoded
+ * outside of the lock, so that sessions sharing a StoryGraph do not wait for each other.
+ */
+public class LazyDescriptions {
+
+    /**
+     * Number of recently shown descriptions kept
+     */
+    public static final int CACHE_ROOMS = 64;
+
+    private final ByteBuffer data; // the mapped story file
+    private final int[] starts; // positions of the first description lines
+    private final int[] ends; // positions of the ";;;" lines, -1 for a room without one
+    private final LinkedHashMap<Integer, String> recent; // room -> description, oldest first
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates the descriptions of a lazily parsed story.
+     *
+     * @param data The contents of the story file.
+     * @param starts The position of the first description line of each room.
+     * @param ends The position of the ";;;" line of each room, or -1 if it has none.
+     * @param cacheRooms The number of decoded descriptions to keep, at least 1.
+     */
+    LazyDescriptions(ByteBuffer data, int[] starts, int[] ends, int cacheRooms) {
+        this.data = data;
+        this.starts = starts;
+        this.ends = ends;
+        this.recent = new LinkedHashMap<Integer, String>(cacheRooms * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > cacheRooms;
+            }
+        };
+    }
+
+    /**
+     * Returns the description of a room, decoding it from the file unless it was shown recently.
+     *
+     * @param room The room index.
+     * @return The description, the same as parseStory's ROOM_DESC, or null if the room has no
+     *         ";;;" line.
+     */
+    public String get(int room) {
+        synchronized (this) {
+            String desc = recent.get(room);
+            if (desc != null) {
+                hits++;
+                return desc;
+            }
+            misses++;
+        }
+        if (ends[room] < 0) {
+            return null;
+        }
+        String desc = StoryParser.description(data, starts[room], ends[room]);
+        synchronized (this) {
+            recent.put(room, desc);
+        }
+        return desc;
+    }
+
+    /**
+     * @return The number of rooms.
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * @return The number of descriptions found in the cache.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of descriptions decoded from the file.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,229 @@
+// Title: AdventureStory
+// Files: Metrics.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters and latency histograms of the game, and the Flight Recorder events it emits.
+ *
+ * Metric             | Measured in
+ * ------------------------------------------------------------------------------------------
+ * PARSES, PARSE_NANOS| AdventureStory.parseFile, with the rooms and transitions loaded
+ * PARSE_ERRORS       | The "Error parsing file on line" messages output, by AdventureStory,
+ *                    | StoryParser or from the StoryCache
+ * TURNS, TURN_NANOS  | Each turn of main and Session: showing the room and choosing a weighted
+ *                    | transition, but not waiting for the player
+ * PROB_TRANS         | Both probTrans methods
+ * FRAMES, RENDERED   | Renderer.flush: the writes and the characters written
+ * DEDUPLICATED_BYTES | StoryParser: the memory saved by StoryDeduplicator, estimated
+ *
+ * Counters are LongAdders and histograms count into 64 buckets of powers of two, so recording
+ * from many sessions at once does not contend and costs a few nanoseconds. snapshot returns all
+ * of them as text, and the snapshot is output to System.err when the game exits if
+ * Config.METRICS_AT_EXIT is true.
+ *
+ * The ParseEvent and TurnEvent Flight Recorder events are committed at the same places. They cost
+ * next to nothing unless a recording is running, e.g. with
+ * java -XX:StartFlightRecording=filename=game.jfr AdventureStory, or with jcmd pid JFR.start and
+ * jcmd pid JFR.dump to take a recording of a running game on demand.
+ */
+public class Metrics {
+
+    /**
+     * A histogram of durations in nanoseconds, in buckets of powers of two: bucket b counts the
+     * durations from 2^(b-1) to 2^b - 1.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Counts a duration.
+         *
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * @return The number of durations counted.
+         */
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * Returns an upper bound of a percentile of the durations.
+         *
+         * @param percent The percentile, from 0 to 100.
+         * @return The largest duration of the bucket the percentile falls in, or 0 if nothing has
+         *         been counted.
+         */
+        public long percentile(double percent) {
+            long counted = 0;
+            for (int b = 0; b < 64; b++) {
+                counted += buckets.get(b);
+            }
+            long rank = (long) Math.ceil(counted * percent / 100);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(b == 0 ? 0 : (1L << b) - 1, max.get());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return "count, mean, p50, p99, max" with the durations in microseconds.
+         */
+        @Override
+        public String toString() {
+            long n = count.sum();
+            return String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                n, n == 0 ? 0.0 : total.sum() / 1e3 / n, percentile(50) / 1e3,
+                percentile(99) / 1e3, max.get() / 1e3);
+        }
+    }
+
+    /**
+     * Flight Recorder event of a call to AdventureStory.parseFile.
+     */
+    @Name("AdventureStory.Parse")
+    @Label("Parse Story")
+    @Category("AdventureStory")
+    @Description("Loading a story, bookmark or compiled story file")
+    public static class ParseEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Rooms")
+        int rooms;
+
+        @Label("Transitions")
+        int transitions;
+
+        @Label("Parsed")
+        boolean parsed;
+    }
+
+    /**
+     * Flight Recorder event of a turn of the game, not counting the time waiting for the player.
+     */
+    @Name("AdventureStory.Turn")
+    @Label("Turn")
+    @Category("AdventureStory")
+    @Description("Showing a room and choosing a weighted transition")
+    public static class TurnEvent extends Event {
+        @Label("Room")
+        String room;
+    }
+
+    public static final LongAdder PARSES = new LongAdder();
+    public static final LongAdder ROOMS_LOADED = new LongAdder();
+    public static final LongAdder TRANSITIONS_LOADED = new LongAdder();
+    public static final Histogram PARSE_NANOS = new Histogram();
+    public static final LongAdder PARSE_ERRORS = new LongAdder();
+    public static final LongAdder TURNS = new LongAdder();
+    public static final Histogram TURN_NANOS = new Histogram();
+    public static final LongAdder PROB_TRANS = new LongAdder();
+    public static final LongAdder FRAMES = new LongAdder();
+    public static final LongAdder RENDERED = new LongAdder(); // characters
+    public static final LongAdder DEDUPLICATED_BYTES = new LongAdder();
+
+    static {
+        if (Config.METRICS_AT_EXIT) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(System.err)));
+        }
+    }
+
+    /**
+     * Counts a call to parseFile and commits its event.
+     *
+     * @param event The event begun when parseFile was called.
+     * @param start The System.nanoTime() when parseFile was called.
+     * @param file The name of the file.
+     * @param rooms The number of rooms loaded.
+     * @param transitions The number of transitions loaded.
+     * @param parsed The result of parseFile.
+     */
+    static void parsed(ParseEvent event, long start, String file, int rooms, int transitions,
+        boolean parsed) {
+        PARSE_NANOS.record(System.nanoTime() - start);
+        PARSES.increment();
+        ROOMS_LOADED.add(rooms);
+        TRANSITIONS_LOADED.add(transitions);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.rooms = rooms;
+            event.transitions = transitions;
+            event.parsed = parsed;
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts a turn and commits its event.
+     *
+     * @param event The event begun when the turn started.
+     * @param start The System.nanoTime() when the turn started.
+     * @param room The id of the room of the turn.
+     */
+    static void turned(TurnEvent event, long start, String room) {
+        TURN_NANOS.record(System.nanoTime() - start);
+        TURNS.increment();
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return The current values of all the metrics, one per line.
+     */
+    public static String snapshot() {
+        String newLine = System.lineSeparator();
+        return "parses: " + PARSES.sum() + newLine
+            + "rooms loaded: " + ROOMS_LOADED.sum() + newLine
+            + "transitions loaded: " + TRANSITIONS_LOADED.sum() + newLine
+            + "parse latency: " + PARSE_NANOS + newLine
+            + "parse errors: " + PARSE_ERRORS.sum() + newLine
+            + "turns: " + TURNS.sum() + newLine
+            + "turn latency: " + TURN_NANOS + newLine
+            + "probTrans calls: " + PROB_TRANS.sum() + newLine
+            + "frames rendered: " + FRAMES.sum() + newLine
+            + "characters rendered: " + RENDERED.sum() + newLine
+            + "bytes deduplicated: " + DEDUPLICATED_BYTES.sum() + newLine;
+    }
+
+    /**
+     * Outputs the snapshot.
+     *
+     * @param out The stream to write to.
+     */
+    public static void dump(PrintStream out) {
+        out.print(snapshot());
+        out.flush();
+    }
+}
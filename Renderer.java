@@ -0,0 +1,335 @@
+// Title: AdventureStory
+// Files: Renderer.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+
+/**
+ * Builds the text output of the game in a reusable buffer and writes it with a single call.
+ *
+ * Printing a room one character at a time costs a synchronized PrintStream call per character.
+ * A Renderer instead appends the lines, titles, descriptions and transitions of a frame to its
+ * buffer, using exactly the same formatting rules as the AdventureStory print methods, and
+ * flush writes the whole frame at once. The buffer is cleared but kept by flush, so rendering
+ * frame after frame does not allocate a new buffer each time.
+ *
+ * flush does not turn the frame into a String either: it copies the frame into a reused char
+ * array, encodes it into a reused byte array and writes the bytes. It encodes in the default
+ * charset, as System.out and PrintStreams created without a charset do, or in the charset given
+ * to encoding, for a PrintStream created with another one. Characters the charset cannot encode
+ * are replaced, the same as print does.
+ *
+ * A Renderer created with a SessionConfig formats rooms with the settings of its session, so
+ * sessions with different display widths can render at the same time.
+ *
+ * frame appends a whole room frame, the room and its transition menu, from a FrameCache when the
+ * room was shown recently with the same display width and line character.
+ *
+ * A Renderer is not thread safe. Use one per thread (AdventureStory keeps one per thread for its
+ * static print methods) or one per session.
+ */
+public class Renderer {
+
+    private static final String NEW_LINE = System.lineSeparator(); // what println outputs
+
+    private final StringBuilder frame; // output not yet written
+    private final SessionConfig config; // null to read Config on every frame
+    private CharsetEncoder encoder; // of the charset of the stream flushed to
+    private CharBuffer chars; // the frame being written, copied from frame
+    private ByteBuffer bytes; // the frame being written, encoded
+
+    /**
+     * Creates a renderer with an empty buffer, that reads Config.DISPLAY_WIDTH and
+     * Config.LINE_CHAR whenever it appends a room, as the AdventureStory print methods do.
+     */
+    public Renderer() {
+        this(null);
+    }
+
+    /**
+     * Creates a renderer with an empty buffer, that appends rooms with the display width and line
+     * character of a session.
+     *
+     * @param config The settings of the session, or null to read Config.
+     */
+    public Renderer(SessionConfig config) {
+        this.frame = new StringBuilder(1024);
+        this.config = config;
+        this.chars = CharBuffer.allocate(1024);
+        this.bytes = ByteBuffer.allocate(1024);
+        encoding(Charset.defaultCharset());
+    }
+
+    /**
+     * Sets the charset flush encodes the frames in, which must be the charset of the PrintStream
+     * flushed to.
+     *
+     * @param charset The charset, the default charset if not called.
+     * @return This renderer.
+     */
+    public Renderer encoding(Charset charset) {
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return this;
+    }
+
+    /**
+     * Appends a new line, the same as System.out.println("").
+     *
+     * @return This renderer.
+     */
+    public Renderer newLine() {
+        frame.append(NEW_LINE);
+        return this;
+    }
+
+    /**
+     * Appends a String as is.
+     *
+     * @param val The string to append.
+     * @return This renderer.
+     */
+    public Renderer text(String val) {
+        frame.append(val);
+        return this;
+    }
+
+    /**
+     * Appends len copies of c, following the rules of AdventureStory.printLine.
+     *
+     * @param len The number of times to append c.
+     * @param c The character to append.
+     * @return This renderer.
+     */
+    public Renderer line(int len, char c) {
+        for (int i = 0; i < len; i++) {
+            frame.append(c);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a String formatted into lines of length no more than len characters, following the
+     * rules of AdventureStory.printString.
+     *
+     * @param len The maximum number of characters per line.
+     * @param val The string to append.
+     * @return This renderer.
+     */
+    public Renderer wrapped(int len, String val) {
+        int lineCounter = 0; // keeps track of char for width
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            if (c == '\n') { // a new line in the text resets the counter
+                frame.append(NEW_LINE);
+                lineCounter = 0;
+                continue;
+            }
+            if (lineCounter == len - 1) { // checks length
+                if (Character.isWhitespace(c)) {
+                    frame.append(NEW_LINE);
+                    lineCounter = 0;
+                } else if (!Character.isLetterOrDigit(c)) {
+                    frame.append(c).append(NEW_LINE);
+                    lineCounter = 0;
+                } else if (Character.isWhitespace(val.charAt(i - 1))) {
+                    frame.append(NEW_LINE).append(c);
+                    lineCounter = 1;
+                } else { // hyphenates the word
+                    frame.append('-').append(NEW_LINE).append(c);
+                    lineCounter = 1;
+                }
+            } else {
+                frame.append(c);
+                lineCounter += 1;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the title and description of a room between two lines of Config.LINE_CHAR, the same
+     * as AdventureStory.displayRoom.
+     *
+     * @param room The room details, see AdventureStory.parseStory.
+     * @return This renderer.
+     */
+    public Renderer room(String[] room) {
+        return room(room[Config.ROOM_TITLE], room[Config.ROOM_DESC]);
+    }
+
+    /**
+     * Appends a room title and description between two lines of Config.LINE_CHAR, the same as
+     * AdventureStory.displayRoom, or with the settings of the session given to the constructor.
+     *
+     * @param title The room title.
+     * @param desc The room description.
+     * @return This renderer.
+     */
+    public Renderer room(String title, String desc) {
+        int width = config == null ? Config.DISPLAY_WIDTH : config.displayWidth();
+        char lineChar = config == null ? Config.LINE_CHAR : config.lineChar();
+        line(width, lineChar).newLine();
+        wrapped(width, title).newLine().newLine();
+        wrapped(width, desc).newLine();
+        return line(width, lineChar).newLine();
+    }
+
+    /**
+     * Appends the transition menu of a room, the same as AdventureStory.displayTransitions:
+     * nothing for a terminal room, otherwise one "idx) transDesc" line per transition when the
+     * transitions are not weighted.
+     *
+     * @param curTrans The transitions of the room, see AdventureStory.parseStory.
+     * @return This renderer.
+     */
+    public Renderer transitions(ArrayList<String[]> curTrans) {
+        String[] first = curTrans.get(0);
+        if (first[Config.TRAN_DESC].equals(Config.SUCCESS)
+            || first[Config.TRAN_DESC].equals(Config.FAIL)) {
+            return this;
+        }
+        if (first[Config.TRAN_PROB] == null) {
+            for (int j = 0; j < curTrans.size(); j++) {
+                frame.append(j).append(") ").append(curTrans.get(j)[Config.TRAN_DESC]);
+                frame.append(NEW_LINE);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the transition menu of a room of a compiled story, the same as
+     * transitions(ArrayList) does for the parsed story.
+     *
+     * @param graph The compiled story.
+     * @param room The room index.
+     * @return This renderer.
+     */
+    public Renderer transitions(StoryGraph graph, int room) {
+        int first = graph.firstTransition(room);
+        int end = graph.endTransition(room);
+        if (first == end || graph.isTerminal(room) || graph.weight(first) != StoryGraph.NO_WEIGHT) {
+            return this;
+        }
+        for (int t = first; t < end; t++) {
+            frame.append(t - first).append(") ").append(graph.transitionDesc(t));
+            frame.append(NEW_LINE);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a room of a compiled story and its transition menu, the same as room followed by
+     * transitions, from the frames of the graph if the room was laid out recently.
+     *
+     * @param graph The compiled story.
+     * @param room The room index.
+     * @return This renderer.
+     */
+    public Renderer frame(StoryGraph graph, int room) {
+        int width = config == null ? Config.DISPLAY_WIDTH : config.displayWidth();
+        char lineChar = config == null ? Config.LINE_CHAR : config.lineChar();
+        String cached = graph.frames().get(room, width, lineChar, null, null);
+        if (cached != null) {
+            frame.append(cached);
+            return this;
+        }
+        int start = frame.length();
+        room(graph.roomTitle(room), graph.roomDesc(room)).transitions(graph, room);
+        graph.frames().put(room, width, lineChar, null, null, frame.substring(start));
+        return this;
+    }
+
+    /**
+     * Appends a room of a parsed story and its transition menu, the same as room followed by
+     * transitions, from a cache if the room was laid out recently. The cache checks that the
+     * frame was laid out from the same room array and transition list, so it can be shared
+     * between stories.
+     *
+     * @param frames The cache.
+     * @param index The index of the room in rooms and trans, see AdventureStory.parseStory.
+     * @param room The room details.
+     * @param curTrans The transitions of the room.
+     * @return This renderer.
+     */
+    public Renderer frame(FrameCache frames, int index, String[] room,
+        ArrayList<String[]> curTrans) {
+        return frame(frames, index, room, null, curTrans);
+    }
+
+    /**
+     * Appends a room of a story parsed with lazy descriptions and its transition menu, the same
+     * as frame(frames, index, room, curTrans), but with the description of the room decoded from
+     * the story file. It is only decoded when the frame is not cached, and is not kept in room.
+     *
+     * @param frames The cache.
+     * @param index The index of the room in rooms and trans, see AdventureStory.parseStory.
+     * @param room The room details, whose description is ignored if descriptions is not null.
+     * @param descriptions The descriptions of the story, see StoryParser.parseLazily, or null if
+     *                     room has its description.
+     * @param curTrans The transitions of the room.
+     * @return This renderer.
+     */
+    public Renderer frame(FrameCache frames, int index, String[] room,
+        LazyDescriptions descriptions, ArrayList<String[]> curTrans) {
+        int width = config == null ? Config.DISPLAY_WIDTH : config.displayWidth();
+        char lineChar = config == null ? Config.LINE_CHAR : config.lineChar();
+        String cached = frames.get(index, width, lineChar, room, curTrans);
+        if (cached != null) {
+            frame.append(cached);
+            return this;
+        }
+        int start = frame.length();
+        room(room[Config.ROOM_TITLE],
+            descriptions == null ? room[Config.ROOM_DESC] : descriptions.get(index))
+            .transitions(curTrans);
+        frames.put(index, width, lineChar, room, curTrans, frame.substring(start));
+        return this;
+    }
+
+    /**
+     * @return The number of characters waiting to be written.
+     */
+    public int length() {
+        return frame.length();
+    }
+
+    /**
+     * Writes everything appended since the last flush to out in a single call and clears the
+     * buffer.
+     *
+     * @param out The stream to write to.
+     */
+    public void flush(PrintStream out) {
+        int len = frame.length();
+        if (len == 0) {
+            return;
+        }
+        if (chars.capacity() < len) { // grows once to the largest frame
+            chars = CharBuffer.allocate(Math.max(len, chars.capacity() * 2));
+        }
+        int maxBytes = (int) Math.ceil(len * (double) encoder.maxBytesPerChar());
+        if (bytes.capacity() < maxBytes) { // so the frame is encoded in one pass
+            bytes = ByteBuffer.allocate(Math.max(maxBytes, bytes.capacity() * 2));
+        }
+        frame.getChars(0, len, chars.array(), 0);
+        chars.clear().limit(len);
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(chars, bytes, true);
+        encoder.flush(bytes);
+        out.write(bytes.array(), 0, bytes.position());
+        Metrics.FRAMES.increment();
+        Metrics.RENDERED.add(len);
+        frame.setLength(0);
+    }
+}
@@ -0,0 +1,171 @@
+// Title: AdventureStory
+// Files: RoomIndex.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index from room id to position in a rooms ArrayList, so that getRoomIndex and
+ * getRoomDetails resolve an id in constant time instead of scanning every room on each turn.
+ *
+ * The index of a story is built once by parseStory after the rooms have been read. Every rooms
+ * ArrayList has its own index, found by the identity of the ArrayList, so lookups that alternate
+ * between two stories, or sessions of different stories on different threads, do not rebuild
+ * each other's indexes. The indexes only hold their ArrayLists weakly, and are dropped with them.
+ * A lookup against an ArrayList without an index, or that has grown or shrunk since its index was
+ * built, builds one, so callers that build their own rooms by hand keep working.
+ *
+ * Each room found through the index is checked to still have the id looked up, and an id that is
+ * no longer at its position is searched for from the start of the rooms, after which the index is
+ * rebuilt. An id that is not in the index is searched for once, and is then remembered as missing
+ * until the index is rebuilt, so that looking up a room that does not exist, as a transition to a
+ * missing room does on every turn, stays constant time. So rooms replaced in place, with set or by
+ * changing their id, give the same results as a linear search, except in two cases: a room given
+ * the id of a later room is not seen until the index is rebuilt, as the later room still has the
+ * id, and neither is a room given an id already looked up and found missing. Callers that do that
+ * should call rebuild.
+ *
+ * When a room id appears more than once, the index of the first room with that id is kept, which
+ * matches the result of the original linear search.
+ */
+public class RoomIndex {
+
+    /**
+     * The key of an index, the identity of its rooms ArrayList, cleared when the ArrayList is
+     * garbage collected.
+     */
+    private static class Key extends WeakReference<ArrayList<String[]>> {
+        private final int hash;
+
+        Key(ArrayList<String[]> rooms, ReferenceQueue<ArrayList<String[]>> queue) {
+            super(rooms, queue);
+            this.hash = System.identityHashCode(rooms);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            ArrayList<String[]> rooms = get();
+            return other instanceof Key && rooms != null && rooms == ((Key) other).get();
+        }
+    }
+
+    private static final HashMap<Key, RoomIndex> INDEXES = new HashMap<Key, RoomIndex>(); // locked
+    private static final ReferenceQueue<ArrayList<String[]>> CLEARED =
+        new ReferenceQueue<ArrayList<String[]>>();
+    private static final ThreadLocal<RoomIndex> LAST = new ThreadLocal<RoomIndex>(); // per thread
+
+    private final Key key; // the rooms this index was built from
+    private final int size; // rooms.size() when the index was built
+    private final HashMap<String, Integer> positions; // room id -> index in rooms
+    private final Set<String> missing = ConcurrentHashMap.newKeySet(); // ids searched, not found
+
+    /**
+     * Builds the index for the given rooms.
+     *
+     * @param rooms The ArrayList of rooms to index.
+     */
+    private RoomIndex(ArrayList<String[]> rooms) {
+        this.key = new Key(rooms, CLEARED);
+        this.size = rooms.size();
+        this.positions = new HashMap<String, Integer>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) { // first occurrence of an id wins
+            positions.putIfAbsent(rooms.get(i)[Config.ROOM_ID], i);
+        }
+    }
+
+    /**
+     * Builds a new index for rooms, replacing the one it had. Called after the rooms have been
+     * (re)loaded.
+     *
+     * @param rooms The ArrayList of rooms to index.
+     */
+    public static void rebuild(ArrayList<String[]> rooms) {
+        RoomIndex index = new RoomIndex(rooms);
+        synchronized (INDEXES) {
+            for (Object cleared; (cleared = CLEARED.poll()) != null;) { // drops unused rooms
+                INDEXES.remove(cleared);
+            }
+            INDEXES.put(index.key, index);
+        }
+        LAST.set(index);
+    }
+
+    /**
+     * Returns the index of rooms, building it if rooms has none or has grown or shrunk since.
+     */
+    private static RoomIndex of(ArrayList<String[]> rooms) {
+        RoomIndex index = LAST.get(); // the same rooms as the last lookup of the thread, mostly
+        if (index == null || index.key.get() != rooms) {
+            Key key = new Key(rooms, null);
+            synchronized (INDEXES) {
+                index = INDEXES.get(key);
+            }
+        }
+        if (index == null || index.size != rooms.size()) {
+            rebuild(rooms);
+            return LAST.get();
+        }
+        LAST.set(index);
+        return index;
+    }
+
+    /**
+     * Returns the index of the room with the given id, the same as searching rooms from the start.
+     *
+     * @param rooms The ArrayList of rooms.
+     * @param id The room id to search for.
+     * @return The index of the room in rooms, otherwise -1.
+     */
+    public static int indexOf(ArrayList<String[]> rooms, String id) {
+        RoomIndex index = of(rooms);
+        Integer position = index.positions.get(id);
+        if (position != null && rooms.get(position)[Config.ROOM_ID].equals(id)) {
+            return position;
+        }
+        if (position == null && (id == null || index.missing.contains(id))) {
+            return -1; // searched for since the index was built, or never equal to a room id
+        }
+        int found = -1; // not indexed, or replaced in place since
+        for (int i = 0; i < rooms.size() && found < 0; i++) {
+            if (rooms.get(i)[Config.ROOM_ID].equals(id)) {
+                found = i;
+            }
+        }
+        if (found >= 0 || position != null) { // the rooms have changed
+            rebuild(rooms);
+        } else {
+            index.missing.add(id);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the room details of the room with the given id.
+     *
+     * @param rooms The ArrayList of rooms.
+     * @param id The room id to search for.
+     * @return The String array of the room, otherwise null.
+     */
+    public static String[] details(ArrayList<String[]> rooms, String id) {
+        int position = indexOf(rooms, id);
+        if (position < 0) {
+            return null;
+        }
+        return rooms.get(position);
+    }
+}
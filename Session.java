@@ -0,0 +1,342 @@
+// Title: AdventureStory
+// Files: Session.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * One player playing one game of a story.
+ *
+ * A Session holds everything that belongs to a single player: the current room, the Random used
+ * for the weighted transitions, where the player's input is read from and where the output is
+ * written. The story itself is a StoryGraph, which is never modified, so any number of sessions
+ * can play the same graph at the same time without copying it. See SessionScheduler to run many
+ * sessions at once.
+ *
+ * A SessionConfig gives a session its own display width, line character and seed, so sessions
+ * with different settings can play at the same time. Sessions created without one take the
+ * values of Config when they are created.
+ *
+ * bookmarkTo makes the session save its bookmarks in a BookmarkStore rather than in files.
+ *
+ * journalTo makes the session record its turns in a SessionJournal, to replay the game later.
+ *
+ * autoChoose makes the session choose the transitions itself at random, printing each choice
+ * after the prompt, for unattended play, see BatchPlayer.
+ *
+ * A session created with a StoryHandle plays the current version of a story that may be reloaded
+ * during the game: each turn finds the current room by id in the graph the handle holds then.
+ *
+ * play follows the game loop of AdventureStory.main for one game, with the same output: the room
+ * and its transitions are shown, weighted rooms move on by themselves, and otherwise the player
+ * chooses a transition, -1 to quit or -2 to bookmark the current room. Unlike main, a session
+ * ends when its input ends instead of throwing, and does not ask to play again.
+ *
+ * A Session must only be played by one thread at a time.
+ */
+public class Session implements Runnable {
+
+    private final StoryHandle story; // shared by all the sessions of the story
+    private final String storyFile; // written in bookmarks
+    private final InputReader in;
+    private final PrintStream out;
+    private final SessionConfig config;
+    private final Random rand;
+    private final Renderer renderer;
+    private Random choices; // chooses for the player if not null, see autoChoose
+    private BookmarkStore bookmarks; // where bookmarks are saved, files if null
+    private String player; // whose bookmarks they are
+    private SessionJournal journal; // records the turns if not null
+    private long maxTurns = Long.MAX_VALUE;
+    private long turns; // rooms shown so far
+    private String curRoom; // id of the current room
+    private boolean quit; // the player confirmed quitting
+    private String result; // Config.SUCCESS, Config.FAIL or null once play has returned
+
+    /**
+     * Creates a session starting in a room.
+     *
+     * @param graph The story to play.
+     * @param storyFile The filename of the story, saved in bookmarks.
+     * @param startRoom The id of the first room, e.g. graph.roomId(0).
+     * @param in The player's input.
+     * @param out Where the player's output is written.
+     * @param rand The Random class from which to draw the weighted transitions.
+     */
+    public Session(StoryGraph graph, String storyFile, String startRoom, InputReader in,
+        PrintStream out, Random rand) {
+        this(StoryHandle.of(graph), storyFile, startRoom, in, out, rand);
+    }
+
+    /**
+     * Creates a session of a story that may be reloaded, starting in a room.
+     *
+     * @param story The story to play.
+     * @param storyFile The filename of the story, saved in bookmarks.
+     * @param startRoom The id of the first room, e.g. story.graph().roomId(0).
+     * @param in The player's input.
+     * @param out Where the player's output is written.
+     * @param rand The Random class from which to draw the weighted transitions.
+     */
+    public Session(StoryHandle story, String storyFile, String startRoom, InputReader in,
+        PrintStream out, Random rand) {
+        this(story, storyFile, startRoom, in, out, SessionConfig.defaults(), rand);
+    }
+
+    /**
+     * Creates a session with its own settings, starting in a room. The weighted transitions are
+     * drawn from a new Random of the seed of the settings.
+     *
+     * @param story The story to play.
+     * @param storyFile The filename of the story, saved in bookmarks.
+     * @param startRoom The id of the first room, e.g. story.graph().roomId(0).
+     * @param in The player's input.
+     * @param out Where the player's output is written.
+     * @param config The display width, line character and seed of the session.
+     */
+    public Session(StoryHandle story, String storyFile, String startRoom, InputReader in,
+        PrintStream out, SessionConfig config) {
+        this(story, storyFile, startRoom, in, out, config, config.random());
+    }
+
+    private Session(StoryHandle story, String storyFile, String startRoom, InputReader in,
+        PrintStream out, SessionConfig config, Random rand) {
+        this.story = story;
+        this.storyFile = storyFile;
+        this.curRoom = startRoom;
+        this.in = in;
+        this.out = out;
+        this.config = config;
+        this.rand = rand;
+        this.renderer = new Renderer(config);
+    }
+
+    /**
+     * Makes the session choose the transitions of the rooms that are not weighted at random,
+     * instead of reading the player's input, and end after a number of turns.
+     *
+     * @param choices The Random class from which to draw the choices.
+     * @param maxTurns The number of rooms to show before giving up.
+     * @return This session.
+     */
+    public Session autoChoose(Random choices, long maxTurns) {
+        this.choices = choices;
+        this.maxTurns = maxTurns;
+        return this;
+    }
+
+    /**
+     * Sets the charset of the output of the session, when it is not the default charset.
+     *
+     * @param charset The charset out was created with.
+     * @return This session.
+     */
+    public Session encoding(Charset charset) {
+        renderer.encoding(charset);
+        return this;
+    }
+
+    /**
+     * Makes the session save its bookmarks in a BookmarkStore, under the name the player enters,
+     * instead of in a file of that name.
+     *
+     * @param bookmarks The store.
+     * @param player The player the bookmarks are saved for.
+     * @return This session.
+     */
+    public Session bookmarkTo(BookmarkStore bookmarks, String player) {
+        this.bookmarks = bookmarks;
+        this.player = player;
+        return this;
+    }
+
+    /**
+     * Makes the session record every turn in a journal, which play flushes when it returns.
+     *
+     * @param journal The journal, started at the first room of the session.
+     * @return This session.
+     */
+    public Session journalTo(SessionJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Plays the game until it is won, lost or quit, or the input ends.
+     *
+     * @return Config.SUCCESS if the adventure was completed, Config.FAIL if it was failed or quit,
+     *         or null if the input ended first, a transition led to a room that does not exist or
+     *         the session gave up, see autoChoose.
+     */
+    public String play() {
+        try {
+            return loop();
+        } finally {
+            if (journal != null) {
+                journal.flush();
+            }
+        }
+    }
+
+    /**
+     * The game loop of play.
+     */
+    private String loop() {
+        try {
+            while (turns < maxTurns) {
+                turns++;
+                Metrics.TurnEvent turn = new Metrics.TurnEvent();
+                turn.begin();
+                long turnStart = System.nanoTime();
+                StoryGraph graph = story.graph(); // the same version for the whole turn
+                int room = graph.indexOf(curRoom);
+                if (room < 0) {
+                    return null;
+                }
+                if (journal != null) {
+                    journal.room(room);
+                }
+                try {
+                    renderer.frame(graph, room); // laid out once per width, see FrameCache
+                } finally {
+                    renderer.flush(out);
+                }
+                if (graph.isTerminal(room)) {
+                    Metrics.turned(turn, turnStart, curRoom);
+                    int first = graph.firstTransition(room);
+                    return end(graph.target(first) == StoryGraph.TARGET_SUCCESS ? Config.SUCCESS
+                        : Config.FAIL);
+                }
+                int tran = -1;
+                int total = graph.totalWeight(room);
+                if (total > 0) { // the same as graph.pick, keeping the value drawn
+                    int drawn = rand.nextInt(total);
+                    tran = graph.transitionAt(room, drawn);
+                    if (journal != null) {
+                        journal.drawn(drawn);
+                    }
+                }
+                Metrics.PROB_TRANS.increment();
+                Metrics.turned(turn, turnStart, curRoom); // not counting the time of the player
+                if (tran < 0) {
+                    tran = choose(graph, room);
+                    if (journal != null && quit) {
+                        journal.quit();
+                    } else if (journal != null) {
+                        journal.chose(tran < 0 ? -1 : tran - graph.firstTransition(room));
+                    }
+                    if (tran < 0) {
+                        if (quit) {
+                            return end(Config.FAIL);
+                        }
+                        continue; // same room again
+                    }
+                }
+                int target = graph.target(tran);
+                if (target == StoryGraph.TARGET_SUCCESS) {
+                    return end(Config.SUCCESS);
+                } else if (target == StoryGraph.TARGET_FAIL) {
+                    return end(Config.FAIL);
+                }
+                curRoom = graph.targetId(tran);
+            }
+            return null;
+        } catch (NoSuchElementException e) { // the player has gone
+            return null;
+        }
+    }
+
+    /**
+     * Plays the game, see play.
+     */
+    @Override
+    public void run() {
+        play();
+    }
+
+    /**
+     * @return The id of the current room.
+     */
+    public String currentRoom() {
+        return curRoom;
+    }
+
+    /**
+     * @return The settings of the session.
+     */
+    public SessionConfig config() {
+        return config;
+    }
+
+    /**
+     * @return The number of rooms shown so far.
+     */
+    public long turns() {
+        return turns;
+    }
+
+    /**
+     * @return Config.SUCCESS or Config.FAIL once the game has ended that way, otherwise null.
+     */
+    public String result() {
+        return result;
+    }
+
+    /**
+     * Prompts for a transition of the current room, handling quitting and bookmarking.
+     *
+     * @return The index of the chosen transition, or -1 if the player did not choose one.
+     */
+    private int choose(StoryGraph graph, int room) {
+        if (choices != null) {
+            if (graph.transitionCount(room) == 0) { // stuck, gives up
+                turns = maxTurns;
+                return -1;
+            }
+            int choice = choices.nextInt(graph.transitionCount(room));
+            out.println("Choose: " + choice);
+            return graph.firstTransition(room) + choice;
+        }
+        int choice = AdventureStory.promptInt(in, out, "Choose: ", -2,
+            graph.transitionCount(room) - 1);
+        if (choice == -1) {
+            char confirm =
+                AdventureStory.promptChar(in, out, "Are you sure you want to quit the adventure? ");
+            quit = confirm == 'y';
+            return -1;
+        } else if (choice == -2) {
+            String fileName = AdventureStory.promptString(in, out, "Bookmarking current location: "
+                + curRoom + ". " + "Enter bookmark filename: ");
+            if (fileName == null) {
+                throw new NoSuchElementException("No bookmark filename");
+            }
+            boolean saved = bookmarks != null ? bookmarks.save(player, fileName, storyFile, curRoom)
+                : AdventureStory.saveBookmark(storyFile, curRoom, fileName);
+            if (saved) {
+                out.println("Bookmark saved in " + fileName);
+            } else {
+                out.println("Error saving bookmark in " + fileName);
+            }
+            return -1;
+        }
+        return graph.firstTransition(room) + choice;
+    }
+
+    /**
+     * Outputs the end of game message and records the result.
+     */
+    private String end(String result) {
+        if (result.equals(Config.SUCCESS)) {
+            out.println("Congratulations! You successfully completed the adventure!");
+        } else {
+            out.println("You failed to complete the adventure. Better luck next time!");
+        }
+        this.result = result;
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+// Title: AdventureStory
+// Files: SessionConfig.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.util.Random;
+
+/**
+ * The settings of one player's session, which never change once created.
+ *
+ * Config holds a single display width, line character and seed in mutable static fields, read on
+ * every frame, so players with different terminals or seeds cannot share a JVM, and a change
+ * made by one thread may be seen half way through another thread's frame. A SessionConfig is
+ * created from the current Config values by defaults, and each with method returns a copy with
+ * one setting changed, so a Session and its Renderer read settings that no other thread can
+ * change, from final fields:
+ *
+ * Setting      | Default              | Used by
+ * ------------------------------------------------------------------------------------------
+ * displayWidth | Config.DISPLAY_WIDTH | Renderer.room, to wrap the title and description
+ * lineChar     | Config.LINE_CHAR     | Renderer.room, for the lines around the room
+ * seed         | Config.SEED          | Session, for the Random of the weighted transitions
+ *
+ * The indexes of the room and transition arrays stay in Config: they describe the parsed stories,
+ * which the sessions share through the StoryCache, rather than a session.
+ *
+ * AdventureStory.main also plays with the SessionConfig of the Config values when it starts,
+ * rendering its frames through a Renderer of its own.
+ */
+public final class SessionConfig {
+
+    private final int displayWidth;
+    private final char lineChar;
+    private final long seed;
+
+    private SessionConfig(int displayWidth, char lineChar, long seed) {
+        if (displayWidth < 2) { // Renderer.wrapped breaks lines at displayWidth - 1
+            throw new IllegalArgumentException("Display width " + displayWidth + " < 2");
+        }
+        this.displayWidth = displayWidth;
+        this.lineChar = lineChar;
+        this.seed = seed;
+    }
+
+    /**
+     * @return The settings of the current Config values.
+     */
+    public static SessionConfig defaults() {
+        return new SessionConfig(Config.DISPLAY_WIDTH, Config.LINE_CHAR, Config.SEED);
+    }
+
+    /**
+     * @param displayWidth The maximum line length, at least 2.
+     * @return These settings with another display width.
+     */
+    public SessionConfig withDisplayWidth(int displayWidth) {
+        return new SessionConfig(displayWidth, lineChar, seed);
+    }
+
+    /**
+     * @param lineChar The character of the lines around a room.
+     * @return These settings with another line character.
+     */
+    public SessionConfig withLineChar(char lineChar) {
+        return new SessionConfig(displayWidth, lineChar, seed);
+    }
+
+    /**
+     * @param seed The seed of the Random of the weighted transitions.
+     * @return These settings with another seed.
+     */
+    public SessionConfig withSeed(long seed) {
+        return new SessionConfig(displayWidth, lineChar, seed);
+    }
+
+    /**
+     * @return The maximum line length.
+     */
+    public int displayWidth() {
+        return displayWidth;
+    }
+
+    /**
+     * @return The character of the lines around a room.
+     */
+    public char lineChar() {
+        return lineChar;
+    }
+
+    /**
+     * @return The seed of the Random of the weighted transitions.
+     */
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * @return A new Random of the seed, from which a session draws its weighted transitions.
+     */
+    public Random random() {
+        return new Random(seed);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SessionConfig)) {
+            return false;
+        }
+        SessionConfig config = (SessionConfig) other;
+        return displayWidth == config.displayWidth && lineChar == config.lineChar
+            && seed == config.seed;
+    }
+
+    @Override
+    public int hashCode() {
+        return (displayWidth * 31 + lineChar) * 31 + Long.hashCode(seed);
+    }
+
+    @Override
+    public String toString() {
+        return "width " + displayWidth + ", line '" + lineChar + "', seed " + seed;
+    }
+}
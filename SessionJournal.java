@@ -0,0 +1,456 @@
+// Title: AdventureStory
+// Files: SessionJournal.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Records every turn of a Session, so that the game can be replayed exactly, e.g. from a bug
+ * report.
+ *
+ * A journal starts with the line Config.MAGIC_JOURNAL, followed by a header and one record per
+ * turn. Every number is an unsigned varint (7 bits per byte, lowest first, the high bit set on
+ * all the bytes but the last), so a turn of a story of fewer than 128 rooms with fewer than 126
+ * transitions takes 2 bytes:
+ *
+ * Contents      | Encoding
+ * ------------------------------------------------------------------------------------------
+ * Version       | FORMAT_VERSION
+ * Story file    | The length of its name in UTF-8 bytes, and the bytes
+ * Rooms         | The number of rooms of the story
+ * First room    | The index of the room the session started in
+ * Seed          | 0, or 1 followed by the 8 bytes of the seed of the session's Random
+ * Each turn     | The index of the room shown, then nothing if it is terminal, otherwise:
+ *               | - in a weighted room, the integer drawn from the Random (see StoryGraph.pick)
+ *               | - otherwise 0 if the player stayed in the room (bookmarked or declined to
+ *               |   quit), 1 if they quit, or 2 + the transition chosen
+ *
+ * A journal whose input ended while the player was choosing simply ends after the room.
+ *
+ * A Session records a journal when given one with journalTo. AdventureStory.main records each
+ * game in Config.JOURNAL_FILE when it is set, and BatchPlayer records every game of a batch when
+ * given a directory for the journals.
+ *
+ * replay plays a journal again without any output or input: each turn checks that the room is
+ * the one the last turn led to, and follows the recorded choice or draw. If the journal has the
+ * seed, the draws are also drawn again from a new Random of that seed and must be the same, which
+ * checks that the Random state was the same as well. Nothing is allocated per turn, so a journal
+ * replays at millions of turns per second.
+ *
+ * Writing a turn only appends two varints to a buffer, which is written to the output when it is
+ * full and when flush is called (Session calls it when play returns). Like a PrintStream, a
+ * journal never throws, see checkError. A SessionJournal is not thread safe, use one per session.
+ *
+ * Usage: java SessionJournal journalFile [storyFile]
+ *        Replays a journal against its story file, or against another version of it.
+ */
+public class SessionJournal implements AutoCloseable {
+
+    /**
+     * Version of the journal format
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * What replay found.
+     */
+    public static class Replay {
+        long turns; // turns replayed
+        int room = -1; // room of the last turn replayed
+        String result; // Config.SUCCESS, Config.FAIL or null if the journal ends during the game
+        String error; // why the replay differs, null if it reached the same rooms
+
+        /**
+         * @return The number of turns replayed.
+         */
+        public long turns() {
+            return turns;
+        }
+
+        /**
+         * @return The index of the room of the last turn replayed, -1 if none.
+         */
+        public int room() {
+            return room;
+        }
+
+        /**
+         * @return Config.SUCCESS or Config.FAIL if the game ended, otherwise null.
+         */
+        public String result() {
+            return result;
+        }
+
+        /**
+         * @return true if every turn was in the room the last one led to.
+         */
+        public boolean same() {
+            return error == null;
+        }
+
+        /**
+         * @return Why the replay differs from the journal, or null.
+         */
+        public String error() {
+            return error;
+        }
+
+        /**
+         * @return One line of what was found.
+         */
+        @Override
+        public String toString() {
+            if (error != null) {
+                return "differs at turn " + turns + ": " + error;
+            }
+            return "replayed " + turns + " turns to room " + room + ", same rooms"
+                + (result == null ? "" : ", ended " + result);
+        }
+    }
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int length; // bytes in buffer
+    private boolean error; // writing to out failed
+
+    /**
+     * Starts a journal by writing its header.
+     *
+     * @param out Where the journal is written.
+     * @param storyFile The filename of the story, to replay it against.
+     * @param graph The story.
+     * @param startRoom The index of the first room of the session.
+     * @param seed The seed of the Random the session draws its weighted transitions from, or null
+     *             if it is not known, in which case replay does not check the draws.
+     */
+    public SessionJournal(OutputStream out, String storyFile, StoryGraph graph, int startRoom,
+        Long seed) {
+        this.out = out;
+        write((Config.MAGIC_JOURNAL + "\n").getBytes(StandardCharsets.UTF_8));
+        write(FORMAT_VERSION);
+        byte[] name = storyFile.getBytes(StandardCharsets.UTF_8);
+        write(name.length);
+        write(name);
+        write(graph.roomCount());
+        write(startRoom);
+        write(seed == null ? 0 : 1);
+        if (seed != null) {
+            byte[] bytes = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (seed >>> (56 - 8 * i));
+            }
+            write(bytes);
+        }
+    }
+
+    /**
+     * Replays a journal file against a story file, see the class comment.
+     *
+     * @param args The journal file, and optionally the story file to use instead of the one the
+     *             journal was recorded with.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java SessionJournal journalFile [storyFile]");
+            return;
+        }
+        byte[] journal = Files.readAllBytes(Paths.get(args[0]));
+        String storyFile = args.length > 1 ? args[1] : storyFile(journal);
+        if (storyFile == null) {
+            System.out.println(args[0] + ": not a journal");
+            System.exit(2);
+        }
+        StoryGraph graph = StoryGraph.load(storyFile, new String[1]);
+        if (graph == null) {
+            System.out.println(storyFile + ": unable to parse the story");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        Replay replay = replay(graph, journal);
+        long nanos = System.nanoTime() - start;
+        System.out.println(args[0] + ": " + replay + " (" + nanos / 1000 + " us)");
+        if (!replay.same()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Records the room of a turn.
+     *
+     * @param room The room index.
+     */
+    public void room(int room) {
+        write(room);
+    }
+
+    /**
+     * Records the integer drawn in a weighted room.
+     *
+     * @param drawn The integer.
+     */
+    public void drawn(int drawn) {
+        write(drawn);
+    }
+
+    /**
+     * Records what the player chose in a room that is not weighted.
+     *
+     * @param choice The index of the transition among the transitions of the room, or -1 if the
+     *               player stayed in the room.
+     */
+    public void chose(int choice) {
+        write(choice < 0 ? 0 : choice + 2);
+    }
+
+    /**
+     * Records that the player quit.
+     */
+    public void quit() {
+        write(1);
+    }
+
+    /**
+     * Writes the turns recorded so far to the output and flushes it.
+     */
+    public void flush() {
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+        length = 0;
+    }
+
+    /**
+     * Flushes and closes the output.
+     */
+    @Override
+    public void close() {
+        flush();
+        try {
+            out.close();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * Returns whether writing the journal failed, as PrintStream.checkError does. Recording a turn
+     * never throws, so that a full disk does not end the game.
+     *
+     * @return true if some of the journal could not be written.
+     */
+    public boolean checkError() {
+        return error;
+    }
+
+    /**
+     * Opens a journal file for a session.
+     *
+     * @param journalFile The filename of the journal, which is replaced.
+     * @param storyFile The filename of the story.
+     * @param graph The story.
+     * @param startRoom The id of the first room of the session.
+     * @param seed The seed of the session's Random, or null if it is not known.
+     * @return The journal.
+     * @throws IOException If the file cannot be written.
+     */
+    public static SessionJournal create(String journalFile, String storyFile, StoryGraph graph,
+        String startRoom, Long seed) throws IOException {
+        OutputStream out = new FileOutputStream(journalFile);
+        return new SessionJournal(out, storyFile, graph, graph.indexOf(startRoom), seed);
+    }
+
+    /**
+     * Replays a journal, see the class comment.
+     *
+     * @param graph The story.
+     * @param journal The contents of the journal.
+     * @return What was found.
+     */
+    public static Replay replay(StoryGraph graph, byte[] journal) {
+        Replay replay = new Replay();
+        int[] pos = new int[1];
+        if (!header(journal, pos)) {
+            replay.error = "not a journal of version " + FORMAT_VERSION;
+            return replay;
+        }
+        skip(journal, pos, readVarint(journal, pos)); // story file
+        int rooms = readVarint(journal, pos);
+        int expected = readVarint(journal, pos);
+        Random rand = null;
+        if (readVarint(journal, pos) == 1) {
+            long seed = 0;
+            for (int i = 0; i < 8 && pos[0] < journal.length; i++) {
+                seed = seed << 8 | (journal[pos[0]++] & 0xff);
+            }
+            rand = new Random(seed);
+        }
+        if (rooms != graph.roomCount() || expected < 0 || expected >= rooms) {
+            replay.error = "the journal is of a story of " + rooms + " rooms, not "
+                + graph.roomCount();
+            return replay;
+        }
+
+        while (pos[0] < journal.length) {
+            if (replay.result != null) {
+                replay.error = "turns after the end of the game";
+                return replay;
+            }
+            int room = readVarint(journal, pos);
+            replay.turns++;
+            if (room != expected) {
+                replay.error = "expected room " + graph.roomId(expected) + ", journal has "
+                    + (room >= 0 && room < rooms ? graph.roomId(room) : "room index " + room);
+                return replay;
+            }
+            replay.room = room;
+            if (graph.isTerminal(room)) {
+                replay.result = graph.target(graph.firstTransition(room))
+                    == StoryGraph.TARGET_SUCCESS ? Config.SUCCESS : Config.FAIL;
+                continue;
+            }
+            if (pos[0] == journal.length) { // the input ended
+                break;
+            }
+            int code = readVarint(journal, pos);
+            int tran;
+            int total = graph.totalWeight(room);
+            if (total > 0) {
+                if (code < 0 || code >= total) {
+                    replay.error = "drew " + code + " of " + total;
+                    return replay;
+                }
+                if (rand != null && rand.nextInt(total) != code) {
+                    replay.error = "the Random drew another value than " + code;
+                    return replay;
+                }
+                tran = graph.transitionAt(room, code);
+            } else if (code == 0) {
+                continue; // same room again
+            } else if (code == 1) {
+                replay.result = Config.FAIL;
+                continue;
+            } else {
+                tran = graph.firstTransition(room) + code - 2;
+                if (code < 0 || tran >= graph.endTransition(room)) {
+                    replay.error = "no transition " + (code - 2) + " in room " + graph.roomId(room);
+                    return replay;
+                }
+            }
+            int target = graph.target(tran);
+            if (target == StoryGraph.TARGET_SUCCESS) {
+                replay.result = Config.SUCCESS;
+            } else if (target == StoryGraph.TARGET_FAIL) {
+                replay.result = Config.FAIL;
+            } else if (target < 0) {
+                replay.error = "transition to the missing room " + graph.targetId(tran);
+                return replay;
+            } else {
+                expected = target;
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * @return The story file a journal was recorded with, or null if it is not a journal.
+     */
+    static String storyFile(byte[] journal) {
+        int[] pos = new int[1];
+        if (!header(journal, pos)) {
+            return null;
+        }
+        int length = readVarint(journal, pos);
+        if (length < 0 || pos[0] + length > journal.length) {
+            return null;
+        }
+        return new String(journal, pos[0], length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks the first line and the version of a journal, and moves pos after them.
+     */
+    private static boolean header(byte[] journal, int[] pos) {
+        byte[] magic = (Config.MAGIC_JOURNAL + "\n").getBytes(StandardCharsets.UTF_8);
+        if (journal.length < magic.length
+            || !Arrays.equals(journal, 0, magic.length, magic, 0, magic.length)) {
+            return false;
+        }
+        pos[0] = magic.length;
+        return readVarint(journal, pos) == FORMAT_VERSION;
+    }
+
+    private static void skip(byte[] journal, int[] pos, int length) {
+        pos[0] = length < 0 ? journal.length : Math.min(journal.length, pos[0] + length);
+    }
+
+    /**
+     * Reads an unsigned varint and moves pos after it.
+     *
+     * @return The value, or -1 if the journal ends before it or it is not an int.
+     */
+    private static int readVarint(byte[] journal, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && pos[0] < journal.length; shift += 7) {
+            byte b = journal[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value < 0 ? -1 : value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends an unsigned varint to the buffer, writing the buffer out first if it is full.
+     */
+    private void write(int value) {
+        if (length > buffer.length - 5) {
+            flushBuffer();
+        }
+        while ((value & ~0x7f) != 0) {
+            buffer[length++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Appends bytes to the buffer, or writes them directly if they do not fit.
+     */
+    private void write(byte[] bytes) {
+        if (length + bytes.length > buffer.length) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.length) {
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                error = true;
+            }
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buffer, 0, length);
+        } catch (IOException e) {
+            error = true;
+        }
+        length = 0;
+    }
+}
@@ -0,0 +1,104 @@
+// Title: AdventureStory
+// Files: SessionScheduler.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many Sessions at once, each on its own thread.
+ *
+ * A session spends nearly all of its time waiting for its player's input, so every session gets
+ * a thread of its own rather than a place in a small pool. On a Java runtime with virtual threads
+ * (Java 21 and later) these are virtual threads, so thousands of waiting sessions only cost a
+ * little memory each. Otherwise the sessions run on a cached pool of daemon platform threads,
+ * which behaves the same for a few hundred sessions. The virtual thread executor is looked up by
+ * reflection so that the game still compiles and runs on Java 17.
+ *
+ * The sessions share their StoryGraph, which is read only, so nothing else needs to be locked.
+ */
+public class SessionScheduler implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean virtual; // whether executor starts virtual threads
+
+    /**
+     * Creates a scheduler, using virtual threads if the runtime has them.
+     */
+    public SessionScheduler() {
+        ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : Executors.newCachedThreadPool(daemonThreads());
+    }
+
+    /**
+     * Starts playing a session on a new thread.
+     *
+     * @param session The session to play.
+     * @return The result of Session.play, once the session has ended.
+     */
+    public Future<String> submit(Session session) {
+        return executor.submit(session::play);
+    }
+
+    /**
+     * @return true if the sessions run on virtual threads.
+     */
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Waits for every session submitted to end. No more sessions can be submitted.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.DAYS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow(); // the sessions stop at their next prompt
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor(), or null on a runtime without it.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a ThreadFactory of daemon threads, so that waiting sessions do not keep the JVM
+     * running after main returns.
+     */
+    private static ThreadFactory daemonThreads() {
+        ThreadFactory defaults = Executors.defaultThreadFactory();
+        return task -> {
+            Thread thread = defaults.newThread(task);
+            thread.setName("session-" + thread.getName());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
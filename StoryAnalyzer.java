@@ -0,0 +1,365 @@
+// Title: AdventureStory
+// Files: StoryAnalyzer.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.util.stream.IntStream;
+
+/**
+ * Computes, for every room of a story, the probability that a playthrough from that room ends in
+ * Config.SUCCESS or Config.FAIL, and the expected number of moves until it ends.
+ *
+ * The story is treated as a Markov chain over its rooms, moving the same way as the walks of
+ * StorySimulator: a weighted room moves along each transition with probability weight /
+ * totalWeight (StoryGraph.chances / totalWeight in a room with negative weights), and any other
+ * room along each of its transitions with equal probability. Terminal rooms, and transitions to
+ * Config.SUCCESS or Config.FAIL, end the playthrough. Transitions to a room id that is not in the
+ * story, and rooms without transitions, never end.
+ *
+ * Rather than sampling, the probabilities are the solution of the linear system
+ *
+ *     p(r) = sum over the transitions t of r of prob(t) * p(target(t))
+ *
+ * with p = 1 in the rooms that succeed and 0 in the rooms that fail, and the expected moves
+ * solve m(r) = 1 + sum of prob(t) * m(target(t)), with m = 0 in terminal rooms. Both are solved
+ * iteratively over the transition arrays of the StoryGraph, which are already a sparse (compressed
+ * row) matrix, until no value changes by more than the tolerance. Every iteration updates blocks
+ * of BLOCK_ROOMS rooms in parallel on the common ForkJoinPool: between blocks this is a Jacobi
+ * iteration, reading only the values of the previous iteration, and within a block a Gauss-Seidel
+ * iteration, so that a long chain of rooms needs about one iteration per block rather than one per
+ * room. The results do not depend on the number of cores.
+ *
+ * A room from which a playthrough may never end has an infinite expected number of moves. Those
+ * rooms are found exactly, from the shape of the graph, before iterating: they are the rooms that
+ * can reach a room from which no terminal can be reached.
+ *
+ * Usage: java StoryAnalyzer storyFile [tolerance]
+ */
+public class StoryAnalyzer {
+
+    /**
+     * Rooms updated by a parallel task in each iteration
+     */
+    public static final int BLOCK_ROOMS = 1 << 12;
+
+    /**
+     * Default largest change of a value in the last iteration
+     */
+    public static final double DEFAULT_TOLERANCE = 1e-12;
+
+    /**
+     * Iterations after which the solver gives up
+     */
+    public static final int MAX_ITERATIONS = 1_000_000;
+
+    /**
+     * The solution for every room of a story.
+     */
+    public static class Result {
+        private final StoryGraph graph;
+        private final double[] success; // probability of Config.SUCCESS, by room index
+        private final double[] fail; // probability of Config.FAIL
+        private final double[] moves; // expected number of moves, or infinity
+        private int iterations; // of the slowest of the three solutions
+        private boolean converged = true; // false if MAX_ITERATIONS was reached
+
+        Result(StoryGraph graph) {
+            this.graph = graph;
+            int rooms = graph.roomCount();
+            success = new double[rooms];
+            fail = new double[rooms];
+            moves = new double[rooms];
+        }
+
+        /**
+         * @param room The room index.
+         * @return The probability of completing the adventure from the room.
+         */
+        public double success(int room) {
+            return success[room];
+        }
+
+        /**
+         * @param room The room index.
+         * @return The probability of failing the adventure from the room.
+         */
+        public double fail(int room) {
+            return fail[room];
+        }
+
+        /**
+         * @param room The room index.
+         * @return The expected number of moves to end the story from the room, or
+         *         Double.POSITIVE_INFINITY if the story may never end.
+         */
+        public double moves(int room) {
+            return moves[room];
+        }
+
+        /**
+         * @return The number of iterations of the slowest solution.
+         */
+        public int iterations() {
+            return iterations;
+        }
+
+        /**
+         * @return false if a solution stopped at MAX_ITERATIONS instead of the tolerance.
+         */
+        public boolean converged() {
+            return converged;
+        }
+
+        /**
+         * Returns the table of the results, one room per line in file order, with the columns
+         * separated by tabs: room id, probability of success, probability of failure and expected
+         * number of moves ("Infinity" if the story may never end from that room).
+         */
+        @Override
+        public String toString() {
+            String newLine = System.lineSeparator();
+            StringBuilder table = new StringBuilder(64 * (success.length + 1));
+            table.append("room\tsuccess\tfail\tmoves").append(newLine);
+            for (int r = 0; r < success.length; r++) {
+                table.append(graph.roomId(r)).append('\t').append(success[r]).append('\t')
+                    .append(fail[r]).append('\t').append(moves[r]).append(newLine);
+            }
+            return table.toString();
+        }
+    }
+
+    /**
+     * Analyzes a story file and outputs the table of results.
+     *
+     * @param args The story or bookmark file, and optionally the tolerance.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java StoryAnalyzer storyFile [tolerance]");
+            return;
+        }
+        StoryGraph graph = StoryGraph.loadLazy(args[0], new String[1]);
+        if (graph == null) {
+            return;
+        }
+        double tolerance = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_TOLERANCE;
+        Result result = analyze(graph, tolerance);
+        System.out.print(result);
+        if (!result.converged()) {
+            System.out.println("Not converged after " + MAX_ITERATIONS + " iterations");
+        }
+    }
+
+    /**
+     * Solves the success and failure probabilities and the expected moves of every room.
+     *
+     * @param graph The story.
+     * @param tolerance The largest change of a value allowed in the last iteration.
+     * @return The solution.
+     */
+    public static Result analyze(StoryGraph graph, double tolerance) {
+        Result result = new Result(graph);
+        double[] prob = probabilities(graph);
+        int rooms = graph.roomCount();
+        double[] toSuccess = new double[rooms]; // probability of ending at once, per room
+        double[] toFail = new double[rooms];
+        boolean[] fixed = new boolean[rooms]; // terminal rooms keep their value
+        for (int r = 0; r < rooms; r++) {
+            if (graph.isTerminal(r)) {
+                fixed[r] = true;
+                boolean won = graph.target(graph.firstTransition(r)) == StoryGraph.TARGET_SUCCESS;
+                result.success[r] = won ? 1 : 0;
+                result.fail[r] = won ? 0 : 1;
+                continue;
+            }
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r); t++) {
+                int target = StorySimulator.target(graph, t);
+                if (target == StoryGraph.TARGET_SUCCESS) {
+                    toSuccess[r] += prob[t];
+                } else if (target == StoryGraph.TARGET_FAIL) {
+                    toFail[r] += prob[t];
+                }
+            }
+        }
+        solve(graph, prob, toSuccess, fixed, result.success, tolerance, result);
+        solve(graph, prob, toFail, fixed, result.fail, tolerance, result);
+
+        boolean[] endless = endless(graph, prob);
+        double[] oneMove = new double[rooms];
+        for (int r = 0; r < rooms; r++) {
+            if (endless[r]) {
+                result.moves[r] = Double.POSITIVE_INFINITY;
+                fixed[r] = true;
+            } else if (!fixed[r]) {
+                oneMove[r] = 1;
+            }
+        }
+        solve(graph, prob, oneMove, fixed, result.moves, tolerance, result);
+        return result;
+    }
+
+    /**
+     * Returns the probability of taking each transition, see the class comment.
+     */
+    static double[] probabilities(StoryGraph graph) {
+        double[] prob = new double[graph.transitionCount()];
+        for (int r = 0; r < graph.roomCount(); r++) {
+            int first = graph.firstTransition(r);
+            int end = graph.endTransition(r);
+            int total = graph.totalWeight(r);
+            for (int t = first; t < end; t++) {
+                prob[t] = total > 0 ? (double) graph.chances(r, t) / total : 1.0 / (end - first);
+            }
+        }
+        return prob;
+    }
+
+    /**
+     * Solves x = constant + P x by block iteration, starting from the values in x. The rooms that
+     * are fixed keep their values. Transitions that leave the story add nothing.
+     */
+    private static void solve(StoryGraph graph, double[] prob, double[] constant, boolean[] fixed,
+        double[] x, double tolerance, Result result) {
+        int rooms = graph.roomCount();
+        int blocks = (rooms + BLOCK_ROOMS - 1) / BLOCK_ROOMS;
+        double[] current = x;
+        double[] next = x.clone();
+        for (int i = 1; i <= MAX_ITERATIONS; i++) {
+            double[] from = current;
+            double[] to = next;
+            double change = IntStream.range(0, blocks).parallel()
+                .mapToDouble(block -> sweep(graph, prob, constant, fixed, from, to,
+                    block * BLOCK_ROOMS, Math.min(rooms, (block + 1) * BLOCK_ROOMS)))
+                .max().orElse(0);
+            next = current;
+            current = to;
+            if (!(change > tolerance)) { // also stops on NaN, which cannot get smaller
+                result.iterations = Math.max(result.iterations, i);
+                if (current != x) {
+                    System.arraycopy(current, 0, x, 0, rooms);
+                }
+                return;
+            }
+        }
+        result.iterations = MAX_ITERATIONS;
+        result.converged = false;
+        if (current != x) {
+            System.arraycopy(current, 0, x, 0, rooms);
+        }
+    }
+
+    /**
+     * Updates the rooms from first to end - 1 for one iteration. The rooms are updated from last
+     * to first, and use the new values of the later rooms of the same block, since transitions
+     * mostly lead to rooms further down the story file.
+     *
+     * @return The largest change of a value.
+     */
+    private static double sweep(StoryGraph graph, double[] prob, double[] constant,
+        boolean[] fixed, double[] from, double[] to, int first, int end) {
+        double change = 0;
+        for (int r = end - 1; r >= first; r--) {
+            if (fixed[r]) {
+                to[r] = from[r];
+                continue;
+            }
+            double value = constant[r];
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r); t++) {
+                int target = graph.target(t);
+                if (target < 0 || prob[t] == 0) { // weight 0 could lead to an endless room
+                    continue;
+                }
+                value += prob[t] * (target > r && target < end ? to[target] : from[target]);
+            }
+            to[r] = value;
+            change = Math.max(change, Math.abs(value - from[r]));
+        }
+        return change;
+    }
+
+    /**
+     * Returns the rooms from which a playthrough may never end: the rooms that can reach, with a
+     * probability above 0, a room from which no terminal can be reached, or a transition that
+     * leaves the story.
+     */
+    static boolean[] endless(StoryGraph graph, double[] prob) {
+        int rooms = graph.roomCount();
+        // the transitions into each room, as a compressed row matrix of the reversed graph
+        int[] inOffset = new int[rooms + 1];
+        for (int r = 0; r < rooms; r++) {
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r); t++) {
+                if (moves(graph, prob, r, t)) {
+                    inOffset[graph.target(t) + 1]++;
+                }
+            }
+        }
+        for (int r = 0; r < rooms; r++) {
+            inOffset[r + 1] += inOffset[r];
+        }
+        int[] inRoom = new int[inOffset[rooms]];
+        int[] fill = inOffset.clone();
+        int[] queue = new int[rooms];
+        int tail = 0;
+        boolean[] ends = new boolean[rooms]; // can reach a terminal
+        for (int r = 0; r < rooms; r++) {
+            boolean terminal = graph.isTerminal(r);
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r); t++) {
+                if (moves(graph, prob, r, t)) {
+                    inRoom[fill[graph.target(t)]++] = r;
+                } else if (prob[t] > 0 && StorySimulator.target(graph, t) < 0
+                    && StorySimulator.target(graph, t) != StoryGraph.TARGET_MISSING) {
+                    terminal = true; // a transition to Config.SUCCESS or Config.FAIL
+                }
+            }
+            if (terminal) {
+                ends[r] = true;
+                queue[tail++] = r;
+            }
+        }
+        reachBack(queue, tail, ends, inOffset, inRoom);
+
+        boolean[] endless = new boolean[rooms];
+        tail = 0;
+        for (int r = 0; r < rooms; r++) {
+            if (graph.isTerminal(r)) {
+                continue;
+            }
+            boolean leaves = !ends[r];
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r) && !leaves; t++) {
+                leaves = prob[t] > 0
+                    && StorySimulator.target(graph, t) == StoryGraph.TARGET_MISSING;
+            }
+            if (leaves) {
+                endless[r] = true;
+                queue[tail++] = r;
+            }
+        }
+        reachBack(queue, tail, endless, inOffset, inRoom);
+        return endless;
+    }
+
+    /**
+     * Returns true if a transition moves from a room that is not terminal to another room.
+     */
+    private static boolean moves(StoryGraph graph, double[] prob, int room, int tran) {
+        return prob[tran] > 0 && graph.target(tran) >= 0 && !graph.isTerminal(room);
+    }
+
+    /**
+     * Marks every room that can reach a room in the queue, breadth first over the reversed graph.
+     */
+    private static void reachBack(int[] queue, int tail, boolean[] marked, int[] inOffset,
+        int[] inRoom) {
+        for (int head = 0; head < tail; head++) {
+            int room = queue[head];
+            for (int i = inOffset[room]; i < inOffset[room + 1]; i++) {
+                int from = inRoom[i];
+                if (!marked[from]) {
+                    marked[from] = true;
+                    queue[tail++] = from;
+                }
+            }
+        }
+    }
+}
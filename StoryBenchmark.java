@@ -0,0 +1,238 @@
+// Title: AdventureStory
+// Files: StoryBenchmark.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Measures the throughput and allocation of the hot paths of the game: parsing, room lookups,
+ * printing and weighted transitions, over stories of 10, 10^3, 10^5 and 10^6 rooms written by
+ * StoryGenerator with its default settings.
+ *
+ * Each benchmark is run in WARMUP_ITERATIONS iterations, so that the JIT compiler has compiled it,
+ * followed by MEASURED_ITERATIONS iterations. An iteration calls the benchmark again and again
+ * for at least ITERATION_NANOS (and at least once). The result is the mean number of operations
+ * per second of the measured iterations, with the standard deviation between them, and the
+ * number of bytes allocated per operation by the thread running the benchmark. Allocations of
+ * other threads, such as the parallel parse of a large story, are not counted.
+ *
+ * Every operation returns a value that is added to a checksum which is output at the end, so that
+ * the JIT compiler cannot drop the work as unused.
+ *
+ * Usage: java StoryBenchmark [maxRooms] [benchmarkName]
+ *        where maxRooms skips the larger stories, and benchmarkName only runs the benchmarks whose
+ *        name contains it.
+ */
+public class StoryBenchmark {
+
+    /**
+     * Number of rooms of the generated stories
+     */
+    public static final int[] SIZES = {10, 1_000, 100_000, 1_000_000};
+
+    /**
+     * Iterations run before and while measuring, and the minimum length of each
+     */
+    public static final int WARMUP_ITERATIONS = 3;
+    public static final int MEASURED_ITERATIONS = 5;
+    public static final long ITERATION_NANOS = 500_000_000L;
+
+    /**
+     * A benchmarked operation.
+     */
+    interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @return A value that depends on the work done.
+         */
+        long run() throws Exception;
+    }
+
+    private static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private static final PrintStream REPORT = System.out; // the console, even while printing
+                                                          // is benchmarked
+    private static long checksum; // of the values returned by the operations
+
+    /**
+     * Runs the benchmarks and outputs a table of the results.
+     *
+     * @param args Optionally the largest story to benchmark and part of a benchmark name.
+     */
+    public static void main(String[] args) throws IOException {
+        int maxRooms = args.length > 0 ? Integer.parseInt(args[0]) : Integer.MAX_VALUE;
+        String filter = args.length > 1 ? args[1] : "";
+        REPORT.println(String.format(Locale.ROOT, "%-22s %9s %14s %12s %14s", "Benchmark",
+            "Rooms", "Score (ops/s)", "Error", "Alloc (B/op)"));
+        for (int rooms : SIZES) {
+            if (rooms > maxRooms) {
+                break;
+            }
+            File story = File.createTempFile("bench", ".story.txt");
+            story.deleteOnExit();
+            new StoryGenerator(rooms).write(story.getPath());
+            run(story, rooms, filter);
+            story.delete();
+        }
+        REPORT.println("Checksum: " + checksum);
+    }
+
+    /**
+     * Runs every benchmark whose name contains filter over one story.
+     */
+    private static void run(File story, int size, String filter) throws IOException {
+        String fName = story.getPath();
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        AdventureStory.parseFile(fName, rooms, trans, curRoom);
+        StoryGraph graph = StoryGraph.compile(rooms, trans);
+        Random rand = new Random(Config.SEED);
+        String[] ids = new String[1024]; // rooms looked up, in a random order
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rooms.get(rand.nextInt(rooms.size()))[Config.ROOM_ID];
+        }
+        int weighted = 0; // the first weighted room
+        while (weighted < graph.roomCount() - 1 && graph.totalWeight(weighted) == 0) {
+            weighted++;
+        }
+        String weightedId = graph.roomId(weighted);
+        ArrayList<String[]> weightedTrans = trans.get(weighted);
+        String desc = rooms.get(0)[Config.ROOM_DESC];
+        int[] next = new int[1]; // index of the next id to look up
+
+        measure("parseStory", size, filter, () -> {
+            try (Scanner sc = new Scanner(story)) {
+                sc.nextLine(); // the magic number
+                ArrayList<String[]> parsed = new ArrayList<String[]>();
+                AdventureStory.parseStory(sc, parsed, new ArrayList<ArrayList<String[]>>(),
+                    new String[1]);
+                return parsed.size();
+            }
+        });
+        measure("parseFile", size, filter, () -> {
+            StoryCache.clear();
+            ArrayList<String[]> parsed = new ArrayList<String[]>();
+            AdventureStory.parseFile(fName, parsed, new ArrayList<ArrayList<String[]>>(),
+                new String[1]);
+            return parsed.size();
+        });
+        measure("parseFile (cached)", size, filter, () -> {
+            ArrayList<String[]> parsed = new ArrayList<String[]>();
+            AdventureStory.parseFile(fName, parsed, new ArrayList<ArrayList<String[]>>(),
+                new String[1]);
+            return parsed.size();
+        });
+        measure("getRoomIndex", size, filter,
+            () -> AdventureStory.getRoomIndex(ids[next[0]++ & 1023], rooms));
+        measure("getRoomDetails", size, filter,
+            () -> AdventureStory.getRoomDetails(ids[next[0]++ & 1023], rooms).length);
+        System.setOut(NULL_OUT);
+        try {
+            measure("printString", size, filter, () -> {
+                AdventureStory.printString(Config.DISPLAY_WIDTH, desc);
+                return desc.length();
+            });
+            measure("displayRoom", size, filter, () -> {
+                AdventureStory.displayRoom(ids[next[0]++ & 1023], rooms);
+                return next[0];
+            });
+        } finally {
+            System.setOut(REPORT);
+        }
+        measure("probTrans", size, filter,
+            () -> AdventureStory.probTrans(rand, weightedTrans).length());
+        measure("probTrans (graph)", size, filter,
+            () -> AdventureStory.probTrans(rand, graph, weightedId).length());
+    }
+
+    /**
+     * Runs a benchmark and outputs a line of the table, if its name contains filter.
+     */
+    private static void measure(String name, int size, String filter, Operation op) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                iteration(op);
+            }
+            double[] scores = new double[MEASURED_ITERATIONS];
+            long ops = 0;
+            long allocated = allocatedBytes();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                long count = iteration(op);
+                scores[i] = count * 1e9 / (System.nanoTime() - start);
+                ops += count;
+            }
+            allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+            double mean = 0;
+            for (double score : scores) {
+                mean += score / scores.length;
+            }
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean) / (scores.length - 1);
+            }
+            String alloc = allocated < 0 ? "n/a"
+                : String.format(Locale.ROOT, "%.1f", (double) allocated / ops);
+            REPORT.println(String.format(Locale.ROOT, "%-22s %9d %14.1f %12.1f %14s", name,
+                size, mean, Math.sqrt(variance), alloc));
+        } catch (Exception e) {
+            REPORT.println(String.format(Locale.ROOT, "%-22s %9d %s", name, size, e));
+        }
+    }
+
+    /**
+     * Runs op for at least ITERATION_NANOS.
+     *
+     * @return The number of times op was run.
+     */
+    private static long iteration(Operation op) throws Exception {
+        long end = System.nanoTime() + ITERATION_NANOS;
+        long count = 0;
+        long sum = 0;
+        do {
+            sum += op.run();
+            count++;
+        } while (System.nanoTime() < end);
+        checksum += sum;
+        return count;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or -1 if the JVM does
+     *         not measure it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threads;
+            if (hotSpot.isThreadAllocatedMemorySupported()
+                && hotSpot.isThreadAllocatedMemoryEnabled()) {
+                return hotSpot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
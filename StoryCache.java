@@ -0,0 +1,370 @@
+// Title: AdventureStory
+// Files: StoryCache.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the rooms and transitions of recently parsed story files, so that playing the same story
+ * again, or resuming a bookmark into it, does not parse the file again.
+ *
+ * Stories are keyed by the canonical path of the file together with its modification time and
+ * size, so an edited story file is parsed again. As a file can be edited without changing its size
+ * within the granularity of its modification time, each story also records the CRC32C checksum
+ * of the file it was parsed from, and a lookup only returns it for the same checksum, so the
+ * modification time is never trusted on its own. The cache holds at most MAX_BYTES, measured with
+ * a rough estimate of the memory used by the Strings and arrays of each story, and the least
+ * recently used stories are dropped first.
+ *
+ * The rooms and transitions are copied into the cache when a story is put, and out of it on each
+ * hit, so the callers own the String arrays and the transition ArrayLists they are given and can
+ * change them without changing the story the next caller gets.
+ * Only the Strings, which cannot change, are shared. Copying the arrays is still much cheaper
+ * than parsing the file again. All the methods are thread safe.
+ *
+ * Each time a story file is parsed, whether or not the story fits in the cache, an Index of it is
+ * also kept: the fingerprint of the file and the position in it of every room line, which
+ * saveBookmark records so that a bookmark can be resumed without parsing the whole story first,
+ * see BookmarkResume. The checksum of the Index is the one computed to look the story up, so
+ * saving a bookmark neither maps nor hashes the story file again. At most MAX_INDEXES files are
+ * indexed.
+ */
+public class StoryCache {
+
+    /**
+     * Approximate number of bytes of stories kept
+     */
+    public static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Number of story files whose Index is kept
+     */
+    public static final int MAX_INDEXES = 64;
+
+    /**
+     * A parsed story file.
+     */
+    static class Entry {
+        final ArrayList<String[]> rooms;
+        final ArrayList<ArrayList<String[]>> trans;
+        final String messages; // parse errors output when the story was parsed
+        final long checksum; // of the file parsed, see StoryCompiler.checksum
+        final Index index; // of the file parsed, or null if it was parsed with errors
+        final long bytes; // approximate memory used
+
+        Entry(List<String[]> rooms, List<ArrayList<String[]>> trans, String messages,
+            long checksum, Index index) {
+            this.rooms = new ArrayList<String[]>(rooms.size());
+            this.trans = new ArrayList<ArrayList<String[]>>(trans.size());
+            copy(rooms, trans, this.rooms, this.trans);
+            this.messages = messages;
+            this.checksum = checksum;
+            this.index = index;
+            this.bytes = footprint(this.rooms, this.trans) + 2L * messages.length()
+                + (index == null ? 0L : 8L * index.offsets.length);
+        }
+
+        /**
+         * Adds copies of the rooms and transitions of the story to the given ArrayLists.
+         *
+         * @param toRooms The ArrayList to add the rooms to.
+         * @param toTrans The ArrayList to add the transitions to.
+         */
+        void copyTo(ArrayList<String[]> toRooms, ArrayList<ArrayList<String[]>> toTrans) {
+            copy(rooms, trans, toRooms, toTrans);
+        }
+    }
+
+    /**
+     * Adds copies of the String arrays of rooms, and of the transition ArrayLists of trans and
+     * their String arrays, to toRooms and toTrans. The Strings themselves are shared. Transitions
+     * and transition lists shared by a deduplicated story (see StoryDeduplicator) are copied once,
+     * and stay shared the same way in the copy.
+     */
+    private static void copy(List<String[]> rooms, List<ArrayList<String[]>> trans,
+        ArrayList<String[]> toRooms, ArrayList<ArrayList<String[]>> toTrans) {
+        toRooms.ensureCapacity(toRooms.size() + rooms.size());
+        for (String[] room : rooms) {
+            toRooms.add(room.clone());
+        }
+        IdentityHashMap<Object, Object> copies = new IdentityHashMap<Object, Object>();
+        toTrans.ensureCapacity(toTrans.size() + trans.size());
+        for (ArrayList<String[]> roomTrans : trans) {
+            @SuppressWarnings("unchecked")
+            ArrayList<String[]> copy = (ArrayList<String[]>) copies.get(roomTrans);
+            if (copy == null) {
+                copy = new ArrayList<String[]>(roomTrans.size());
+                for (String[] tran : roomTrans) {
+                    String[] tranCopy = (String[]) copies.get(tran);
+                    if (tranCopy == null) {
+                        tranCopy = tran.clone();
+                        copies.put(tran, tranCopy);
+                    }
+                    copy.add(tranCopy);
+                }
+                copies.put(roomTrans, copy);
+            }
+            toTrans.add(copy);
+        }
+    }
+
+    /**
+     * The fingerprint of a story file parsed without errors and the positions of its room lines.
+     */
+    static class Index {
+        final String path; // canonical
+        final long size; // of the file parsed
+        final long modified;
+        final long checksum; // see StoryCompiler.checksum
+        final String[] ids; // room ids, in file order
+        final int[] offsets; // positions of the room lines in the file, parallel to ids
+        private HashMap<String, Integer> positions; // room id to index, built by offsetOf
+
+        Index(String path, long size, long modified, long checksum, List<String[]> rooms,
+            int[] offsets) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.ids = new String[Math.min(rooms.size(), offsets.length)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = rooms.get(i)[Config.ROOM_ID];
+            }
+            this.offsets = offsets;
+        }
+
+        /**
+         * Returns the position in the story file of the line of a room. When several rooms have
+         * the same id the first one is used, the same as getRoomIndex.
+         *
+         * @param id The room id.
+         * @return The position of the "R<id>: title" line, or -1 if there is no such room.
+         */
+        synchronized int offsetOf(String id) {
+            if (positions == null) {
+                positions = new HashMap<String, Integer>(ids.length * 2);
+                for (int i = ids.length - 1; i >= 0; i--) { // the first occurrence wins
+                    positions.put(ids[i], i);
+                }
+            }
+            Integer index = positions.get(id);
+            return index == null ? -1 : offsets[index];
+        }
+
+        /**
+         * @return "size:modified:checksum", with the checksum in hexadecimal.
+         */
+        String fingerprint() {
+            return size + ":" + modified + ":" + Long.toHexString(checksum);
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> stories =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true); // iterates least recently used first
+    private static final LinkedHashMap<String, Index> indexes =
+        new LinkedHashMap<String, Index>(16, 0.75f, true) { // least recently used first
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+                return size() > MAX_INDEXES;
+            }
+        };
+    private static long bytes; // total of the bytes of the entries
+    private static long hits;
+    private static long misses;
+
+    /**
+     * Returns the cache key of a file: its canonical path, modification time and size.
+     *
+     * @param file The story file.
+     * @return The key, or null if the file does not exist or its path cannot be resolved.
+     */
+    static String key(File file) {
+        try {
+            long modified = file.lastModified();
+            if (modified == 0L) { // does not exist
+                return null;
+            }
+            return file.getCanonicalPath() + '|' + modified + '|' + file.length();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the story cached under key and marks it as the most recently used, if it was parsed
+     * from a file with the same checksum.
+     *
+     * @param key The key of the story file, see key.
+     * @param checksum The checksum of the file, see StoryCompiler.checksum.
+     * @return The story, or null if it is not cached or the file has changed since.
+     */
+    static synchronized Entry get(String key, long checksum) {
+        Entry entry = stories.get(key);
+        if (entry != null && entry.checksum != checksum) { // edited within the same mtime
+            bytes -= entry.bytes;
+            stories.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Keeps the Index of a story file that has just been parsed, replacing the one it had, or
+     * drops it if the story was parsed with errors.
+     *
+     * @param file The story file.
+     * @param checksum The checksum of the file parsed, see StoryCompiler.checksum.
+     * @param rooms The rooms of the story.
+     * @param messages The parse errors output while parsing the story.
+     * @param offsets The positions of the room lines in the file, parallel to rooms.
+     * @return The Index, or null if the story had errors or its path cannot be resolved.
+     */
+    static Index index(File file, long checksum, List<String[]> rooms, String messages,
+        int[] offsets) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+        Index index = messages.isEmpty()
+            ? new Index(path, file.length(), file.lastModified(), checksum, rooms, offsets) : null;
+        synchronized (StoryCache.class) {
+            if (index == null) {
+                indexes.remove(path);
+            } else {
+                indexes.put(path, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Keeps the Index of a story file loaded from the cache again, as it may have been dropped
+     * since the story was parsed.
+     *
+     * @param entry The story found in the cache.
+     */
+    static synchronized void index(Entry entry) {
+        if (entry.index != null) {
+            indexes.put(entry.index.path, entry.index);
+        }
+    }
+
+    /**
+     * Returns the Index of a story file, as of the last time it was parsed.
+     *
+     * @param file The story file.
+     * @return The Index, or null if the file has not been parsed without errors lately.
+     */
+    static Index indexOf(File file) {
+        try {
+            String path = file.getCanonicalPath();
+            synchronized (StoryCache.class) {
+                return indexes.get(path);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Caches a parsed story, dropping the least recently used stories until the cache fits in
+     * MAX_BYTES. A story larger than MAX_BYTES on its own is not cached.
+     *
+     * @param key The key of the story file, see key.
+     * @param rooms The rooms of the story.
+     * @param trans The transitions of the story.
+     * @param messages The parse errors output while parsing the story.
+     * @param checksum The checksum of the file parsed, see StoryCompiler.checksum.
+     * @param index The Index of the file, see index, or null.
+     */
+    static synchronized void put(String key, List<String[]> rooms,
+        List<ArrayList<String[]>> trans, String messages, long checksum, Index index) {
+        Entry entry = new Entry(rooms, trans, messages, checksum, index);
+        if (entry.bytes > MAX_BYTES) {
+            return;
+        }
+        Entry old = stories.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+        Iterator<Entry> eldest = stories.values().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            Entry dropped = eldest.next();
+            if (dropped != entry) {
+                bytes -= dropped.bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached story and Index.
+     */
+    public static synchronized void clear() {
+        stories.clear();
+        indexes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return The number of stories cached, their approximate size, and the hits and misses of the
+     *         cache so far.
+     */
+    public static synchronized String stats() {
+        return stories.size() + " stories, " + bytes + " bytes, " + hits + " hits, " + misses
+            + " misses";
+    }
+
+    /**
+     * @return The number of lookups that found a cached story.
+     */
+    public static synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Estimates the memory used by a story: object headers, references and one byte per
+     * character of every String.
+     */
+    static long footprint(List<String[]> rooms, List<ArrayList<String[]>> trans) {
+        long total = 40 + 4L * rooms.size() + 40 + 4L * trans.size();
+        for (String[] room : rooms) {
+            total += footprint(room);
+        }
+        for (ArrayList<String[]> roomTrans : trans) {
+            total += 40 + 4L * roomTrans.size();
+            for (String[] tran : roomTrans) {
+                total += footprint(tran);
+            }
+        }
+        return total;
+    }
+
+    private static long footprint(String[] details) {
+        long total = 16 + 4L * details.length;
+        for (String value : details) {
+            if (value != null) {
+                total += 40 + value.length();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,376 @@
+// Title: AdventureStory
+// Files: StoryCompiler.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Compiles a story file into a binary file that loads without being parsed, and loads it back.
+ *
+ * The format of a compiled story file is as follows. Numbers are big-endian and strings are
+ * written as an int byte length followed by the UTF-8 bytes of the string.
+ *
+ * Field            | Description
+ * ------------------------------------------------------------------
+ * magic line       | The value of Config.MAGIC_COMPILED followed by '\n'
+ * int              | FORMAT_VERSION
+ * string           | The absolute path of the story file that was compiled
+ * long, long, long | The size, modification time and CRC32C checksum of that story file
+ * int, strings     | The number of distinct strings, then the strings
+ * int, rooms       | The number of rooms, then for each room the string numbers of its id, title
+ *                  | and description and the number of its transitions
+ * int, transitions | The number of transitions, then for each transition the string numbers of
+ *                  | its description, room id and probability weight, and its destination as a
+ *                  | StoryGraph.target value
+ *
+ * A string number of -1 stands for null.
+ *
+ * AdventureStory.parseFile recognizes a compiled story by its first line. If the story file it
+ * was compiled from still exists but has changed since (a different size or checksum), the story
+ * file is parsed instead. The checksum is checked on every load, as an edit that keeps the size
+ * may also keep the modification time, which some file systems only record to the second or
+ * worse. Hashing the story file costs far less than parsing it. The modification time is still
+ * written, but not trusted.
+ *
+ * A compiled story is loaded without any of the parse error messages its story file would
+ * output, so a story file with parse errors is not compiled, and must be fixed first. The
+ * checksum and the compiled story are both made from the same single read of the story file, so
+ * that the checksum is that of the contents compiled even if the file is edited meanwhile.
+ */
+public class StoryCompiler {
+
+    /**
+     * Version of the compiled story format written by compile
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Compiles a story file. The compiled file is named after the story file, with ".txt"
+     * replaced by ".bin", unless a second argument is given.
+     *
+     * @param args The story filename, optionally followed by the compiled filename.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java StoryCompiler storyFile [compiledFile]");
+            return;
+        }
+        String compiledFile = args.length == 2 ? args[1] : compiledName(args[0]);
+        if (compile(args[0], compiledFile)) {
+            System.out.println("Compiled " + args[0] + " into " + compiledFile);
+        }
+    }
+
+    /**
+     * @param storyFile The story filename.
+     * @return The default compiled filename for storyFile.
+     */
+    public static String compiledName(String storyFile) {
+        if (storyFile.endsWith(".txt")) {
+            return storyFile.substring(0, storyFile.length() - 4) + ".bin";
+        }
+        return storyFile + ".bin";
+    }
+
+    /**
+     * Parses a story file and writes it in the compiled format.
+     *
+     * Parse errors are output as by AdventureStory.parseFile, followed by "Parse errors in file:
+     * storyFile", and the story is then not compiled. If the compiled file cannot be written,
+     * "Error writing file: compiledFile" is output.
+     *
+     * @param storyFile The name of the story file, which must start with Config.MAGIC_STORY.
+     * @param compiledFile The name of the file to write.
+     * @return true if the compiled file was written, otherwise false.
+     */
+    public static boolean compile(String storyFile, String compiledFile) {
+        File source = new File(storyFile).getAbsoluteFile();
+        long modified = source.lastModified(); // before reading, so never of a later version
+        ByteBuffer data;
+        try { // read once, as a mapping would show edits made while it is parsed
+            if (source.length() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to read: " + storyFile);
+            }
+            data = ByteBuffer.wrap(Files.readAllBytes(source.toPath()));
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + storyFile);
+            return false;
+        }
+        if (skipMagic(data, Config.MAGIC_STORY) < 0) {
+            System.out.println("Not a story file: " + storyFile);
+            return false;
+        }
+        long size = data.limit();
+        long hash = checksum(data);
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] errors = new String[1];
+        if (!StoryParser.parseStory(data, rooms, trans, new String[1], errors)) {
+            return false;
+        }
+        if (!errors[0].isEmpty()) {
+            System.out.println("Parse errors in file: " + storyFile);
+            return false;
+        }
+        StoryGraph graph = StoryGraph.compile(rooms, trans);
+
+        // string table, in order of first use
+        HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        for (int r = 0; r < rooms.size(); r++) {
+            for (String value : rooms.get(r)) {
+                number(value, numbers, strings);
+            }
+            for (String[] tran : trans.get(r)) {
+                for (String value : tran) {
+                    number(value, numbers, strings);
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(compiledFile), 1 << 16))) {
+            out.write((Config.MAGIC_COMPILED + "\n").getBytes(StandardCharsets.UTF_8));
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, source.getPath());
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(hash);
+            out.writeInt(strings.size());
+            for (String value : strings) {
+                writeString(out, value);
+            }
+            out.writeInt(rooms.size());
+            for (int r = 0; r < rooms.size(); r++) {
+                String[] room = rooms.get(r);
+                out.writeInt(number(room[Config.ROOM_ID], numbers, strings));
+                out.writeInt(number(room[Config.ROOM_TITLE], numbers, strings));
+                out.writeInt(number(room[Config.ROOM_DESC], numbers, strings));
+                out.writeInt(trans.get(r).size());
+            }
+            out.writeInt(graph.transitionCount());
+            int t = 0;
+            for (int r = 0; r < rooms.size(); r++) {
+                for (String[] tran : trans.get(r)) {
+                    out.writeInt(number(tran[Config.TRAN_DESC], numbers, strings));
+                    out.writeInt(number(tran[Config.TRAN_ROOM_ID], numbers, strings));
+                    out.writeInt(number(tran[Config.TRAN_PROB], numbers, strings));
+                    out.writeInt(graph.target(t++));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing file: " + compiledFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads a compiled story, with the results of AdventureStory.parseFile. Called by
+     * StoryParser once the first line, Config.MAGIC_COMPILED, has been read.
+     *
+     * @param data The contents of the compiled file.
+     * @param start The position after the first line.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0, unless it already holds one.
+     * @return false if the story could not be loaded. Otherwise, true.
+     */
+    static boolean load(ByteBuffer data, int start, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        data.position(start);
+        if (data.getInt() != FORMAT_VERSION) {
+            return false;
+        }
+        String source = readString(data, new byte[256]);
+        if (isStale(source, data.getLong(), data.getLong(), data.getLong())) {
+            return AdventureStory.loadFile(source, rooms, trans, curRoom); // counted by the caller
+        }
+        read(data, rooms, trans);
+        if (curRoom[0] == null) {
+            if (rooms.isEmpty()) {
+                return false;
+            }
+            curRoom[0] = rooms.get(0)[Config.ROOM_ID];
+        }
+        RoomIndex.rebuild(rooms);
+        return true;
+    }
+
+    /**
+     * Loads a compiled story straight into a StoryGraph, using the destinations resolved when the
+     * story was compiled. A stale compiled story is replaced by its parsed story file.
+     *
+     * @param compiledFile The name of the compiled file.
+     * @param curRoom An array of at least length 1. The start room id will be stored in the cell
+     *                at index 0, unless it already holds one.
+     * @return The story, or null if it could not be loaded.
+     */
+    public static StoryGraph loadGraph(String compiledFile, String[] curRoom) {
+        try {
+            ByteBuffer data = StoryParser.map(compiledFile);
+            int start = skipMagic(data, Config.MAGIC_COMPILED);
+            if (start < 0) {
+                return StoryGraph.load(compiledFile, curRoom); // not compiled, parse it
+            }
+            data.position(start);
+            if (data.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String source = readString(data, new byte[256]);
+            if (isStale(source, data.getLong(), data.getLong(), data.getLong())) {
+                return StoryGraph.load(source, curRoom);
+            }
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            int[] targets = read(data, rooms, trans);
+            if (rooms.isEmpty()) {
+                return null;
+            }
+            if (curRoom[0] == null) {
+                curRoom[0] = rooms.get(0)[Config.ROOM_ID];
+            }
+            return StoryGraph.compile(rooms, trans, targets);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the strings, rooms and transitions of a compiled story.
+     *
+     * @return The destinations of the transitions, as StoryGraph.target values.
+     */
+    private static int[] read(ByteBuffer data, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        byte[] buffer = new byte[256];
+        String[] strings = new String[data.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(data, buffer);
+        }
+        int roomCount = data.getInt();
+        int[] tranCounts = new int[roomCount];
+        rooms.ensureCapacity(rooms.size() + roomCount);
+        trans.ensureCapacity(trans.size() + roomCount);
+        for (int r = 0; r < roomCount; r++) {
+            String[] room = new String[Config.ROOM_DET_LEN];
+            room[Config.ROOM_ID] = string(strings, data.getInt());
+            room[Config.ROOM_TITLE] = string(strings, data.getInt());
+            room[Config.ROOM_DESC] = string(strings, data.getInt());
+            tranCounts[r] = data.getInt();
+            rooms.add(room);
+        }
+        int[] targets = new int[data.getInt()];
+        int t = 0;
+        for (int r = 0; r < roomCount; r++) {
+            ArrayList<String[]> roomTrans = new ArrayList<String[]>(tranCounts[r]);
+            for (int i = 0; i < tranCounts[r]; i++) {
+                String[] tran = new String[Config.TRAN_DET_LEN];
+                tran[Config.TRAN_DESC] = string(strings, data.getInt());
+                tran[Config.TRAN_ROOM_ID] = string(strings, data.getInt());
+                tran[Config.TRAN_PROB] = string(strings, data.getInt());
+                targets[t++] = data.getInt();
+                roomTrans.add(tran);
+            }
+            trans.add(roomTrans);
+        }
+        return targets;
+    }
+
+    /**
+     * Returns true if the story file a compiled story was made from exists and has changed. The
+     * modification time is not used, see the class comment.
+     */
+    private static boolean isStale(String source, long size, long modified, long hash) {
+        File file = new File(source);
+        if (!file.isFile()) { // the compiled story is all there is
+            return false;
+        }
+        if (file.length() != size) {
+            return true;
+        }
+        try { // the same size, but maybe not the same contents
+            return checksum(StoryParser.map(source)) != hash;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return The CRC32C checksum of all of data.
+     */
+    static long checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate().clear());
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the position after the first line of data if that line is magic.
+     *
+     * @return The position of the second line, or -1 if the first line is not magic.
+     */
+    static int skipMagic(ByteBuffer data, String magic) {
+        byte[] expected = magic.getBytes(StandardCharsets.UTF_8);
+        if (data.limit() < expected.length) {
+            return -1;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (data.get(i) != expected[i]) {
+                return -1;
+            }
+        }
+        int pos = expected.length;
+        while (pos < data.limit() && data.get(pos) != '\n') { // the rest of the first line
+            if ((data.get(pos) & 0xff) > ' ') {
+                return -1;
+            }
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    private static int number(String value, HashMap<String, Integer> numbers,
+        ArrayList<String> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer number = numbers.get(value);
+        if (number == null) {
+            number = strings.size();
+            numbers.put(value, number);
+            strings.add(value);
+        }
+        return number;
+    }
+
+    private static String string(String[] strings, int number) {
+        return number < 0 ? null : strings[number];
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data, byte[] buffer) {
+        int length = data.getInt();
+        byte[] bytes = length <= buffer.length ? buffer : new byte[length];
+        data.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
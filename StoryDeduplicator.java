@@ -0,0 +1,217 @@
+// Title: AdventureStory
+// Files: StoryDeduplicator.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Shares the repeated parts of a parsed story, so that each is kept in memory only once.
+ *
+ * Parsing allocates new Strings, String arrays and ArrayLists for every transition, even though
+ * stories repeat them a lot: rooms R3 to R5 of Goldilocks.story.txt have the same five
+ * transitions, every destination id is also the id of a room, and generated stories reuse the
+ * same few transition descriptions. deduplicate replaces, in this order:
+ *
+ * Replaced         | By
+ * ------------------------------------------------------------------------------------------
+ * Strings          | The first equal room id or transition field of the story
+ * transitions      | The first transition array with the same fields
+ * transition lists | The first transition list of a room with the same transitions
+ *
+ * Room titles and descriptions are left alone, as they are rarely repeated. The rooms and
+ * transitions printed are the same, only shared, so the parsed story must be treated as read
+ * only: changing a shared transition changes it in every room that has it. The StoryCache keeps
+ * the same sharing in the copies it returns.
+ *
+ * StoryParser deduplicates every story and compiled story it loads when Config.DEDUPLICATE is
+ * true, which it is not by default as it makes parsing slower, and the bytes saved are counted in
+ * Metrics.DEDUPLICATED_BYTES. While parsing a story file it already decodes each repeated room id
+ * and transition field only once (see StoryParser.pooledText), so only the transitions and
+ * transition lists are shared afterwards, and the Strings too for a story parsed in chunks, whose
+ * chunks each pool their own Strings.
+ *
+ * Usage: java StoryDeduplicator storyFile
+ *        Outputs what deduplicating the story shares and the memory it saves.
+ */
+public class StoryDeduplicator {
+
+    /**
+     * What a call to deduplicate shared, with the bytes counted as in StoryCache.footprint.
+     */
+    public static class Report {
+        int strings; // Strings replaced
+        int transitions; // transition arrays replaced
+        int lists; // transition lists replaced
+        long before; // approximate bytes of the story before
+        long saved; // approximate bytes no longer used
+
+        /**
+         * @return The number of Strings replaced by an equal String.
+         */
+        public int strings() {
+            return strings;
+        }
+
+        /**
+         * @return The number of transition arrays replaced by an equal array.
+         */
+        public int transitions() {
+            return transitions;
+        }
+
+        /**
+         * @return The number of transition lists replaced by an equal list.
+         */
+        public int lists() {
+            return lists;
+        }
+
+        /**
+         * @return The approximate number of bytes the story used before.
+         */
+        public long before() {
+            return before;
+        }
+
+        /**
+         * @return The approximate number of bytes saved.
+         */
+        public long saved() {
+            return saved;
+        }
+
+        /**
+         * @return One line of what was shared and saved.
+         */
+        @Override
+        public String toString() {
+            return String.format("shared %d strings, %d transitions and %d transition lists, "
+                + "saving about %d of %d bytes (%.1f%%)", strings, transitions, lists, saved,
+                before, before == 0 ? 0.0 : 100.0 * saved / before);
+        }
+    }
+
+    private final boolean shareStrings; // false when the Strings are shared already
+    private final HashMap<String, String> strings;
+    private final HashMap<List<String>, String[]> transitions; // keyed by their fields
+    private final HashMap<ArrayList<String[]>, ArrayList<String[]>> lists;
+    private final Report report = new Report();
+
+    /**
+     * Creates a deduplicator whose maps are large enough for a story of a number of rooms, so
+     * that they are not resized while the story is deduplicated.
+     */
+    private StoryDeduplicator(int rooms, boolean shareStrings) {
+        this.shareStrings = shareStrings;
+        strings = new HashMap<String, String>(shareStrings ? rooms * 4 : 0);
+        transitions = new HashMap<List<String>, String[]>(rooms * 4);
+        lists = new HashMap<ArrayList<String[]>, ArrayList<String[]>>(rooms * 2);
+    }
+
+    /**
+     * Outputs the report of deduplicating a story file.
+     *
+     * @param args The story file.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java StoryDeduplicator storyFile");
+            return;
+        }
+        Config.DEDUPLICATE = false; // deduplicated below instead
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        if (!AdventureStory.parseFile(args[0], rooms, trans, new String[1])) {
+            System.out.println(args[0] + ": unable to parse the story");
+            System.exit(2);
+        }
+        System.out.println(args[0] + ": " + deduplicate(rooms, trans));
+    }
+
+    /**
+     * Shares the equal Strings, transitions and transition lists of a parsed story, replacing
+     * them in place. The room arrays are modified, and must not be shared yet.
+     *
+     * @param rooms The room details, see AdventureStory.parseStory.
+     * @param trans The transition details, see AdventureStory.parseStory.
+     * @return What was shared.
+     */
+    public static Report deduplicate(List<String[]> rooms, List<ArrayList<String[]>> trans) {
+        return deduplicate(rooms, trans, true);
+    }
+
+    /**
+     * Shares the equal transitions and transition lists of a parsed story whose equal Strings are
+     * already the same String, replacing them in place.
+     *
+     * @param rooms The room details, see AdventureStory.parseStory.
+     * @param trans The transition details, see AdventureStory.parseStory.
+     * @return What was shared.
+     */
+    static Report shareTransitions(List<String[]> rooms, List<ArrayList<String[]>> trans) {
+        return deduplicate(rooms, trans, false);
+    }
+
+    private static Report deduplicate(List<String[]> rooms, List<ArrayList<String[]>> trans,
+        boolean shareStrings) {
+        StoryDeduplicator deduplicator = new StoryDeduplicator(rooms.size(), shareStrings);
+        Report report = deduplicator.report;
+        report.before = StoryCache.footprint(rooms, trans);
+        for (String[] room : rooms) { // destination ids are then shared with the room ids
+            room[Config.ROOM_ID] = deduplicator.string(room[Config.ROOM_ID]);
+        }
+        for (int r = 0; r < trans.size(); r++) {
+            ArrayList<String[]> roomTrans = trans.get(r);
+            for (int i = 0; i < roomTrans.size(); i++) {
+                roomTrans.set(i, deduplicator.transition(roomTrans.get(i)));
+            }
+            ArrayList<String[]> same = deduplicator.lists.putIfAbsent(roomTrans, roomTrans);
+            if (same != null && same != roomTrans) { // with the shared transitions already
+                trans.set(r, same);
+                report.lists++;
+                report.saved += 40 + 4L * roomTrans.size();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return The first String equal to value, or value if it is the first.
+     */
+    private String string(String value) {
+        if (value == null || !shareStrings) {
+            return value;
+        }
+        String same = strings.putIfAbsent(value, value);
+        if (same == null) {
+            return value;
+        }
+        if (same != value) {
+            report.strings++;
+            report.saved += 40 + value.length();
+        }
+        return same;
+    }
+
+    /**
+     * @return The first transition with the same fields as tran, or tran with its fields shared
+     *         if it is the first.
+     */
+    private String[] transition(String[] tran) {
+        for (int f = 0; f < tran.length; f++) {
+            tran[f] = string(tran[f]);
+        }
+        String[] same = transitions.putIfAbsent(Arrays.asList(tran), tran);
+        if (same == null || same == tran) {
+            return tran;
+        }
+        report.transitions++;
+        report.saved += 16 + 4L * tran.length;
+        return same;
+    }
+}
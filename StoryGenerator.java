@@ -0,0 +1,251 @@
+// Title: AdventureStory
+// Files: StoryGenerator.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes random, valid story files of any size, for load and stress testing.
+ *
+ * The shape of the story is set with the chainable methods below:
+ *
+ * Method      | Default | Description
+ * ------------------------------------------------------------------------------------------
+ * branching   | 3       | Transitions of each room that is not terminal
+ * descWords   | 40      | Mean number of words of a description. The lengths are exponentially
+ *             |         | distributed, so most descriptions are short and a few are very long
+ * weighted    | 0.1     | Fraction of the rooms whose transitions are weighted with " ? weight"
+ * cycles      | 0.2     | Fraction of the transitions that lead back to an earlier room (or the
+ *             |         | same room), the others lead to a later room
+ * terminals   | 0.05    | Fraction of the rooms that end the story, half with Config.SUCCESS and
+ *             |         | half with Config.FAIL
+ * seed        | SEED    | Seed of the Random, Config.SEED by default
+ *
+ * The first room is never terminal and the last room always is, so every transition leads to a
+ * room of the story. The same settings and seed always write the same file.
+ *
+ * Rooms are written one at a time as they are generated, and nothing is kept about the rooms
+ * already written, so stories of many gigabytes are written in constant memory.
+ *
+ * Usage: java StoryGenerator storyFile rooms [branching] [descWords] [weighted] [cycles]
+ *        [terminals]
+ */
+public class StoryGenerator {
+
+    private static final String[] WORDS = {"the", "a", "dark", "old", "forest", "door", "bear",
+        "porridge", "chair", "bed", "window", "path", "stone", "river", "quiet", "small", "large",
+        "you", "see", "hear", "walk", "towards", "under", "over", "and", "slowly", "suddenly",
+        "cottage", "kitchen", "stairs", "light", "shadow", "wooden", "golden", "table", "bowl"};
+    private static final int LINE_LENGTH = 72; // of the description lines written
+
+    private final long rooms;
+    private int branching = 3;
+    private int descWords = 40;
+    private double weighted = 0.1;
+    private double cycles = 0.2;
+    private double terminals = 0.05;
+    private long seed = Config.SEED;
+
+    /**
+     * Creates a generator of stories of a number of rooms, with the default settings.
+     *
+     * @param rooms The number of rooms, at least 2.
+     */
+    public StoryGenerator(long rooms) {
+        if (rooms < 2) {
+            throw new IllegalArgumentException("A story needs at least 2 rooms: " + rooms);
+        }
+        this.rooms = rooms;
+    }
+
+    /**
+     * @param branching The number of transitions of each room that is not terminal, at least 1.
+     * @return This generator.
+     */
+    public StoryGenerator branching(int branching) {
+        if (branching < 1) {
+            throw new IllegalArgumentException("branching must be at least 1: " + branching);
+        }
+        this.branching = branching;
+        return this;
+    }
+
+    /**
+     * @param descWords The mean number of words of a description, at least 1.
+     * @return This generator.
+     */
+    public StoryGenerator descWords(int descWords) {
+        if (descWords < 1) {
+            throw new IllegalArgumentException("descWords must be at least 1: " + descWords);
+        }
+        this.descWords = descWords;
+        return this;
+    }
+
+    /**
+     * @param weighted The fraction of the rooms with weighted transitions, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator weighted(double weighted) {
+        this.weighted = fraction("weighted", weighted);
+        return this;
+    }
+
+    /**
+     * @param cycles The fraction of the transitions that lead back, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator cycles(double cycles) {
+        this.cycles = fraction("cycles", cycles);
+        return this;
+    }
+
+    /**
+     * @param terminals The fraction of the rooms that end the story, from 0 to 1.
+     * @return This generator.
+     */
+    public StoryGenerator terminals(double terminals) {
+        this.terminals = fraction("terminals", terminals);
+        return this;
+    }
+
+    /**
+     * @param seed The seed of the Random the story is generated with.
+     * @return This generator.
+     */
+    public StoryGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Writes a story to a file, in UTF-8.
+     *
+     * @param storyFile The name of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(String storyFile) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(storyFile), StandardCharsets.UTF_8), 1 << 16)) {
+            write(out);
+        }
+    }
+
+    /**
+     * Writes a story. out is not closed, and should be buffered.
+     *
+     * @param out Where to write the story.
+     * @throws IOException If out cannot be written to.
+     */
+    public void write(Writer out) throws IOException {
+        Random rand = new Random(seed);
+        StringBuilder room = new StringBuilder(1024);
+        room.append(Config.MAGIC_STORY).append('\n');
+        for (long r = 1; r <= rooms; r++) {
+            room.append('R').append(r).append(": ");
+            words(room, 2 + rand.nextInt(4), rand);
+            room.append('\n');
+            description(room, rand);
+            room.append(";;;\n");
+            boolean terminal = r == rooms || (r > 1 && rand.nextDouble() < terminals);
+            if (terminal) {
+                room.append(r == rooms || rand.nextBoolean() ? Config.SUCCESS : Config.FAIL);
+                room.append('\n');
+            } else {
+                boolean weights = rand.nextDouble() < weighted;
+                for (int t = 0; t < branching; t++) {
+                    long target = rand.nextDouble() < cycles ? 1 + (long) (rand.nextDouble() * r)
+                        : r + 1 + (long) (rand.nextDouble() * (rooms - r));
+                    room.append(": ");
+                    words(room, 2 + rand.nextInt(5), rand);
+                    room.append(" -> ").append(target);
+                    if (weights) {
+                        room.append(" ? ").append(1 + rand.nextInt(10));
+                    }
+                    room.append('\n');
+                }
+            }
+            out.append(room);
+            room.setLength(0);
+        }
+    }
+
+    /**
+     * Writes a story file from the command line arguments.
+     *
+     * @param args See the class comment.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 7) {
+            System.out.println("Usage: java StoryGenerator storyFile rooms [branching] [descWords] "
+                + "[weighted] [cycles] [terminals]");
+            return;
+        }
+        StoryGenerator generator = new StoryGenerator(Long.parseLong(args[1]));
+        if (args.length > 2) {
+            generator.branching(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.descWords(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.weighted(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            generator.cycles(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6) {
+            generator.terminals(Double.parseDouble(args[6]));
+        }
+        generator.write(args[0]);
+    }
+
+    /**
+     * Appends a description with an exponentially distributed number of words, in lines of at
+     * most LINE_LENGTH characters.
+     */
+    private void description(StringBuilder room, Random rand) {
+        long count = 1 + (long) (-descWords * Math.log(1 - rand.nextDouble()));
+        int lineStart = room.length();
+        for (long w = 0; w < count; w++) {
+            String word = WORDS[rand.nextInt(WORDS.length)];
+            if (room.length() > lineStart) {
+                if (room.length() - lineStart + 1 + word.length() > LINE_LENGTH) {
+                    room.append('\n');
+                    lineStart = room.length();
+                } else {
+                    room.append(' ');
+                }
+            }
+            room.append(word);
+        }
+        room.append('\n');
+    }
+
+    /**
+     * Appends a number of random words, separated by spaces.
+     */
+    private static void words(StringBuilder text, int count, Random rand) {
+        for (int w = 0; w < count; w++) {
+            if (w > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+    }
+
+    private static double fraction(String name, double value) {
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " must be from 0 to 1: " + value);
+        }
+        return value;
+    }
+}
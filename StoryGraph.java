@@ -0,0 +1,604 @@
+// Title: AdventureStory
+// Files: StoryGraph.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * An immutable, compiled form of a parsed story.
+ *
+ * parseStory produces the parallel ArrayLists rooms and trans, where every transition refers to
+ * its destination by room id. compile turns those lists into a graph where rooms are numbered
+ * 0 to roomCount() - 1 in file order (so room 0 is the start room), and the transitions of all
+ * the rooms are stored back to back in primitive arrays:
+ *
+ * Array          | Description
+ * ------------------------------------------------------------------
+ * tranOffset     | The transitions of room r are tranOffset[r] to tranOffset[r + 1] - 1
+ * tranTarget     | The index of the destination room, or one of the constants below
+ * tranWeight     | The probability weight, NO_WEIGHT or BAD_WEIGHT
+ * tranDesc       | The transition description
+ *
+ * Weighted transitions are also compiled: a room whose transitions all have int weights adding
+ * up to more than 0 gets a running total per transition (tranCumulative) and a guide table
+ * (tranGuide) that points into it. pick uses them to choose a transition in constant expected
+ * time without parsing or allocating, while drawing the same random number and choosing the same
+ * transition as AdventureStory.probTrans. As probTrans sums the weights as they are, a negative
+ * weight, although a BAD_WEIGHT in tranWeight, still counts towards the running totals, so such a
+ * room is drawn from the same way. The only difference is a room whose weights add up to less
+ * than 0, from which probTrans cannot draw and throws: the player chooses instead.
+ *
+ * Destination room ids are resolved once when the graph is compiled, so moving between rooms is
+ * an array read. A graph loaded with loadLazy keeps no room descriptions, roomDesc decodes them
+ * from the story file when they are needed, see LazyDescriptions. A StoryGraph is never modified
+ * after it has been compiled, so it can be shared between threads without locking.
+ *
+ * Each graph also keeps the room frames Renderer.frame laid out last, see FrameCache.
+ */
+public class StoryGraph {
+
+    /**
+     * Values of tranTarget that are not room indices
+     */
+    public static final int TARGET_SUCCESS = -1; // terminal transition Config.SUCCESS
+    public static final int TARGET_FAIL = -2; // terminal transition Config.FAIL
+    public static final int TARGET_MISSING = -3; // destination room id not found in the story
+
+    /**
+     * Values of tranWeight that are not probability weights
+     */
+    public static final int NO_WEIGHT = -1; // normal transition, Config.TRAN_PROB is null
+    public static final int BAD_WEIGHT = -2; // Config.TRAN_PROB is not a non-negative int
+
+    private final String[] roomIds;
+    private final String[] roomTitles;
+    private final String[] roomDescs; // null when the descriptions are lazy
+    private final LazyDescriptions descriptions; // null when roomDescs holds the descriptions
+    private final HashMap<String, Integer> roomIndex; // room id -> room index
+
+    private final int[] tranOffset;
+    private final int[] tranTarget;
+    private final int[] tranWeight;
+    private final String[] tranDesc;
+    private final String[] tranTargetId; // destination ids as written in the story file
+
+    private final int[] roomTotalWeight; // sum of the weights, 0 if the room is not weighted
+    private final int[] tranCumulative; // running total of the weights within the room
+    private final int[] tranGuide; // first transition to search for each bucket of the room
+
+    private final FrameCache frames = new FrameCache(FrameCache.DEFAULT_FRAMES); // of this graph
+
+    /**
+     * Creates a graph from already compiled arrays. Use compile to build one from a parsed story.
+     */
+    private StoryGraph(String[] roomIds, String[] roomTitles, String[] roomDescs,
+        LazyDescriptions descriptions, HashMap<String, Integer> roomIndex, int[] tranOffset,
+        int[] tranTarget, int[] tranWeight, String[] tranDesc, String[] tranTargetId,
+        int[] roomTotalWeight, int[] tranCumulative, int[] tranGuide) {
+        this.roomIds = roomIds;
+        this.roomTitles = roomTitles;
+        this.roomDescs = roomDescs;
+        this.descriptions = descriptions;
+        this.roomIndex = roomIndex;
+        this.tranOffset = tranOffset;
+        this.tranTarget = tranTarget;
+        this.tranWeight = tranWeight;
+        this.tranDesc = tranDesc;
+        this.tranTargetId = tranTargetId;
+        this.roomTotalWeight = roomTotalWeight;
+        this.tranCumulative = tranCumulative;
+        this.tranGuide = tranGuide;
+    }
+
+    /**
+     * Compiles the parallel ArrayLists produced by parseStory into a StoryGraph.
+     *
+     * See AdventureStory.parseStory for the structure of rooms and trans. If rooms and trans have
+     * different sizes, only the rooms with a transition list are compiled. If a room id appears
+     * more than once, transitions to that id go to the first room with that id.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details.
+     * @return The compiled story.
+     */
+    public static StoryGraph compile(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        return compile(rooms, trans, null);
+    }
+
+    /**
+     * Compiles a parsed story whose transition destinations have already been resolved, e.g. by
+     * StoryCompiler.
+     *
+     * @param rooms The ArrayList structure that contains the room details.
+     * @param trans The ArrayList structure that contains the transition details.
+     * @param targets The destination of every transition, in order, as tranTarget values, or null
+     *                to resolve the destinations from the room ids.
+     * @return The compiled story.
+     */
+    static StoryGraph compile(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans,
+        int[] targets) {
+        return compile(rooms, trans, targets, null);
+    }
+
+    /**
+     * Compiles a parsed story, with the room descriptions either in rooms or, if descriptions is
+     * not null, decoded on demand by descriptions.
+     */
+    private static StoryGraph compile(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, int[] targets, LazyDescriptions descriptions) {
+        int roomCount = Math.min(rooms.size(), trans.size());
+        String[] roomIds = new String[roomCount];
+        String[] roomTitles = new String[roomCount];
+        String[] roomDescs = descriptions == null ? new String[roomCount] : null;
+        HashMap<String, Integer> roomIndex = new HashMap<String, Integer>(roomCount * 4 / 3 + 1);
+        int[] tranOffset = new int[roomCount + 1];
+
+        // first pass: room details, id index and transition offsets
+        for (int r = 0; r < roomCount; r++) {
+            String[] room = rooms.get(r);
+            roomIds[r] = room[Config.ROOM_ID];
+            roomTitles[r] = room[Config.ROOM_TITLE];
+            if (roomDescs != null) {
+                roomDescs[r] = room[Config.ROOM_DESC];
+            }
+            roomIndex.putIfAbsent(roomIds[r], r);
+            tranOffset[r + 1] = tranOffset[r] + trans.get(r).size();
+        }
+
+        // second pass: transitions with their destinations resolved
+        int tranCount = tranOffset[roomCount];
+        int[] tranTarget = new int[tranCount];
+        int[] tranWeight = new int[tranCount];
+        String[] tranDesc = new String[tranCount];
+        String[] tranTargetId = new String[tranCount];
+        int t = 0;
+        for (int r = 0; r < roomCount; r++) {
+            ArrayList<String[]> roomTrans = trans.get(r);
+            for (int i = 0; i < roomTrans.size(); i++, t++) {
+                String[] tran = roomTrans.get(i);
+                tranDesc[t] = tran[Config.TRAN_DESC];
+                tranTargetId[t] = tran[Config.TRAN_ROOM_ID];
+                tranTarget[t] = targets != null ? targets[t] : resolveTarget(tran, roomIndex);
+                tranWeight[t] = parseWeight(tran[Config.TRAN_PROB]);
+            }
+        }
+
+        // third pass: running totals and guide tables of the weighted rooms
+        int[] roomTotalWeight = new int[roomCount];
+        int[] tranCumulative = new int[tranCount];
+        int[] tranGuide = new int[tranCount];
+        for (int r = 0; r < roomCount; r++) {
+            roomTotalWeight[r] =
+                buildGuide(tranOffset[r], tranOffset[r + 1], trans.get(r), tranWeight,
+                    tranCumulative, tranGuide);
+        }
+        return new StoryGraph(roomIds, roomTitles, roomDescs, descriptions, roomIndex, tranOffset,
+            tranTarget, tranWeight, tranDesc, tranTargetId, roomTotalWeight, tranCumulative,
+            tranGuide);
+    }
+
+    /**
+     * Compiles a new version of a story in which only some rooms changed, each keeping its id and
+     * position. The unchanged rooms keep their resolved transitions, which are copied in bulk,
+     * and the id index is shared with the old version, so only the transitions of the changed
+     * rooms are resolved again.
+     *
+     * @param graph The old version, not loaded with loadLazy.
+     * @param changed The indices of the changed rooms, in increasing order.
+     * @param rooms The room details of the new version, with the same ids in the same order.
+     * @param trans The transition details of the new version.
+     * @return The new version.
+     */
+    static StoryGraph patch(StoryGraph graph, int[] changed, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        int roomCount = graph.roomCount();
+        String[] roomTitles = graph.roomTitles.clone();
+        String[] roomDescs = graph.roomDescs.clone();
+        int[] roomTotalWeight = graph.roomTotalWeight.clone();
+        int[] tranOffset = new int[roomCount + 1];
+        int c = 0;
+        for (int r = 0; r < roomCount; r++) {
+            int size = graph.tranOffset[r + 1] - graph.tranOffset[r];
+            if (c < changed.length && changed[c] == r) {
+                roomTitles[r] = rooms.get(r)[Config.ROOM_TITLE];
+                roomDescs[r] = rooms.get(r)[Config.ROOM_DESC];
+                size = trans.get(r).size();
+                c++;
+            }
+            tranOffset[r + 1] = tranOffset[r] + size;
+        }
+
+        int tranCount = tranOffset[roomCount];
+        int[] tranTarget = new int[tranCount];
+        int[] tranWeight = new int[tranCount];
+        String[] tranDesc = new String[tranCount];
+        String[] tranTargetId = new String[tranCount];
+        int[] tranCumulative = new int[tranCount];
+        int[] tranGuide = new int[tranCount];
+        int from = 0; // first room of the run of unchanged rooms being copied
+        for (int i = 0; i <= changed.length; i++) {
+            int to = i < changed.length ? changed[i] : roomCount;
+            int oldStart = graph.tranOffset[from];
+            int length = graph.tranOffset[to] - oldStart;
+            int start = tranOffset[from];
+            System.arraycopy(graph.tranTarget, oldStart, tranTarget, start, length);
+            System.arraycopy(graph.tranWeight, oldStart, tranWeight, start, length);
+            System.arraycopy(graph.tranDesc, oldStart, tranDesc, start, length);
+            System.arraycopy(graph.tranTargetId, oldStart, tranTargetId, start, length);
+            System.arraycopy(graph.tranCumulative, oldStart, tranCumulative, start, length);
+            for (int t = 0; t < length; t++) { // the guides point to moved transitions
+                tranGuide[start + t] = graph.tranGuide[oldStart + t] + start - oldStart;
+            }
+            if (i == changed.length) {
+                break;
+            }
+            ArrayList<String[]> roomTrans = trans.get(to);
+            for (int t = tranOffset[to]; t < tranOffset[to + 1]; t++) {
+                String[] tran = roomTrans.get(t - tranOffset[to]);
+                tranDesc[t] = tran[Config.TRAN_DESC];
+                tranTargetId[t] = tran[Config.TRAN_ROOM_ID];
+                tranTarget[t] = resolveTarget(tran, graph.roomIndex);
+                tranWeight[t] = parseWeight(tran[Config.TRAN_PROB]);
+            }
+            roomTotalWeight[to] = buildGuide(tranOffset[to], tranOffset[to + 1], roomTrans,
+                tranWeight, tranCumulative, tranGuide);
+            from = to + 1;
+        }
+        return new StoryGraph(graph.roomIds, roomTitles, roomDescs, null, graph.roomIndex,
+            tranOffset, tranTarget, tranWeight, tranDesc, tranTargetId, roomTotalWeight,
+            tranCumulative, tranGuide);
+    }
+
+    /**
+     * Fills in the running totals and the guide table for the transitions first to end - 1 of a
+     * room.
+     *
+     * The random number drawn for a room with total weight W is split into as many equal buckets
+     * as the room has transitions. The guide entry of a bucket is the first transition whose
+     * running total exceeds the smallest number in that bucket, so the search for any number in
+     * the bucket can start there and, on average, only steps over about one transition.
+     *
+     * Negative weights are summed as probTrans sums them, so the running totals may go down. The
+     * guide of a bucket is still the first transition whose running total exceeds the smallest
+     * number in the bucket, and no transition before it can be selected for a number in the
+     * bucket, so the search stays the same.
+     *
+     * @param roomTrans The transitions of the room, whose weights are parsed again only if they
+     *                  are a BAD_WEIGHT, to find the negative ones.
+     * @return The total weight, or 0 if the room has no transitions, a transition without an int
+     *         weight, or weights that add up to 0 or less or overflow an int.
+     */
+    private static int buildGuide(int first, int end, ArrayList<String[]> roomTrans,
+        int[] tranWeight, int[] tranCumulative, int[] tranGuide) {
+        long total = 0;
+        for (int t = first; t < end; t++) {
+            long weight = tranWeight[t];
+            if (weight == NO_WEIGHT) {
+                return 0;
+            } else if (weight == BAD_WEIGHT) { // a negative int still counts, as in probTrans
+                weight = negativeWeight(roomTrans.get(t - first)[Config.TRAN_PROB]);
+                if (weight == Long.MIN_VALUE) {
+                    return 0;
+                }
+            }
+            total += weight;
+            if (total > Integer.MAX_VALUE || total < Integer.MIN_VALUE) {
+                return 0;
+            }
+            tranCumulative[t] = (int) total;
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        int buckets = end - first;
+        int t = first;
+        for (int g = 0; g < buckets; g++) {
+            long lowest = (g * total + buckets - 1) / buckets; // smallest number in bucket g
+            while (tranCumulative[t] <= lowest) {
+                t++;
+            }
+            tranGuide[first + g] = t;
+        }
+        return (int) total;
+    }
+
+    /**
+     * Loads a story or bookmark file with AdventureStory.parseFile and compiles it.
+     *
+     * @param fName The name of the file to read.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return The compiled story, or null if the file could not be parsed.
+     */
+    public static StoryGraph load(String fName, String[] curRoom) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        if (!AdventureStory.parseFile(fName, rooms, trans, curRoom)) {
+            return null;
+        }
+        return compile(rooms, trans);
+    }
+
+    /**
+     * Loads a story or bookmark file like load, but leaves the room descriptions of a story file
+     * in the file, to be decoded when roomDesc is called. This saves most of the memory of a
+     * large story when only a few of its rooms are shown, or none, as when it is simulated,
+     * analyzed or validated. Compiled stories are loaded with their descriptions.
+     *
+     * @param fName The name of the file to read.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return The compiled story, or null if the file could not be parsed.
+     */
+    public static StoryGraph loadLazy(String fName, String[] curRoom) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        LazyDescriptions[] lazy = new LazyDescriptions[1];
+        try {
+            if (!StoryParser.parseLazily(fName, rooms, trans, curRoom, lazy)) {
+                return null;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + fName);
+            return null;
+        }
+        return compile(rooms, trans, null, lazy[0]);
+    }
+
+    /**
+     * Returns the tranTarget value for a transition String array.
+     */
+    private static int resolveTarget(String[] tran, HashMap<String, Integer> roomIndex) {
+        String id = tran[Config.TRAN_ROOM_ID];
+        if (id == null) { // only terminal transitions have no destination
+            if (Config.SUCCESS.equals(tran[Config.TRAN_DESC])) {
+                return TARGET_SUCCESS;
+            }
+            if (Config.FAIL.equals(tran[Config.TRAN_DESC])) {
+                return TARGET_FAIL;
+            }
+            return TARGET_MISSING;
+        }
+        Integer target = roomIndex.get(id);
+        if (target == null) {
+            return TARGET_MISSING;
+        }
+        return target;
+    }
+
+    /**
+     * Returns the weight of a BAD_WEIGHT transition if it is a negative int.
+     *
+     * @return The weight, or Long.MIN_VALUE if it is not an int.
+     */
+    private static long negativeWeight(String prob) {
+        try {
+            return Integer.parseInt(prob);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns the tranWeight value for the String at index Config.TRAN_PROB.
+     */
+    private static int parseWeight(String prob) {
+        if (prob == null) {
+            return NO_WEIGHT;
+        }
+        try {
+            int weight = Integer.parseInt(prob);
+            return weight < 0 ? BAD_WEIGHT : weight;
+        } catch (NumberFormatException e) {
+            return BAD_WEIGHT;
+        }
+    }
+
+    /**
+     * @return The number of rooms in the story.
+     */
+    public int roomCount() {
+        return roomIds.length;
+    }
+
+    /**
+     * @return The total number of transitions of all the rooms.
+     */
+    public int transitionCount() {
+        return tranTarget.length;
+    }
+
+    /**
+     * Returns the index of the given room id.
+     *
+     * @param id The room id to search for.
+     * @return The index of the room, otherwise -1.
+     */
+    public int indexOf(String id) {
+        Integer room = roomIndex.get(id);
+        if (room == null) {
+            return -1;
+        }
+        return room;
+    }
+
+    /**
+     * @param room The room index.
+     * @return The room id.
+     */
+    public String roomId(int room) {
+        return roomIds[room];
+    }
+
+    /**
+     * @param room The room index.
+     * @return The room title.
+     */
+    public String roomTitle(int room) {
+        return roomTitles[room];
+    }
+
+    /**
+     * @param room The room index.
+     * @return The room description.
+     */
+    public String roomDesc(int room) {
+        return descriptions == null ? roomDescs[room] : descriptions.get(room);
+    }
+
+    /**
+     * @return The descriptions decoded on demand, or null if the graph holds the descriptions.
+     */
+    public LazyDescriptions descriptions() {
+        return descriptions;
+    }
+
+    /**
+     * @return The room frames laid out last, shared by all the sessions of the graph.
+     */
+    public FrameCache frames() {
+        return frames;
+    }
+
+    /**
+     * @param room The room index.
+     * @return The index of the first transition of the room.
+     */
+    public int firstTransition(int room) {
+        return tranOffset[room];
+    }
+
+    /**
+     * @param room The room index.
+     * @return One past the index of the last transition of the room.
+     */
+    public int endTransition(int room) {
+        return tranOffset[room + 1];
+    }
+
+    /**
+     * @param room The room index.
+     * @return The number of transitions of the room.
+     */
+    public int transitionCount(int room) {
+        return tranOffset[room + 1] - tranOffset[room];
+    }
+
+    /**
+     * Returns true if the room ends the story, i.e., its first transition is Config.SUCCESS or
+     * Config.FAIL.
+     *
+     * @param room The room index.
+     * @return Whether the room is a terminal room.
+     */
+    public boolean isTerminal(int room) {
+        int first = tranOffset[room];
+        return first < tranOffset[room + 1]
+            && (tranTarget[first] == TARGET_SUCCESS || tranTarget[first] == TARGET_FAIL);
+    }
+
+    /**
+     * @param tran The transition index.
+     * @return The destination room index, TARGET_SUCCESS, TARGET_FAIL or TARGET_MISSING.
+     */
+    public int target(int tran) {
+        return tranTarget[tran];
+    }
+
+    /**
+     * @param tran The transition index.
+     * @return The destination room id as written in the story file, null for terminals.
+     */
+    public String targetId(int tran) {
+        return tranTargetId[tran];
+    }
+
+    /**
+     * @param tran The transition index.
+     * @return The probability weight, NO_WEIGHT or BAD_WEIGHT.
+     */
+    public int weight(int tran) {
+        return tranWeight[tran];
+    }
+
+    /**
+     * @param room The room index.
+     * @return The sum of the probability weights of the room, 0 if the room is not weighted.
+     */
+    public int totalWeight(int room) {
+        return roomTotalWeight[room];
+    }
+
+    /**
+     * Returns how many of the integers pick draws in a weighted room select a transition. This is
+     * its weight, unless the room has negative weights, see the class comment.
+     *
+     * @param room The room index.
+     * @param tran The index of a transition of the room.
+     * @return The number of integers between 0 and totalWeight(room) - 1 (inclusive) that select
+     *         tran, 0 if the room is not weighted.
+     */
+    public int chances(int room, int tran) {
+        int total = roomTotalWeight[room];
+        if (total == 0) {
+            return 0;
+        }
+        int below = 0; // the integers under every running total before tran select another one
+        for (int t = tranOffset[room]; t < tran; t++) {
+            below = Math.max(below, tranCumulative[t]);
+        }
+        return Math.max(0, Math.min(tranCumulative[tran], total) - below);
+    }
+
+    /**
+     * Randomly selects a transition of a weighted room.
+     *
+     * This follows the random process of AdventureStory.probTrans exactly: a single random integer
+     * between 0 and totalWeight(room) - 1 (inclusive) is drawn from rand, and the first transition
+     * whose running total of weights exceeds it is selected. Nothing is drawn from rand if the
+     * room is not weighted.
+     *
+     * @param room The room index.
+     * @param rand The Random class from which to draw random values.
+     * @return The index of the selected transition, or -1 if the room is not weighted.
+     */
+    public int pick(int room, Random rand) {
+        int total = roomTotalWeight[room];
+        if (total == 0) {
+            return -1;
+        }
+        return transitionAt(room, rand.nextInt(total));
+    }
+
+    /**
+     * Returns the transition of a weighted room that pick selects for a random integer, so that a
+     * value drawn once (e.g. recorded in a SessionJournal) always selects the same transition.
+     *
+     * @param room The room index of a weighted room.
+     * @param drawn An integer between 0 and totalWeight(room) - 1 (inclusive).
+     * @return The index of the selected transition.
+     */
+    public int transitionAt(int room, int drawn) {
+        int first = tranOffset[room];
+        int buckets = tranOffset[room + 1] - first;
+        int t = tranGuide[first + (int) ((long) drawn * buckets / roomTotalWeight[room])];
+        while (tranCumulative[t] <= drawn) {
+            t++;
+        }
+        return t;
+    }
+
+    /**
+     * @param tran The transition index.
+     * @return The transition description.
+     */
+    public String transitionDesc(int tran) {
+        return tranDesc[tran];
+    }
+}
@@ -0,0 +1,325 @@
+// Title: AdventureStory
+// Files: StoryHandle.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+
+/**
+ * The current StoryGraph of a story file that may be edited while it is played.
+ *
+ * Sessions created with a StoryHandle take graph() at the start of each turn and find their room
+ * in it by id, so when reload swaps in the graph of the edited file, every player carries on from
+ * the room they are in, in the new version of the story. The swap is a single atomic write, so a
+ * turn always sees either the old or the new story, never a mix of both.
+ *
+ * reload only parses the rooms whose text changed. The file is split at its room lines, the same
+ * way as for a parallel parse, and the text of each room (from its room line to the next) is
+ * hashed with both CRC32C and Adler32 into 64 bits. When the story still has as many rooms, each
+ * room is compared with the room at the same position in the last version, and only the rooms
+ * whose length or hash differ are parsed again, with StoryParser.parseRoom. The lines before the
+ * first room are checked again on each reload, see StoryParser.parseHeader. If they kept their
+ * ids, StoryGraph.patch then resolves just their transitions and copies the others in bulk.
+ * When rooms were added or removed, the rooms of the last version are found by their hash,
+ * wherever they moved to, and the new version is compiled from all the rooms. Splitting and
+ * hashing read the whole file, but at the speed of a checksum, so most of the cost of a reload
+ * is parsing the rooms edited.
+ *
+ * reload first compares the CRC32C checksum of the whole file with that of the version loaded,
+ * and does nothing more if they are equal. The modification time is not used, as an edit that
+ * keeps the size of the file can keep its modification time too.
+ *
+ * A version of the file that cannot be parsed (e.g. saved half way) is not loaded, and the
+ * players carry on in the last version that could. The first version is loaded with
+ * AdventureStory.parseFile, which outputs its parse errors, but those of the rooms reloaded are
+ * not output. A room that cannot be parsed on its own makes reload parse the whole file instead,
+ * outputting its parse errors, so that a version is only rejected when parseFile would reject it
+ * too. watch reloads the story whenever the file is changed, from a daemon thread.
+ *
+ * Usage: java StoryHandle storyFile
+ *        Loads a story and reloads it whenever its file is changed, outputting the rooms of each
+ *        version and how many were parsed again, until the end of the input.
+ */
+public class StoryHandle implements AutoCloseable {
+
+    private final AtomicReference<StoryGraph> graph;
+    private final String storyFile; // null if the story is not reloaded
+    private long checksum; // of the file of the version loaded, see StoryCompiler.checksum
+    private ArrayList<String[]> rooms = new ArrayList<String[]>(); // of the version loaded
+    private ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+    private long[] hashes = new long[0]; // of the text of each room
+    private int[] lengths = new int[0]; // bytes of the text of each room
+    private int reparsed; // rooms parsed by the last reload
+    private WatchService watcher;
+
+    private StoryHandle(StoryGraph graph, String storyFile) {
+        this.graph = new AtomicReference<StoryGraph>(graph);
+        this.storyFile = storyFile;
+    }
+
+    /**
+     * Loads a story file and reloads it whenever it is changed, see the class comment.
+     *
+     * @param args The story file.
+     * @throws IOException If the directory of the file cannot be watched.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java StoryHandle storyFile");
+            return;
+        }
+        StoryHandle handle = load(args[0]);
+        if (handle == null) {
+            System.out.println(args[0] + ": unable to parse the story");
+            System.exit(2);
+        }
+        System.out.println(args[0] + ": " + handle.graph().roomCount() + " rooms");
+        handle.watch(reloaded -> System.out.println(args[0] + ": " + (reloaded
+            ? handle.graph().roomCount() + " rooms, " + handle.reparsed() + " parsed again"
+            : "unable to parse the new version, the last version is kept")));
+        while (System.in.read() >= 0) { // until the end of the input
+        }
+        handle.close();
+    }
+
+    /**
+     * Creates a handle of a story that never changes.
+     *
+     * @param graph The story.
+     * @return The handle.
+     */
+    public static StoryHandle of(StoryGraph graph) {
+        return new StoryHandle(graph, null);
+    }
+
+    /**
+     * Loads a story file that can then be reloaded.
+     *
+     * @param storyFile The name of the story file.
+     * @return The handle, or null if the file is not a story file or could not be parsed.
+     */
+    public static StoryHandle load(String storyFile) {
+        StoryHandle handle = new StoryHandle(null, storyFile);
+        if (!handle.reload()) {
+            return null;
+        }
+        return handle;
+    }
+
+    /**
+     * @return The current version of the story.
+     */
+    public StoryGraph graph() {
+        return graph.get();
+    }
+
+    /**
+     * Loads the story file again if it changed since it was last loaded, parsing only the rooms
+     * whose text changed, and makes it the current version of the story.
+     *
+     * @return false if the file could not be read or parsed, otherwise true.
+     */
+    public synchronized boolean reload() {
+        if (storyFile == null) {
+            return true;
+        }
+        ByteBuffer data;
+        try { // read rather than mapped, as the file may be changed again while it is read
+            data = ByteBuffer.wrap(Files.readAllBytes(Paths.get(storyFile)));
+        } catch (IOException e) {
+            return false;
+        }
+        long newChecksum = StoryCompiler.checksum(data);
+        if (graph.get() != null && newChecksum == checksum) { // not changed
+            reparsed = 0;
+            return true;
+        }
+        int[] lines = StoryParser.roomLines(data);
+        if (lines == null || lines.length < 2 || !StoryParser.parseHeader(data, lines[0])) {
+            return false;
+        }
+        int count = lines.length - 1;
+        long[] newHashes = new long[count];
+        int[] newLengths = new int[count];
+        CRC32C crc = new CRC32C();
+        Adler32 adler = new Adler32();
+        for (int r = 0; r < count; r++) {
+            ByteBuffer text = data.duplicate().position(lines[r]).limit(lines[r + 1]);
+            crc.reset();
+            crc.update(text);
+            adler.reset();
+            adler.update(text.position(lines[r]));
+            newHashes[r] = crc.getValue() << 32 | adler.getValue();
+            newLengths[r] = lines[r + 1] - lines[r];
+        }
+
+        ArrayList<String[]> newRooms = new ArrayList<String[]>(count);
+        ArrayList<ArrayList<String[]>> newTrans = new ArrayList<ArrayList<String[]>>(count);
+        StoryGraph old = graph.get();
+        if (old == null) { // the first version is parsed at once, with its parse errors output
+            if (!AdventureStory.parseFile(storyFile, newRooms, newTrans, new String[1])) {
+                return false;
+            }
+            if (newRooms.size() != count) { // changed since it was read, parsed room by room
+                newRooms.clear();
+                newTrans.clear();
+            }
+        }
+        boolean samePositions = old != null && count == rooms.size() && count == hashes.length;
+        HashMap<Long, Integer> moved = null; // index of the rooms of the last version by hash
+        int[] changed = new int[16]; // rooms parsed again
+        int parsed = 0;
+        for (int r = newRooms.size(); r < count; r++) {
+            int same = samePositions && newHashes[r] == hashes[r] && newLengths[r] == lengths[r]
+                ? r : -1;
+            if (same < 0 && !samePositions && old != null) {
+                if (moved == null) {
+                    moved = new HashMap<Long, Integer>(hashes.length * 2);
+                    for (int i = hashes.length - 1; i >= 0; i--) {
+                        moved.put(hashes[i], i);
+                    }
+                }
+                Integer index = moved.get(newHashes[r]);
+                same = index != null && lengths[index] == newLengths[r] ? index : -1;
+            }
+            if (same >= 0) {
+                newRooms.add(rooms.get(same));
+                newTrans.add(trans.get(same));
+                continue;
+            }
+            if (!StoryParser.parseRoom(data, lines[r], lines[r + 1], newRooms, newTrans)) {
+                return parseWhole(data, newChecksum, newHashes, newLengths);
+            }
+            if (samePositions) { // a room whose id changed cannot be patched
+                samePositions = old.roomId(r).equals(newRooms.get(r)[Config.ROOM_ID]);
+            }
+            if (parsed == changed.length) {
+                changed = Arrays.copyOf(changed, parsed * 2);
+            }
+            changed[parsed++] = r;
+        }
+
+        if (!samePositions) {
+            graph.set(StoryGraph.compile(newRooms, newTrans));
+        } else if (parsed > 0) { // only the rooms parsed again are compiled again
+            graph.set(StoryGraph.patch(old, Arrays.copyOf(changed, parsed), newRooms, newTrans));
+        }
+        rooms = newRooms;
+        trans = newTrans;
+        hashes = newHashes;
+        lengths = newLengths;
+        checksum = newChecksum;
+        reparsed = old == null ? count : parsed;
+        return true;
+    }
+
+    /**
+     * Loads a version of the file from a parse of the whole file, as parseFile would parse it,
+     * for when one of its rooms cannot be parsed on its own.
+     *
+     * @return false if the file could not be parsed, otherwise true.
+     */
+    private boolean parseWhole(ByteBuffer data, long newChecksum, long[] newHashes,
+        int[] newLengths) {
+        ArrayList<String[]> newRooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> newTrans = new ArrayList<ArrayList<String[]>>();
+        if (!StoryParser.parseStory(data, newRooms, newTrans, new String[1])) {
+            return false;
+        }
+        graph.set(StoryGraph.compile(newRooms, newTrans));
+        boolean split = newRooms.size() == newHashes.length; // the rooms match their hashes
+        rooms = newRooms;
+        trans = newTrans;
+        hashes = split ? newHashes : new long[0]; // otherwise every room is parsed next time
+        lengths = split ? newLengths : new int[0];
+        checksum = newChecksum;
+        reparsed = newRooms.size();
+        return true;
+    }
+
+    /**
+     * @return The number of rooms parsed by the last reload.
+     */
+    public synchronized int reparsed() {
+        return reparsed;
+    }
+
+    /**
+     * Starts reloading the story whenever its file is changed, until close is called.
+     *
+     * @throws IOException If the directory of the file cannot be watched.
+     */
+    public void watch() throws IOException {
+        watch(null);
+    }
+
+    /**
+     * Starts reloading the story whenever its file is changed, until close is called.
+     *
+     * @param reloaded Given the result of reload after each change, on the watching thread, or
+     *                 null.
+     * @throws IOException If the directory of the file cannot be watched.
+     */
+    public synchronized void watch(Consumer<Boolean> reloaded) throws IOException {
+        if (storyFile == null || watcher != null) {
+            return;
+        }
+        Path path = new File(storyFile).getAbsoluteFile().toPath();
+        WatchService service = FileSystems.getDefault().newWatchService();
+        path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY); // editors often save by renaming a new file
+        watcher = service;
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey watchKey = service.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        changed |= path.getFileName().equals(event.context());
+                    }
+                    watchKey.reset();
+                    if (changed) {
+                        boolean loaded = reload();
+                        if (reloaded != null) {
+                            reloaded.accept(loaded);
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        }, "StoryHandle " + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the story file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+}
@@ -0,0 +1,1156 @@
+// Title: AdventureStory
+// Files: StoryParser.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses story and bookmark files straight from a memory-mapped copy of the file.
+ *
+ * The file is mapped read only and scanned line by line on the bytes. The delimiters of the story
+ * format (';;;', ':', '-', '>', '?' and the terminal strings) are all ASCII, so they are found
+ * without decoding the line, and only the room ids, titles, descriptions and transition fields
+ * are decoded into Strings (as UTF-8). Room descriptions are built in a reused StringBuilder.
+ * When Config.DEDUPLICATE is true, room ids and transition fields repeated in the story are
+ * decoded only once and share the same String, see StoryDeduplicator.
+ *
+ * The rooms and transitions produced, the error messages and the line numbers in them are the
+ * same as those of AdventureStory.parseStory reading the file through a Scanner. Lines end where
+ * Scanner.nextLine ends them: at "\r\n", "\n", "\r", U+0085, U+2028 or U+2029, see terminator.
+ *
+ * Stories of at least PARALLEL_MIN_BYTES are parsed in parallel. A quick sequential pass, which
+ * only follows the parse states, splits the rooms into chunks that each start on a room line.
+ * The chunks are then parsed concurrently on the common ForkJoinPool, each by its own
+ * StoryParser starting at the right line number, and the results are joined in file order. Error
+ * messages are printed in file order once all the chunks are parsed.
+ *
+ * Parsed story files are kept in the StoryCache, and a story file that has not changed since it
+ * was last parsed is copied from there, with its parse errors output again. The position of every
+ * room line in the file is cached with the rooms, so that bookmarks can record where their room
+ * is, and parseRoom can later read just that room.
+ *
+ * parseLazily parses a story without its room descriptions: only the position of the lines of
+ * each description is kept, and description decodes them again from the mapped file when the
+ * room is shown, see LazyDescriptions.
+ */
+public class StoryParser {
+
+    private static final byte[] SUCCESS = Config.SUCCESS.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FAIL = Config.FAIL.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Stories with at least this many bytes are parsed in parallel
+     */
+    public static final int PARALLEL_MIN_BYTES = 4 << 20;
+
+    /**
+     * Smallest chunk of a story parsed by a single task
+     */
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    /**
+     * Longest room id or transition field decoded only once per parse, see pooledText
+     */
+    private static final int POOL_MAX_BYTES = 64;
+
+    private final ByteBuffer data; // the mapped file
+    private final int end; // position after the last line to parse
+    private final StringBuilder desc = new StringBuilder(); // description of the current room
+    private final StringBuilder messages = new StringBuilder(); // parse errors to print
+
+    private byte[] line = new byte[256]; // copy of the line being parsed
+    private int lineNo; // number of lines read by parseStory
+    private int next; // position of the next line in data
+    private int lineStart; // position of the line last read
+    private int roomLimit = Integer.MAX_VALUE; // rooms to parse before stopping
+    private Boolean parallel; // whether to parse in chunks, null to decide by the size
+
+    private int[] offsets = new int[64]; // positions of the room lines parsed
+    private int offsetCount;
+    private int[] descStarts; // positions of the first description lines, when parsing lazily
+    private int[] descEnds; // positions of the ";;;" lines, -1 until they are read
+
+    private String[] poolStrings; // Strings decoded by pooledText, allocated when first used
+    private int[] poolHashes; // the hashes of their bytes
+    private int pooled; // number of Strings in the pool
+    private final boolean pool = Config.DEDUPLICATE; // whether pooledText pools
+    private long poolSaved; // approximate bytes saved by them, see StoryCache.footprint
+    private boolean chunked; // parsed in chunks, each with its own pool, see parseStory
+
+    /**
+     * Creates a parser over the bytes of a story file.
+     *
+     * @param data The contents of the file.
+     */
+    private StoryParser(ByteBuffer data) {
+        this(data, 0, data.limit(), 0);
+    }
+
+    /**
+     * Creates a parser over part of the bytes of a story file.
+     *
+     * @param data The contents of the file.
+     * @param start The position of the first line to parse.
+     * @param end The position after the last line to parse.
+     * @param lineNo The number of lines before the first line to parse, not counting the magic
+     *               number.
+     */
+    private StoryParser(ByteBuffer data, int start, int end, int lineNo) {
+        this.data = data;
+        this.next = start;
+        this.end = end;
+        this.lineNo = lineNo;
+    }
+
+    /**
+     * Loads the story and current location from either a story file or a bookmark file, with the
+     * same results and messages as AdventureStory.parseFile.
+     *
+     * @param fName The name of the file to read.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return false if there is a parsing error. Otherwise, true.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public static boolean parseFile(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) throws IOException {
+        StoryParser parser = new StoryParser(map(fName));
+        String firstLine = parser.nextLine(); // the magic number is not counted
+        if (firstLine == null) {
+            return false;
+        }
+        firstLine = firstLine.trim();
+        if (firstLine.equals(Config.MAGIC_STORY)) { // normal story format
+            File file = new File(fName);
+            String key = StoryCache.key(file);
+            long checksum = StoryCompiler.checksum(parser.data);
+            StoryCache.Entry cached = key == null ? null : StoryCache.get(key, checksum);
+            if (cached != null) { // parsed before and unchanged since
+                StoryCache.index(cached);
+                print(cached.messages);
+                cached.copyTo(rooms, trans); // the caller's own, see StoryCache
+                return setStartRoom(rooms, curRoom);
+            }
+            int firstRoom = rooms.size();
+            if (!parser.parseStory(rooms, trans, curRoom)) {
+                return false;
+            }
+            deduplicate(rooms, trans, firstRoom, parser);
+            String messages = parser.messages.toString();
+            StoryCache.Index index = StoryCache.index(file, checksum,
+                rooms.subList(firstRoom, rooms.size()), messages, parser.roomOffsets());
+            if (key != null) {
+                StoryCache.put(key, rooms.subList(firstRoom, rooms.size()),
+                    trans.subList(firstRoom, trans.size()), messages, checksum, index);
+            }
+            return true;
+        } else if (firstLine.equals(Config.MAGIC_BOOKMARK)) { // bookmark story
+            String storyFile = parser.nextLine();
+            String roomId = parser.nextLine();
+            if (roomId == null) {
+                return false;
+            }
+            curRoom[0] = roomId.trim();
+            return AdventureStory.loadFile(storyFile.trim(), rooms, trans, curRoom);
+        } else if (firstLine.equals(Config.MAGIC_COMPILED)) { // see StoryCompiler
+            int firstRoom = rooms.size();
+            if (!StoryCompiler.load(parser.data, parser.next, rooms, trans, curRoom)) {
+                return false;
+            }
+            deduplicate(rooms, trans, firstRoom, null);
+            return true;
+        }
+        System.out.println("First line: " + firstLine + " does not correspond to known value.");
+        return false;
+    }
+
+    /**
+     * Parses the contents of a story file, from its magic number line on, the same as parseFile
+     * but without the StoryCache, including the deduplication of the rooms loaded.
+     *
+     * @param data The contents of the file.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @return false if the file is not a story file or there is a parsing error, otherwise true.
+     */
+    static boolean parseStory(ByteBuffer data, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        return parseStory(data, null, rooms, trans, curRoom);
+    }
+
+    /**
+     * Parses the contents of a story file as parseStory(ByteBuffer, ...), in chunks or not
+     * whatever its size. A story of less than two chunks, see findChunks, is parsed sequentially.
+     *
+     * @param parallel true to parse in chunks on the common ForkJoinPool, false to parse
+     *                 sequentially, or null to decide by the size of the story.
+     */
+    static boolean parseStory(ByteBuffer data, Boolean parallel, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom) {
+        return parseStory(data, parallel, rooms, trans, curRoom, null);
+    }
+
+    /**
+     * Parses the contents of a story file as parseStory(ByteBuffer, ...), and also returns the
+     * parse error messages it output, see StoryCompiler.compile.
+     *
+     * @param errors An array of at least length 1. The parse error messages output, empty if
+     *               there were none, will be stored in the cell at index 0.
+     */
+    static boolean parseStory(ByteBuffer data, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom, String[] errors) {
+        return parseStory(data, null, rooms, trans, curRoom, errors);
+    }
+
+    private static boolean parseStory(ByteBuffer data, Boolean parallel,
+        ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans, String[] curRoom,
+        String[] errors) {
+        StoryParser parser = new StoryParser(data);
+        parser.parallel = parallel;
+        String firstLine = parser.nextLine();
+        if (firstLine == null || !firstLine.trim().equals(Config.MAGIC_STORY)) {
+            return false;
+        }
+        int firstRoom = rooms.size();
+        boolean parsed = parser.parseStory(rooms, trans, curRoom);
+        if (errors != null) {
+            errors[0] = parser.messages.toString();
+        }
+        if (!parsed) {
+            return false;
+        }
+        deduplicate(rooms, trans, firstRoom, parser);
+        return true;
+    }
+
+    /**
+     * Shares the repeated parts of the rooms loaded from firstRoom on if Config.DEDUPLICATE is
+     * true, see StoryDeduplicator. The Strings of a story parsed in chunks are only pooled within
+     * each chunk, so they are shared across the chunks here.
+     *
+     * @param parser The parser of the rooms, whose Strings are pooled already, or null.
+     */
+    private static void deduplicate(ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, int firstRoom, StoryParser parser) {
+        if (!Config.DEDUPLICATE) {
+            return;
+        }
+        List<String[]> loaded = rooms.subList(firstRoom, rooms.size());
+        List<ArrayList<String[]>> loadedTrans = trans.subList(firstRoom, trans.size());
+        if (parser == null) {
+            Metrics.DEDUPLICATED_BYTES.add(
+                StoryDeduplicator.deduplicate(loaded, loadedTrans).saved());
+        } else if (parser.chunked) {
+            Metrics.DEDUPLICATED_BYTES.add(parser.poolSaved
+                + StoryDeduplicator.deduplicate(loaded, loadedTrans).saved());
+        } else {
+            Metrics.DEDUPLICATED_BYTES.add(parser.poolSaved
+                + StoryDeduplicator.shareTransitions(loaded, loadedTrans).saved());
+        }
+    }
+
+    /**
+     * Loads a story the same way as parseFile, but without decoding the room descriptions of a
+     * story file: ROOM_DESC is left null and the descriptions are returned in lazy[0] instead.
+     * Bookmarks are followed to their story file. Compiled stories are loaded as by parseFile,
+     * with their descriptions, and lazy[0] is left null, as are files too large to be mapped,
+     * which are parsed through a Scanner by AdventureStory.loadFile. Lazily parsed stories are
+     * not cached, but are indexed for bookmarks as by parseFile, see StoryCache.index.
+     *
+     * @param fName The name of the file to read.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @param curRoom An array of at least length 1. The current room id will be stored in the cell
+     *                at index 0.
+     * @param lazy An array of at least length 1. The room descriptions will be stored in the cell
+     *             at index 0.
+     * @return false if there is a parsing error. Otherwise, true.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public static boolean parseLazily(String fName, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans, String[] curRoom, LazyDescriptions[] lazy)
+        throws IOException {
+        if (new File(fName).length() > Integer.MAX_VALUE) { // cannot be mapped
+            return AdventureStory.loadFile(fName, rooms, trans, curRoom);
+        }
+        ByteBuffer data = map(fName);
+        StoryParser parser = new StoryParser(data);
+        String firstLine = parser.nextLine();
+        if (firstLine == null) {
+            return false;
+        }
+        firstLine = firstLine.trim();
+        if (firstLine.equals(Config.MAGIC_STORY)) {
+            parser.descStarts = new int[parser.offsets.length];
+            parser.descEnds = new int[parser.offsets.length];
+            int firstRoom = rooms.size();
+            if (!parser.parseStory(rooms, trans, curRoom)) {
+                return false;
+            }
+            StoryCache.index(new File(fName), StoryCompiler.checksum(data),
+                rooms.subList(firstRoom, rooms.size()), parser.messages.toString(),
+                parser.roomOffsets());
+            lazy[0] = new LazyDescriptions(data, Arrays.copyOf(parser.descStarts, rooms.size()),
+                Arrays.copyOf(parser.descEnds, rooms.size()), LazyDescriptions.CACHE_ROOMS);
+            return true;
+        } else if (firstLine.equals(Config.MAGIC_BOOKMARK)) {
+            String storyFile = parser.nextLine();
+            String roomId = parser.nextLine();
+            if (roomId == null) {
+                return false;
+            }
+            curRoom[0] = roomId.trim();
+            return parseLazily(storyFile.trim(), rooms, trans, curRoom, lazy);
+        }
+        return parseFile(fName, rooms, trans, curRoom); // compiled stories and unknown files
+    }
+
+    /**
+     * Decodes a room description from the lines of a story file, the same as the description
+     * parseStory builds while parsing the room.
+     *
+     * @param data The contents of the story file.
+     * @param start The position of the first line of the description.
+     * @param end The position of the ";;;" line that ends the description.
+     * @return The description, trimmed.
+     */
+    static String description(ByteBuffer data, int start, int end) {
+        StoryParser parser = new StoryParser(data, start, end, 0);
+        int length;
+        while ((length = parser.readLine()) >= 0) {
+            int lineEnd = length;
+            int lineStart = 0;
+            while (lineStart < lineEnd && (parser.line[lineStart] & 0xff) <= ' ') {
+                lineStart++;
+            }
+            while (lineEnd > lineStart && (parser.line[lineEnd - 1] & 0xff) <= ' ') {
+                lineEnd--;
+            }
+            parser.appendText(parser.desc, lineStart, lineEnd);
+            parser.desc.append('\n');
+        }
+        return parser.trimmedDesc();
+    }
+
+    /**
+     * Parses the single room whose room line starts at offset in a story file, without reading
+     * any other part of the file. Parse errors are not output.
+     *
+     * @param storyFile The name of the story file.
+     * @param offset The position of the room line in the file, see StoryCache.Index.offsetOf.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @return false if there is no room line at offset or the room could not be parsed.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public static boolean parseRoom(String storyFile, int offset, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) throws IOException {
+        ByteBuffer data = map(storyFile);
+        if (offset < 0 || offset >= data.limit()) {
+            return false;
+        }
+        return parseRoom(data, offset, data.limit(), rooms, trans);
+    }
+
+    /**
+     * Parses the single room whose room line starts at start in the contents of a story file,
+     * reading no further than end. Parse errors are not output.
+     *
+     * @param data The contents of the story file.
+     * @param start The position of the room line.
+     * @param end The position after the last line that may be read.
+     * @param rooms The ArrayList structure that will contain the room details.
+     * @param trans The ArrayList structure that will contain the transition details.
+     * @return false if there is no room line at start or the room could not be parsed.
+     */
+    static boolean parseRoom(ByteBuffer data, int start, int end, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        StoryParser parser = new StoryParser(data, start, end, 0);
+        parser.roomLimit = 1;
+        int firstRoom = rooms.size();
+        return parser.parseRooms(rooms, trans) && rooms.size() == firstRoom + 1;
+    }
+
+    /**
+     * Parses the lines of a story file before its first room line, which parseStory reads without
+     * adding anything but which can still stop the parse, e.g. a line of only whitespace. Parse
+     * errors are not output.
+     *
+     * @param data The contents of the story file.
+     * @param end The position of the first room line, or of the end of the file.
+     * @return false if the file is not a story file or parseStory would stop before end.
+     */
+    static boolean parseHeader(ByteBuffer data, int end) {
+        StoryParser parser = new StoryParser(data);
+        String firstLine = parser.nextLine();
+        if (firstLine == null || !firstLine.trim().equals(Config.MAGIC_STORY)) {
+            return false;
+        }
+        StoryParser header = new StoryParser(data, parser.next, end, 0);
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        return header.parseRooms(rooms, new ArrayList<ArrayList<String[]>>()) && rooms.isEmpty();
+    }
+
+    /**
+     * Finds the room lines of a story file, following only the parse states, the same as the
+     * chunks of a parallel parse. The text from one room line to the next is everything parseStory
+     * reads for that room.
+     *
+     * @param data The contents of the story file.
+     * @return The positions of the room lines, followed by the end of the file, or null if the
+     *         file is not a story file.
+     */
+    static int[] roomLines(ByteBuffer data) {
+        StoryParser parser = new StoryParser(data);
+        String firstLine = parser.nextLine();
+        if (firstLine == null || !firstLine.trim().equals(Config.MAGIC_STORY)) {
+            return null;
+        }
+        int[] lines = new int[64];
+        int count = 0;
+        AdventureStory.ParseState state = AdventureStory.ParseState.DEFAULT;
+        int end = data.limit();
+        int pos = parser.next;
+        while (pos < end) { // the same scan as findChunks
+            int lineStart = pos;
+            byte b = 0;
+            while (pos < end && (b = data.get(pos)) != '\n' && b != '\r' && (b & 0xff) <= ' ') {
+                pos++;
+            }
+            byte first = pos < end && b != '\n' && b != '\r' ? b : 0;
+            if (first == 'R' && state != AdventureStory.ParseState.ROOMS) {
+                if (count + 1 >= lines.length) {
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                }
+                lines[count++] = lineStart;
+                state = AdventureStory.ParseState.ROOMS;
+            } else if (first == ';' && state == AdventureStory.ParseState.ROOMS && pos + 2 < end
+                && data.get(pos + 1) == ';' && data.get(pos + 2) == ';') {
+                state = AdventureStory.ParseState.TRANS;
+            }
+            pos = lineEnd(data, pos, end);
+            if (pos < end) {
+                pos += terminator(data, pos, end);
+            }
+        }
+        lines[count++] = data.limit();
+        return Arrays.copyOf(lines, count);
+    }
+
+    /**
+     * Maps a whole file into memory, read only.
+     *
+     * @param fName The name of the file to map.
+     * @return The contents of the file.
+     * @throws IOException If the file cannot be opened, is too large to map or cannot be mapped.
+     */
+    static ByteBuffer map(String fName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + fName);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Reads the next line, decoded, without its line terminator.
+     *
+     * @return The line, or null at the end of the file.
+     */
+    private String nextLine() {
+        int length = readLine();
+        if (length < 0) {
+            return null;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the next line, without its line terminator, into line.
+     *
+     * @return The length of the line, or -1 at the end of the file.
+     */
+    private int readLine() {
+        if (next >= end) {
+            return -1;
+        }
+        int start = next;
+        int pos = lineEnd(data, start, end);
+        lineStart = start;
+        int length = pos - start;
+        if (length > line.length) {
+            line = new byte[Math.max(length, line.length * 2)];
+        }
+        data.get(start, line, 0, length);
+        if (pos < end) { // skips the terminator, "\r\n" counting as one
+            pos += terminator(data, pos, end);
+        }
+        next = pos;
+        return length;
+    }
+
+    /**
+     * Returns the position of the first line terminator at or after pos, see terminator.
+     *
+     * @return The position, or end if the line is not terminated.
+     */
+    private static int lineEnd(ByteBuffer data, int pos, int end) {
+        for (; pos < end; pos++) {
+            byte b = data.get(pos);
+            if ((b == '\n' || b == '\r' || b == (byte) 0xc2 || b == (byte) 0xe2)
+                && terminator(data, pos, end) > 0) {
+                return pos;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the length of the line terminator at pos, the same line terminators as those of
+     * Scanner.nextLine: "\r\n", "\n", "\r", and U+0085, U+2028 and U+2029 in UTF-8.
+     *
+     * @return The number of bytes of the terminator, or 0 if there is none at pos.
+     */
+    private static int terminator(ByteBuffer data, int pos, int end) {
+        byte b = data.get(pos);
+        if (b == '\n') {
+            return 1;
+        } else if (b == '\r') {
+            return pos + 1 < end && data.get(pos + 1) == '\n' ? 2 : 1;
+        } else if (b == (byte) 0xc2) { // U+0085
+            return pos + 1 < end && data.get(pos + 1) == (byte) 0x85 ? 2 : 0;
+        } else if (b == (byte) 0xe2) { // U+2028 and U+2029
+            return pos + 2 < end && data.get(pos + 1) == (byte) 0x80
+                && (data.get(pos + 2) == (byte) 0xa8 || data.get(pos + 2) == (byte) 0xa9) ? 3 : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Parses the rest of the file as rooms and transitions, following the rules of
+     * AdventureStory.parseStory.
+     *
+     * @return false if the story could not be parsed, otherwise true.
+     */
+    private boolean parseStory(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans,
+        String[] curRoom) {
+        if (parallel != null ? parallel
+            : end - next >= PARALLEL_MIN_BYTES && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ArrayList<int[]> chunks = findChunks();
+            if (chunks.size() > 2) { // more than one chunk
+                ChunkTask task =
+                    new ChunkTask(data, chunks, 0, chunks.size() - 1, descStarts != null);
+                ChunkTask.Result result = ForkJoinPool.commonPool().invoke(task);
+                messages.append(result.messages);
+                print(messages);
+                rooms.addAll(result.rooms); // rooms read before a failure, as parseStory
+                trans.addAll(result.trans);
+                offsets = result.offsets;
+                offsetCount = result.offsets.length;
+                poolSaved = result.poolSaved;
+                chunked = true;
+                if (descStarts != null) {
+                    descStarts = result.descStarts;
+                    descEnds = result.descEnds;
+                }
+                if (!result.parsed) {
+                    return false;
+                }
+                return setStartRoom(rooms, curRoom, descStarts == null);
+            }
+        }
+        try {
+            if (!parseRooms(rooms, trans)) {
+                return false;
+            }
+        } finally { // messages are shown even when parsing stops early
+            print(messages);
+        }
+        return setStartRoom(rooms, curRoom, descStarts == null);
+    }
+
+    /**
+     * Outputs parse error messages, one per line, and counts them in Metrics.PARSE_ERRORS.
+     */
+    private static void print(CharSequence messages) {
+        System.out.print(messages);
+        for (int i = 0; i < messages.length(); i++) {
+            if (messages.charAt(i) == '\n') {
+                Metrics.PARSE_ERRORS.increment();
+            }
+        }
+    }
+
+    /**
+     * Stores the start room in curRoom unless it already holds a room id, and indexes the rooms.
+     *
+     * @return false if there is no start room, otherwise true.
+     */
+    private static boolean setStartRoom(ArrayList<String[]> rooms, String[] curRoom) {
+        return setStartRoom(rooms, curRoom, true);
+    }
+
+    /**
+     * Stores the start room in curRoom unless it already holds a room id, and indexes the rooms
+     * if index is true. Lazily parsed rooms are not indexed here, as StoryGraph.loadLazy only
+     * uses them compiled, and the first lookup of AdventureStory.main in them builds their index,
+     * see RoomIndex.
+     *
+     * @return false if there is no start room, otherwise true.
+     */
+    private static boolean setStartRoom(ArrayList<String[]> rooms, String[] curRoom,
+        boolean index) {
+        if (curRoom[0] == null) {
+            if (rooms.isEmpty()) { // no start room
+                return false;
+            }
+            curRoom[0] = rooms.get(0)[Config.ROOM_ID];
+        }
+        if (index) {
+            RoomIndex.rebuild(rooms); // id lookups for this story are now constant time
+        }
+        return true;
+    }
+
+    /**
+     * Splits the lines from next to end into chunks of whole rooms, following only the parse
+     * states: a chunk may only start on a room line read outside of a room description.
+     *
+     * @return The position and the number of lines before the start of each chunk, in file order,
+     *         followed by the end position.
+     */
+    private ArrayList<int[]> findChunks() {
+        int tasks = ForkJoinPool.getCommonPoolParallelism() * 4;
+        int chunkBytes = Math.max(MIN_CHUNK_BYTES, (end - next) / tasks);
+        ArrayList<int[]> chunks = new ArrayList<int[]>();
+        chunks.add(new int[] {next, lineNo});
+        AdventureStory.ParseState state = AdventureStory.ParseState.DEFAULT;
+        int cut = next + chunkBytes; // earliest position of the next chunk
+        int lines = lineNo;
+        int pos = next;
+        while (pos < end) {
+            int lineStart = pos;
+            byte b = 0;
+            while (pos < end && (b = data.get(pos)) != '\n' && b != '\r' && (b & 0xff) <= ' ') {
+                pos++;
+            }
+            byte first = pos < end && b != '\n' && b != '\r' ? b : 0;
+            if (first == 'R' && state != AdventureStory.ParseState.ROOMS) {
+                if (lineStart >= cut) {
+                    chunks.add(new int[] {lineStart, lines});
+                    cut = lineStart + chunkBytes;
+                }
+                state = AdventureStory.ParseState.ROOMS;
+            } else if (first == ';' && state == AdventureStory.ParseState.ROOMS && pos + 2 < end
+                && data.get(pos + 1) == ';' && data.get(pos + 2) == ';') {
+                state = AdventureStory.ParseState.TRANS;
+            }
+            pos = lineEnd(data, pos, end);
+            if (pos < end) { // same line terminators as readLine
+                pos += terminator(data, pos, end);
+            }
+            lines++;
+        }
+        chunks.add(new int[] {end, lines});
+        return chunks;
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in two until a single chunk is left.
+     */
+    private static class ChunkTask extends RecursiveTask<ChunkTask.Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The rooms, transitions and messages of a range of chunks.
+         */
+        static class Result {
+            final ArrayList<String[]> rooms = new ArrayList<String[]>();
+            final ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            final StringBuilder messages = new StringBuilder();
+            int[] offsets; // positions of the room lines
+            int[] descStarts; // positions of the descriptions, when parsing lazily
+            int[] descEnds;
+            long poolSaved; // see pooledText
+            boolean parsed = true; // false once a chunk could not be parsed
+        }
+
+        private final ByteBuffer data;
+        private final ArrayList<int[]> chunks;
+        private final int first;
+        private final int last; // one past the last chunk of this task
+        private final boolean lazy; // descriptions are not decoded, see parseLazily
+
+        ChunkTask(ByteBuffer data, ArrayList<int[]> chunks, int first, int last, boolean lazy) {
+            this.data = data;
+            this.chunks = chunks;
+            this.first = first;
+            this.last = last;
+            this.lazy = lazy;
+        }
+
+        @Override
+        protected Result compute() {
+            if (last - first > 1) {
+                int middle = (first + last) / 2;
+                ChunkTask right = new ChunkTask(data, chunks, middle, last, lazy);
+                right.fork();
+                Result result = new ChunkTask(data, chunks, first, middle, lazy).compute();
+                Result rightResult = right.join();
+                if (result.parsed) { // a sequential parse would have stopped at the failure
+                    result.rooms.addAll(rightResult.rooms);
+                    result.trans.addAll(rightResult.trans);
+                    result.messages.append(rightResult.messages);
+                    result.offsets = concat(result.offsets, rightResult.offsets);
+                    result.poolSaved += rightResult.poolSaved;
+                    if (lazy) {
+                        result.descStarts = concat(result.descStarts, rightResult.descStarts);
+                        result.descEnds = concat(result.descEnds, rightResult.descEnds);
+                    }
+                    result.parsed = rightResult.parsed;
+                }
+                return result;
+            }
+            int[] start = chunks.get(first);
+            int[] end = chunks.get(first + 1);
+            StoryParser parser = new StoryParser(data.duplicate(), start[0], end[0], start[1]);
+            if (lazy) {
+                parser.descStarts = new int[parser.offsets.length];
+                parser.descEnds = new int[parser.offsets.length];
+            }
+            Result result = new Result();
+            try {
+                result.parsed = parser.parseRooms(result.rooms, result.trans);
+            } catch (RuntimeException e) {
+                result.parsed = false;
+            }
+            result.messages.append(parser.messages);
+            result.offsets = parser.roomOffsets();
+            result.poolSaved = parser.poolSaved;
+            if (lazy) {
+                result.descStarts = Arrays.copyOf(parser.descStarts, parser.offsetCount);
+                result.descEnds = Arrays.copyOf(parser.descEnds, parser.offsetCount);
+            }
+            return result;
+        }
+
+        /**
+         * @return The elements of a followed by those of b.
+         */
+        private static int[] concat(int[] a, int[] b) {
+            int[] both = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, both, a.length, b.length);
+            return both;
+        }
+    }
+
+    /**
+     * The parseStory state machine, run over the lines from next to end.
+     *
+     * @return false on a line that parseStory could not have parsed, otherwise true.
+     */
+    private boolean parseRooms(ArrayList<String[]> rooms, ArrayList<ArrayList<String[]>> trans) {
+        AdventureStory.ParseState state = AdventureStory.ParseState.DEFAULT;
+        int length;
+        while ((length = readLine()) >= 0) {
+            lineNo += 1;
+            if (length == 0) { // empty lines only matter inside a description
+                if (state == AdventureStory.ParseState.ROOMS && descEnds == null) {
+                    desc.append('\n');
+                }
+                continue;
+            }
+            int start = 0;
+            int end = length;
+            while (start < end && (line[start] & 0xff) <= ' ') { // same as String.trim
+                start++;
+            }
+            while (end > start && (line[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+            if (start == end) { // a line of only whitespace has no first character
+                return false;
+            }
+            byte first = line[start];
+            if (first == '#' && state != AdventureStory.ParseState.ROOMS) { // comment
+                continue;
+            }
+            if (first == 'R' && state != AdventureStory.ParseState.ROOMS
+                && offsetCount == roomLimit) { // parseRoom stops at the next room
+                break;
+            }
+            if (state == AdventureStory.ParseState.DEFAULT) {
+                if (first == 'R') {
+                    if (!addRoom(start, end, rooms, trans)) {
+                        return false;
+                    }
+                    state = AdventureStory.ParseState.ROOMS;
+                }
+            } else if (state == AdventureStory.ParseState.ROOMS) {
+                if (startsWithEnd(start, end)) {
+                    if (descEnds != null) { // decoded later, see parseLazily
+                        descEnds[offsetCount - 1] = lineStart;
+                    } else {
+                        rooms.get(rooms.size() - 1)[Config.ROOM_DESC] = trimmedDesc();
+                    }
+                    desc.setLength(0);
+                    state = AdventureStory.ParseState.TRANS;
+                } else if (descEnds == null) {
+                    appendText(desc, start, end);
+                    desc.append('\n');
+                }
+            } else if (first == 'R') {
+                if (!addRoom(start, end, rooms, trans)) {
+                    return false;
+                }
+                state = AdventureStory.ParseState.ROOMS;
+            } else if (first == ':') {
+                String[] tran = indexOf('?', start, end) >= 0 ? weightedTransition(start, end)
+                    : normalTransition(start, end);
+                if (tran == null) {
+                    return false;
+                }
+                trans.get(trans.size() - 1).add(tran);
+            } else if (equalsBytes(SUCCESS, start, end) || equalsBytes(FAIL, start, end)) {
+                String[] tran = new String[Config.TRAN_DET_LEN];
+                tran[Config.TRAN_DESC] = pooledText(start, end);
+                trans.get(trans.size() - 1).add(tran);
+            } else {
+                messages.append("Error parsing file on line: ").append(lineNo).append(": ");
+                appendText(messages, start, end);
+                messages.append(System.lineSeparator());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the room of a "R<id>: title" line.
+     *
+     * @return false if the line has no ':'.
+     */
+    private boolean addRoom(int start, int end, ArrayList<String[]> rooms,
+        ArrayList<ArrayList<String[]>> trans) {
+        int colon = indexOf(':', start, end);
+        if (colon < 0) {
+            return false;
+        }
+        String[] room = new String[Config.ROOM_DET_LEN];
+        room[Config.ROOM_ID] = pooledText(start + 1, colon);
+        room[Config.ROOM_TITLE] = trimmedText(colon + 1, end);
+        rooms.add(room);
+        trans.add(new ArrayList<>()); // keeps rooms and trans the same size
+        if (offsetCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsetCount * 2);
+            if (descStarts != null) {
+                descStarts = Arrays.copyOf(descStarts, offsetCount * 2);
+                descEnds = Arrays.copyOf(descEnds, offsetCount * 2);
+            }
+        }
+        if (descStarts != null) {
+            descStarts[offsetCount] = next; // the line after the room line
+            descEnds[offsetCount] = -1;
+        }
+        offsets[offsetCount++] = lineStart;
+        return true;
+    }
+
+    /**
+     * @return The positions of the room lines parsed so far, in order.
+     */
+    private int[] roomOffsets() {
+        return Arrays.copyOf(offsets, offsetCount);
+    }
+
+    /**
+     * Parses a ": desc -> id ? weight" line, with the same bounds as parseStory.
+     *
+     * @return The transition, or null if parseStory could not have parsed it.
+     */
+    private String[] weightedTransition(int start, int end) {
+        if (hasSupplementary(start, end)) {
+            return stringTransition(start, end);
+        }
+        int dash = indexOf('-', start, end);
+        int arrow = indexOf('>', start, end);
+        int question = lastIndexOf('?', start, end);
+        int idStart = arrow < 0 ? start + 1 : nextChar(arrow + 1, end);
+        int idEnd = previousChar(question, start);
+        if (dash < 0 || idStart > idEnd) {
+            return null;
+        }
+        String[] tran = new String[Config.TRAN_DET_LEN];
+        tran[Config.TRAN_DESC] = pooledText(start + 1, dash);
+        tran[Config.TRAN_ROOM_ID] = pooledText(idStart, idEnd);
+        tran[Config.TRAN_PROB] = pooledText(question + 1, end);
+        return tran;
+    }
+
+    /**
+     * Parses a ": desc -> id" line, with the same bounds as parseStory.
+     *
+     * @return The transition, or null if parseStory could not have parsed it.
+     */
+    private String[] normalTransition(int start, int end) {
+        if (hasSupplementary(start, end)) {
+            return stringTransition(start, end);
+        }
+        int dash = indexOf('-', start, end);
+        int arrow = indexOf('>', start, end);
+        int descStart = nextChar(start + 1, end);
+        int descEnd = dash < 0 ? -1 : previousChar(dash, start);
+        int idStart = arrow < 0 ? start + 1 : nextChar(arrow + 1, end);
+        if (descEnd < 0 || descStart > descEnd || idStart > end) {
+            return null;
+        }
+        String[] tran = new String[Config.TRAN_DET_LEN];
+        tran[Config.TRAN_DESC] = pooledText(descStart, descEnd);
+        tran[Config.TRAN_ROOM_ID] = pooledText(idStart, end);
+        return tran;
+    }
+
+    /**
+     * Parses a transition line exactly as parseStory does, on the decoded line. Used for lines
+     * with characters outside the Basic Multilingual Plane: they are two chars in a String, and
+     * parseStory may cut them in half where it skips one char around the delimiters, which the
+     * byte positions of weightedTransition and normalTransition cannot do.
+     *
+     * @return The transition, or null if parseStory could not have parsed it.
+     */
+    private String[] stringTransition(int start, int end) {
+        String text = text(start, end);
+        String[] tran = new String[Config.TRAN_DET_LEN];
+        try {
+            if (text.contains("?")) {
+                tran[Config.TRAN_DESC] =
+                    text.substring(text.indexOf(':') + 1, text.indexOf('-')).trim();
+                tran[Config.TRAN_ROOM_ID] =
+                    text.substring(text.indexOf('>') + 2, text.lastIndexOf('?') - 1).trim();
+                tran[Config.TRAN_PROB] = text.substring(text.lastIndexOf('?') + 1).trim();
+            } else {
+                tran[Config.TRAN_DESC] =
+                    text.substring(text.indexOf(':') + 2, text.indexOf('-') - 1).trim();
+                tran[Config.TRAN_ROOM_ID] = text.substring(text.indexOf('>') + 2).trim();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        return tran;
+    }
+
+    /**
+     * @return true if the line from start to end - 1 has a 4 byte UTF-8 sequence.
+     */
+    private boolean hasSupplementary(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if ((line[i] & 0xf8) == 0xf0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position after the character starting at pos, stepping over a whole UTF-8
+     * sequence, so that the positions match String character positions.
+     */
+    private int nextChar(int pos, int end) {
+        if (pos >= end) {
+            return pos + 1;
+        }
+        pos++;
+        while (pos < end && (line[pos] & 0xc0) == 0x80) { // continuation bytes
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the position of the character before pos.
+     */
+    private int previousChar(int pos, int start) {
+        pos--;
+        while (pos > start && (line[pos] & 0xc0) == 0x80) {
+            pos--;
+        }
+        return pos;
+    }
+
+    private boolean startsWithEnd(int start, int end) {
+        return end - start >= 3 && line[start] == ';' && line[start + 1] == ';'
+            && line[start + 2] == ';';
+    }
+
+    private boolean equalsBytes(byte[] value, int start, int end) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (line[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the trimmed text of the line from start to end - 1, the same as trimmedText, but
+     * returns the String decoded earlier from the same bytes if there is one, so that the room ids
+     * and transition fields repeated in a story are decoded and kept only once.
+     */
+    private String pooledText(int start, int end) {
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (!pool || end - start > POOL_MAX_BYTES) {
+            return text(start, end);
+        }
+        if (poolStrings == null) {
+            poolStrings = new String[64];
+            poolHashes = new int[64];
+        }
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line[i];
+        }
+        if (pooled * 2 >= poolStrings.length) { // keeps the table at most half full
+            growPool();
+        }
+        int mask = poolStrings.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (poolStrings[slot] != null) { // open addressing, probing the next slots
+            if (poolHashes[slot] == hash && sameText(poolStrings[slot], start, end)) {
+                poolSaved += 40 + poolStrings[slot].length();
+                return poolStrings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String value = text(start, end);
+        poolStrings[slot] = value;
+        poolHashes[slot] = hash;
+        pooled++;
+        return value;
+    }
+
+    /**
+     * Doubles the size of the pool of pooledText.
+     */
+    private void growPool() {
+        String[] strings = poolStrings;
+        int[] hashes = poolHashes;
+        poolStrings = new String[strings.length * 2];
+        poolHashes = new int[strings.length * 2];
+        int mask = poolStrings.length - 1;
+        for (int i = 0; i < strings.length; i++) {
+            if (strings[i] != null) {
+                int slot = (hashes[i] ^ (hashes[i] >>> 16)) & mask;
+                while (poolStrings[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                poolStrings[slot] = strings[i];
+                poolHashes[slot] = hashes[i];
+            }
+        }
+    }
+
+    /**
+     * Returns true if value is the decoded text of the line from start to end - 1. A String
+     * with as many characters as bytes is only equal to ASCII text, which is compared without
+     * decoding it.
+     */
+    private boolean sameText(String value, int start, int end) {
+        if (value.length() != end - start) {
+            return value.equals(text(start, end));
+        }
+        for (int i = start; i < end; i++) {
+            if (line[i] != value.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String trimmedText(int start, int end) {
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return text(start, end);
+    }
+
+    /**
+     * Appends the decoded bytes of the line from start to end - 1, without an intermediate String
+     * when they are all ASCII.
+     */
+    private void appendText(StringBuilder out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] < 0) { // not ASCII
+                out.append(text(i, end));
+                return;
+            }
+            out.append((char) line[i]);
+        }
+    }
+
+    /**
+     * @return The description built so far, trimmed.
+     */
+    private String trimmedDesc() {
+        int start = 0;
+        int end = desc.length();
+        while (start < end && desc.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && desc.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return desc.substring(start, end);
+    }
+}
@@ -0,0 +1,279 @@
+// Title: AdventureStory
+// Files: StorySimulator.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Plays a story many times without a player, to find out how often it is completed or failed and
+ * how many moves that takes.
+ *
+ * Each playthrough, or walk, starts in the start room and moves until it reaches a terminal room
+ * or transition, or gives up after maxTurns moves. Weighted rooms move the same way as in the game
+ * (see StoryGraph.pick), and in the other rooms every transition is chosen with equal probability,
+ * as a player choosing at random would. A walk that reaches a room id that is not in the story, or
+ * a room without transitions, is unfinished.
+ *
+ * The walks are split into blocks of BLOCK_WALKS walks that run in parallel on the common
+ * ForkJoinPool. Every block has its own Random, seeded from Config.SEED and the number of the
+ * block, so the results only depend on the story, the number of walks and maxTurns, and not on
+ * the number of cores or the order in which the blocks run.
+ *
+ * Usage: java StorySimulator storyFile [walks] [maxTurns]
+ */
+public class StorySimulator {
+
+    /**
+     * Walks per block, and per Random
+     */
+    public static final int BLOCK_WALKS = 1 << 14;
+
+    /**
+     * Defaults of the command line arguments
+     */
+    public static final long DEFAULT_WALKS = 1_000_000;
+    public static final int DEFAULT_MAX_TURNS = 1000;
+
+    /**
+     * The outcome of a number of walks.
+     */
+    public static class Result {
+        private long success; // walks that completed the adventure
+        private long fail; // walks that failed the adventure
+        private long unfinished; // walks that gave up or went nowhere
+        private final long[] lengths; // lengths[n] is the number of finished walks of n moves
+        private long nanos; // time taken by simulate
+
+        Result(int maxTurns) {
+            lengths = new long[maxTurns + 1];
+        }
+
+        /**
+         * Adds the counts of another result to this one.
+         */
+        Result merge(Result other) {
+            success += other.success;
+            fail += other.fail;
+            unfinished += other.unfinished;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            return this;
+        }
+
+        /**
+         * @return The number of walks.
+         */
+        public long walks() {
+            return success + fail + unfinished;
+        }
+
+        /**
+         * @return The number of walks that ended in Config.SUCCESS.
+         */
+        public long successes() {
+            return success;
+        }
+
+        /**
+         * @return The number of walks that ended in Config.FAIL.
+         */
+        public long failures() {
+            return fail;
+        }
+
+        /**
+         * @return The number of walks that did not reach a terminal room.
+         */
+        public long unfinished() {
+            return unfinished;
+        }
+
+        /**
+         * @param moves A number of moves, at most maxTurns.
+         * @return The number of finished walks that took exactly that many moves.
+         */
+        public long finishedIn(int moves) {
+            return lengths[moves];
+        }
+
+        /**
+         * @return The number of walks simulated per second.
+         */
+        public double walksPerSecond() {
+            return nanos == 0 ? 0 : walks() * 1e9 / nanos;
+        }
+
+        /**
+         * Returns a report of the ratios of the outcomes, a histogram of the number of moves of the
+         * finished walks, doubling in width from one line to the next, and the throughput.
+         */
+        @Override
+        public String toString() {
+            String newLine = System.lineSeparator();
+            StringBuilder report = new StringBuilder();
+            long walks = walks();
+            report.append("Walks: ").append(walks).append(newLine);
+            report.append(String.format("Success: %d (%.4f)%n", success, ratio(success, walks)));
+            report.append(String.format("Fail: %d (%.4f)%n", fail, ratio(fail, walks)));
+            report.append(String.format("Unfinished: %d (%.4f)%n", unfinished,
+                ratio(unfinished, walks)));
+            report.append("Moves of the finished walks:").append(newLine);
+            long finished = success + fail;
+            for (int low = 0; low < lengths.length; low = low == 0 ? 1 : 2 * low) { // 0, 1, 2-3..
+                int high = Math.min(low == 0 ? 0 : 2 * low - 1, lengths.length - 1);
+                long count = 0;
+                for (int i = low; i <= high; i++) {
+                    count += lengths[i];
+                }
+                if (count == 0) {
+                    continue;
+                }
+                String range = low == high ? Integer.toString(low) : low + "-" + high;
+                report.append(String.format("%11s %10d ", range, count));
+                int bar = (int) Math.round(50.0 * count / finished);
+                for (int i = 0; i < bar; i++) {
+                    report.append('#');
+                }
+                report.append(newLine);
+            }
+            report.append(String.format("%.0f walks/s%n", walksPerSecond()));
+            return report.toString();
+        }
+
+        private static double ratio(long count, long walks) {
+            return walks == 0 ? 0 : (double) count / walks;
+        }
+    }
+
+    /**
+     * Simulates a story file and outputs the report.
+     *
+     * @param args The story or bookmark file, and optionally the number of walks and maxTurns.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java StorySimulator storyFile [walks] [maxTurns]");
+            return;
+        }
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.loadLazy(args[0], curRoom);
+        if (graph == null) {
+            return;
+        }
+        long walks = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_WALKS;
+        int maxTurns = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_TURNS;
+        System.out.print(simulate(graph, curRoom[0], walks, maxTurns));
+    }
+
+    /**
+     * Simulates walks through a story in parallel.
+     *
+     * @param graph The story.
+     * @param startRoom The id of the room every walk starts in.
+     * @param walks The number of walks.
+     * @param maxTurns The number of moves after which a walk is unfinished.
+     * @return The outcome of the walks.
+     */
+    public static Result simulate(StoryGraph graph, String startRoom, long walks, int maxTurns) {
+        long begin = System.nanoTime();
+        int start = graph.indexOf(startRoom);
+        int blocks = (int) ((walks + BLOCK_WALKS - 1) / BLOCK_WALKS);
+        Result result = IntStream.range(0, blocks).parallel()
+            .mapToObj(block -> walkBlock(graph, start, block,
+                Math.min(BLOCK_WALKS, walks - (long) block * BLOCK_WALKS), maxTurns))
+            .reduce(Result::merge).orElseGet(() -> new Result(maxTurns));
+        result.nanos = System.nanoTime() - begin;
+        return result;
+    }
+
+    /**
+     * Runs the walks of one block with the Random of the block.
+     */
+    private static Result walkBlock(StoryGraph graph, int start, int block, long walks,
+        int maxTurns) {
+        Random rand = new Random(seed(block));
+        Result result = new Result(maxTurns);
+        for (long i = 0; i < walks; i++) {
+            walk(graph, start, rand, maxTurns, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the seed of the Random of a block: Config.SEED, mixed with the block number so that
+     * neighbouring blocks do not draw related numbers.
+     */
+    static long seed(int block) {
+        long z = Config.SEED + (block + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Walks once from the start room and counts the outcome in result.
+     */
+    private static void walk(StoryGraph graph, int room, Random rand, int maxTurns, Result result) {
+        if (room < 0) {
+            result.unfinished++;
+            return;
+        }
+        for (int moves = 0; ; moves++) {
+            if (graph.isTerminal(room)) {
+                end(graph.target(graph.firstTransition(room)), moves, result);
+                return;
+            }
+            int count = graph.transitionCount(room);
+            if (moves == maxTurns || count == 0) {
+                result.unfinished++;
+                return;
+            }
+            int tran = graph.pick(room, rand);
+            if (tran < 0) { // a player's choice
+                tran = graph.firstTransition(room) + rand.nextInt(count);
+            }
+            int target = target(graph, tran);
+            if (target < 0) {
+                end(target, moves + 1, result);
+                return;
+            }
+            room = target;
+        }
+    }
+
+    /**
+     * Returns the destination of a transition, the same as StoryGraph.target except that a
+     * transition to the room id Config.SUCCESS or Config.FAIL ends the story like a terminal room.
+     */
+    static int target(StoryGraph graph, int tran) {
+        int target = graph.target(tran);
+        if (target == StoryGraph.TARGET_MISSING) {
+            String id = graph.targetId(tran);
+            if (Config.SUCCESS.equals(id)) {
+                return StoryGraph.TARGET_SUCCESS;
+            } else if (Config.FAIL.equals(id)) {
+                return StoryGraph.TARGET_FAIL;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Counts a walk that ended with a terminal target.
+     */
+    private static void end(int target, int moves, Result result) {
+        if (target == StoryGraph.TARGET_SUCCESS) {
+            result.success++;
+        } else if (target == StoryGraph.TARGET_FAIL) {
+            result.fail++;
+        } else {
+            result.unfinished++;
+            return;
+        }
+        result.lengths[Math.min(moves, result.lengths.length - 1)]++;
+    }
+}
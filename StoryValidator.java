@@ -0,0 +1,243 @@
+// Title: AdventureStory
+// Files: StoryValidator.java
+//
+// Author: Jules Vigy
+// Email: jules.vigy@aol.com
+
+import java.util.ArrayList;
+
+/**
+ * Finds the mistakes in a story that parseStory accepts but that break or spoil the game:
+ *
+ * Kind        | Description
+ * ------------------------------------------------------------------------------------------
+ * DANGLING    | A transition leads to a room id that is not in the story
+ * UNREACHABLE | A room cannot be reached from the start room
+ * NO_EXIT     | A room has no transitions at all
+ * DEAD_END    | A room from which no terminal room can be reached, so the story never ends
+ * BAD_WEIGHT  | A weight that is not a non-negative int, a room where only some of the
+ *             | transitions are weighted, or a weighted room whose weights add up to 0
+ *
+ * The checks run on a StoryGraph, in time linear in the number of rooms and transitions: one
+ * pass over the transitions, a breadth first search from the start room, and a breadth first
+ * search back from the terminal rooms over the reversed transitions.
+ *
+ * Usage: java StoryValidator storyFile...
+ *        Outputs every problem found and exits with status 1 if there were any, or if parsing a
+ *        file output "Error parsing file on line" messages, or 2 if a file could not be parsed,
+ *        so it can be used to check the stories of a repository.
+ */
+public class StoryValidator {
+
+    /**
+     * The kinds of problem found, see the class comment.
+     */
+    public enum Kind {
+        DANGLING, UNREACHABLE, NO_EXIT, DEAD_END, BAD_WEIGHT
+    }
+
+    /**
+     * A problem in one room.
+     */
+    public static class Problem {
+        public final Kind kind;
+        public final String roomId;
+        public final String message;
+
+        Problem(Kind kind, String roomId, String message) {
+            this.kind = kind;
+            this.roomId = roomId;
+            this.message = message;
+        }
+
+        /**
+         * @return "KIND room id: message".
+         */
+        @Override
+        public String toString() {
+            return kind + " room " + roomId + ": " + message;
+        }
+    }
+
+    /**
+     * Validates story files and outputs their problems, then exits with the status of
+     * validateFiles.
+     *
+     * @param args The story files.
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java StoryValidator storyFile...");
+            return;
+        }
+        System.exit(validateFiles(args));
+    }
+
+    /**
+     * Validates story files and outputs their problems, and the parse errors of each file along
+     * with the summary line of the file.
+     *
+     * @param fNames The story files.
+     * @return 2 if a file could not be parsed, otherwise 1 if a file had problems or parse
+     *         errors, otherwise 0.
+     */
+    static int validateFiles(String... fNames) {
+        int status = 0;
+        for (String fName : fNames) {
+            long errors = Metrics.PARSE_ERRORS.sum();
+            StoryGraph graph = StoryGraph.loadLazy(fName, new String[1]);
+            errors = Metrics.PARSE_ERRORS.sum() - errors;
+            if (graph == null) {
+                System.out.println(fName + ": unable to parse the story");
+                status = 2;
+                continue;
+            }
+            ArrayList<Problem> problems = validate(graph);
+            for (Problem problem : problems) {
+                System.out.println(fName + ": " + problem);
+            }
+            System.out.println(fName + ": " + graph.roomCount() + " rooms, " + problems.size()
+                + " problems" + (errors == 0 ? "" : ", " + errors + " parse errors"));
+            if ((!problems.isEmpty() || errors > 0) && status == 0) {
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Returns the problems of a story, in room order for each kind.
+     *
+     * @param graph The story. Room 0 is the start room.
+     * @return The problems found, empty if there are none.
+     */
+    public static ArrayList<Problem> validate(StoryGraph graph) {
+        ArrayList<Problem> problems = new ArrayList<Problem>();
+        int rooms = graph.roomCount();
+        int[] inOffset = new int[rooms + 1]; // transitions into each room, see reverse
+        for (int r = 0; r < rooms; r++) {
+            int first = graph.firstTransition(r);
+            int end = graph.endTransition(r);
+            if (first == end) {
+                problems.add(new Problem(Kind.NO_EXIT, graph.roomId(r), "no transitions"));
+            }
+            int weights = 0;
+            for (int t = first; t < end; t++) {
+                int target = graph.target(t);
+                if (target >= 0) {
+                    inOffset[target + 1]++;
+                } else if (target == StoryGraph.TARGET_MISSING
+                    && StorySimulator.target(graph, t) == StoryGraph.TARGET_MISSING) {
+                    problems.add(new Problem(Kind.DANGLING, graph.roomId(r), "transition "
+                        + (t - first) + " leads to missing room " + graph.targetId(t)));
+                }
+                if (graph.weight(t) == StoryGraph.BAD_WEIGHT) {
+                    problems.add(new Problem(Kind.BAD_WEIGHT, graph.roomId(r), "transition "
+                        + (t - first) + " has a weight that is not a non-negative int"));
+                }
+                if (graph.weight(t) != StoryGraph.NO_WEIGHT) {
+                    weights++;
+                }
+            }
+            if (weights > 0 && weights < end - first && !graph.isTerminal(r)) {
+                problems.add(new Problem(Kind.BAD_WEIGHT, graph.roomId(r), "only " + weights
+                    + " of " + (end - first) + " transitions are weighted"));
+            } else if (weights > 0 && graph.totalWeight(r) == 0 && !badWeight(graph, r)) {
+                problems.add(new Problem(Kind.BAD_WEIGHT, graph.roomId(r), "weights add up to 0"));
+            }
+        }
+        if (rooms == 0) {
+            return problems;
+        }
+
+        int[] queue = new int[rooms];
+        boolean[] reached = new boolean[rooms];
+        reached[0] = true;
+        queue[0] = 0;
+        int tail = 1;
+        for (int head = 0; head < tail; head++) { // forwards from the start room
+            int room = queue[head];
+            if (graph.isTerminal(room)) { // the game ends here
+                continue;
+            }
+            for (int t = graph.firstTransition(room); t < graph.endTransition(room); t++) {
+                int target = graph.target(t);
+                if (target >= 0 && !reached[target]) {
+                    reached[target] = true;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        for (int r = 0; r < rooms; r++) {
+            if (!reached[r]) {
+                problems.add(new Problem(Kind.UNREACHABLE, graph.roomId(r),
+                    "cannot be reached from room " + graph.roomId(0)));
+            }
+        }
+
+        for (int r = 0; r < rooms; r++) {
+            inOffset[r + 1] += inOffset[r];
+        }
+        int[] inRoom = reverse(graph, inOffset);
+        boolean[] ends = new boolean[rooms];
+        tail = 0;
+        for (int r = 0; r < rooms; r++) {
+            boolean terminal = graph.isTerminal(r);
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r) && !terminal; t++) {
+                int target = StorySimulator.target(graph, t);
+                terminal = target == StoryGraph.TARGET_SUCCESS || target == StoryGraph.TARGET_FAIL;
+            }
+            if (terminal) {
+                ends[r] = true;
+                queue[tail++] = r;
+            }
+        }
+        for (int head = 0; head < tail; head++) { // backwards from the terminal rooms
+            int room = queue[head];
+            for (int i = inOffset[room]; i < inOffset[room + 1]; i++) {
+                int from = inRoom[i];
+                if (!ends[from]) {
+                    ends[from] = true;
+                    queue[tail++] = from;
+                }
+            }
+        }
+        for (int r = 0; r < rooms; r++) {
+            if (!ends[r] && graph.transitionCount(r) > 0) { // rooms with no exit are NO_EXIT
+                problems.add(new Problem(Kind.DEAD_END, graph.roomId(r),
+                    "no terminal room can be reached"));
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Returns the rooms each transition into a room comes from, grouped by the room they lead to,
+     * the room r's being from inOffset[r] to inOffset[r + 1] - 1.
+     */
+    private static int[] reverse(StoryGraph graph, int[] inOffset) {
+        int[] inRoom = new int[inOffset[graph.roomCount()]];
+        int[] fill = inOffset.clone();
+        for (int r = 0; r < graph.roomCount(); r++) {
+            for (int t = graph.firstTransition(r); t < graph.endTransition(r); t++) {
+                int target = graph.target(t);
+                if (target >= 0) {
+                    inRoom[fill[target]++] = r;
+                }
+            }
+        }
+        return inRoom;
+    }
+
+    /**
+     * Returns true if a transition of a room has a BAD_WEIGHT, which is reported already.
+     */
+    private static boolean badWeight(StoryGraph graph, int room) {
+        for (int t = graph.firstTransition(room); t < graph.endTransition(room); t++) {
+            if (graph.weight(t) == StoryGraph.BAD_WEIGHT) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,13 +1,39 @@
 // Title: AdventureStory
-// Files: AdventureStory.java, TestAdventureStory.java
+// Files: AdventureStory.java, BatchPlayer.java, BookmarkResume.java, BookmarkStore.java,
+//        Config.java, FrameCache.java, InputReader.java, LazyDescriptions.java, Metrics.java,
+//        Renderer.java, RoomIndex.java, Session.java, SessionConfig.java, SessionJournal.java,
+//        SessionScheduler.java, StoryAnalyzer.java, StoryBenchmark.java, StoryCache.java,
+//        StoryCompiler.java, StoryDeduplicator.java, StoryGenerator.java, StoryGraph.java,
+//        StoryHandle.java, StoryParser.java, StorySimulator.java, StoryValidator.java,
+//        TestAdventureStory.java
 //
 // Author: Jules Vigy
 // Email: jules.vigy@aol.com
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Scanner;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class TestAdventureStory {
 
@@ -23,12 +49,37 @@ public class TestAdventureStory {
         testPromptString();
         testGetRoomIndex();
         testGetRoomDetails();
+        testPrintString();
 
         // Milestone 2 Tests
         testParseStory();
+        testStoryParser();
+        testParallelStoryParser();
 
         // Milestone 3 Tests
         testprobsTran();
+        testTranscript();
+
+        // Compiled story tests
+        testStoryGraph();
+        testStoryCompiler();
+        testStoryCache();
+        testBookmarkResume();
+        testSession();
+        testStorySimulator();
+        testStoryAnalyzer();
+        testStoryGenerator();
+        testStoryValidator();
+        testMetrics();
+        testLazyDescriptions();
+        testStoryDeduplicator();
+        testStoryHandle();
+        testBatchPlayer();
+        testInputReader();
+        testBookmarkStore();
+        testSessionJournal();
+        testSessionConfig();
+        testFrameCache();
     }
 
     /**
@@ -123,6 +174,87 @@ public class TestAdventureStory {
             }
         }
 
+        { // the index must follow rooms added after the first lookup
+            ArrayList<String[]> in =
+                new ArrayList<>(Arrays.asList(new String[][] {{"id1", "", ""}, {"id2", "", ""}}));
+            AdventureStory.getRoomIndex("id1", in);
+            in.add(new String[] {"id3", "", ""});
+            int expected = 2;
+            int result = AdventureStory.getRoomIndex(new String("id3"), in);
+            if (expected != result) {
+                System.out
+                    .println("2) testGetRoomIndex expected: " + expected + " result: " + result);
+                error = true;
+            }
+        }
+
+        { // lookups alternating between two stories use the index of each
+            ArrayList<String[]> first =
+                new ArrayList<>(Arrays.asList(new String[][] {{"id1", "", ""}, {"id2", "", ""}}));
+            ArrayList<String[]> second =
+                new ArrayList<>(Arrays.asList(new String[][] {{"id2", "", ""}, {"id1", "", ""}}));
+            String result = "";
+            for (int i = 0; i < 3; i++) {
+                result += AdventureStory.getRoomIndex("id1", first) + " "
+                    + AdventureStory.getRoomIndex("id1", second) + " ";
+            }
+            if (!result.equals("0 1 0 1 0 1 ")) {
+                System.out.println("3) testGetRoomIndex expected: 0 1 0 1 0 1 result: " + result);
+                error = true;
+            }
+        }
+
+        { // rooms replaced in place, which keeps the size of the list
+            ArrayList<String[]> in = new ArrayList<>(Arrays.asList(
+                new String[][] {{"id1", "", ""}, {"id2", "", ""}, {"id3", "", ""}}));
+            AdventureStory.getRoomIndex("id1", in);
+            in.set(1, new String[] {"id4", "", ""});
+            String result = AdventureStory.getRoomIndex("id4", in) + " "
+                + AdventureStory.getRoomIndex("id2", in) + " ";
+            in.set(0, new String[] {"id5", "", ""});
+            result += AdventureStory.getRoomIndex("id1", in) + " "
+                + AdventureStory.getRoomIndex("id5", in) + " ";
+            in.get(2)[Config.ROOM_ID] = "id6";
+            result += AdventureStory.getRoomIndex("id3", in) + " "
+                + AdventureStory.getRoomIndex("id6", in) + " "
+                + Arrays.toString(AdventureStory.getRoomDetails("id4", in));
+            String expected = "1 -1 -1 0 -1 2 [id4, , ]";
+            if (!result.equals(expected)) {
+                System.out.println("4) testGetRoomIndex expected: " + expected + " result: "
+                    + result);
+                error = true;
+            }
+        }
+
+        { // a missing room is only searched for once until the index is rebuilt
+            int[] reads = new int[1];
+            ArrayList<String[]> in = new ArrayList<String[]>() {
+                @Override
+                public String[] get(int index) {
+                    reads[0]++;
+                    return super.get(index);
+                }
+            };
+            for (int i = 0; i < 1000; i++) {
+                in.add(new String[] {"id" + i, "", ""});
+            }
+            String result = AdventureStory.getRoomIndex("none", in) + " ";
+            int searched = reads[0];
+            for (int i = 0; i < 100; i++) {
+                AdventureStory.getRoomIndex("none", in);
+            }
+            result += AdventureStory.getRoomIndex("none", in) + " " + (reads[0] - searched) + " ";
+            in.get(5)[Config.ROOM_ID] = "none";
+            RoomIndex.rebuild(in);
+            result += AdventureStory.getRoomIndex("none", in);
+            String expected = "-1 -1 0 5";
+            if (!result.equals(expected)) {
+                System.out.println("5) testGetRoomIndex expected: " + expected + " result: "
+                    + result);
+                error = true;
+            }
+        }
+
         if (error) {
             System.out.println("testGetRoomIndex failed");
         } else {
@@ -156,6 +288,32 @@ public class TestAdventureStory {
         }
     }
 
+    /**
+     * This runs some tests on the printString method.
+     */
+    private static void testPrintString() {
+        boolean error = false;
+
+        { // covers each of the wrapping rules
+            String nl = System.lineSeparator();
+            String expected = "abc def-" + nl + "g h, ij-" + nl + "kl, mn " + nl + "op qrst-" + nl
+                + "uvw xyz" + nl + "  a" + nl + nl + "b  c";
+            String result = captureOutput(() -> AdventureStory.printString(8, "abc defg h, "
+                + "ijkl, mn op qrstuvw xyz   a\n\nb  c"));
+            if (!expected.equals(result)) {
+                System.out.println("1) testPrintString expected: " + expected + " result: "
+                    + result);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testPrintString failed");
+        } else {
+            System.out.println("testPrintString passed");
+        }
+    }
+
     /**
      * This runs some test on ParseStory
      */
@@ -281,6 +439,216 @@ public class TestAdventureStory {
         }
     }
 
+    /**
+     * This parses random stories with StoryParser and with parseStory reading them through a
+     * Scanner, and compares the rooms, transitions, start rooms, results and error messages.
+     */
+    private static void testStoryParser() {
+        boolean error = false;
+        Random rand = new Random(5);
+
+        for (int i = 0; i < 20000 && !error; i++) {
+            String story = randomStory(rand);
+            String expected = parsedWithScanner(story);
+            String result = parsedWithStoryParser(story, null);
+            if (!expected.equals(result)) {
+                System.out.println("1) testStoryParser story: " + escaped(story) + " expected: "
+                    + expected + " result: " + result);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryParser failed");
+        } else {
+            System.out.println("testStoryParser passed");
+        }
+    }
+
+    /**
+     * This parses stories of several chunks both in parallel and sequentially with StoryParser, and
+     * compares the results, including the error messages of the later chunks and a chunk that
+     * cannot be parsed.
+     */
+    private static void testParallelStoryParser() {
+        boolean error = false;
+        int rooms = 30000; // about 4 MB, at least 3 chunks of StoryParser.MIN_CHUNK_BYTES
+
+        { // error messages in every chunk
+            String story = chunkedStory(rooms, -1);
+            String expected = parsedWithStoryParser(story, false);
+            String result = parsedWithStoryParser(story, true);
+            int messages = expected.split("Error parsing file on line: ", -1).length - 1;
+            if (!expected.equals(result) || !expected.startsWith("true 1 ")
+                || messages != rooms / 997) {
+                System.out.println("1) testParallelStoryParser expected " + rooms / 997
+                    + " messages and the same results, result: " + messages + " messages, same "
+                    + expected.equals(result));
+                error = true;
+            }
+        }
+
+        { // a later chunk stops the parse, and the messages after it are not output
+            String story = chunkedStory(rooms, rooms * 3 / 4);
+            String expected = parsedWithStoryParser(story, false);
+            String result = parsedWithStoryParser(story, true);
+            int messages = expected.split("Error parsing file on line: ", -1).length - 1;
+            if (!expected.equals(result) || !expected.startsWith("false null ")
+                || messages != rooms * 3 / 4 / 997) {
+                System.out.println("2) testParallelStoryParser expected " + rooms * 3 / 4 / 997
+                    + " messages and the same results, result: " + messages + " messages, same "
+                    + expected.equals(result));
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testParallelStoryParser failed");
+        } else {
+            System.out.println("testParallelStoryParser passed");
+        }
+    }
+
+    /**
+     * @param rooms The number of rooms before the last room.
+     * @param badRoom The room whose room line has no ':', or -1.
+     * @return A story with mixed line terminators, multi-byte characters, comments and a line
+     *         that is not a transition every 997 rooms.
+     */
+    private static String chunkedStory(int rooms, int badRoom) {
+        String[] ends = {"\n", "\r\n", "\r"};
+        StringBuilder story = new StringBuilder("#!STORY\n# a story of many chunks\n");
+        for (int i = 1; i <= rooms; i++) {
+            String end = ends[i % ends.length];
+            story.append("R").append(i).append(i == badRoom ? " has no colon" : ": Room caf\u00e9")
+                .append(end).append("Room ").append(i).append(", \u4e2d\u6587 \ud83d\ude00.")
+                .append(end).append(end).append("A second paragraph.").append(end).append(";;;")
+                .append(end).append(": Go on -> ").append(i + 1).append(end).append(": Stay -> ")
+                .append(i).append(" ? 1").append(end);
+            if (i % 997 == 0) {
+                story.append("not a transition ").append(i).append(end);
+            }
+            if (i % 1009 == 0) {
+                story.append("# a comment").append(end).append(end);
+            }
+        }
+        return story.append("R").append(rooms + 1).append(": The end\nEnd\n;;;\n=)\n").toString();
+    }
+
+    /**
+     * @return A random story file, mostly valid lines with some malformed ones, with random line
+     *         terminators, blank lines, comments and multi-byte characters.
+     */
+    private static String randomStory(Random rand) {
+        String[] words = {"R", "Room", "R2", ":", "-", "->", ">", "?", "#", ";;;", "=)", "=(",
+            "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "a", "zz", " ", "  ", "\t", "1", "50"};
+        String[] ids = {"1", "2", "3", " 4 ", "caf\u00e9", "", "\ud83d\ude00"};
+        String[] ends = {"\n", "\n", "\n", "\r\n", "\r\n", "\r", "\u0085", "\u2028", "\u2029"};
+        StringBuilder story = new StringBuilder("#!STORY");
+        int lines = rand.nextInt(30);
+        for (int i = 0; i < lines; i++) {
+            story.append(ends[rand.nextInt(ends.length)]);
+            if (rand.nextInt(4) == 0) {
+                story.append(rand.nextBoolean() ? " " : "\t ");
+            }
+            StringBuilder text = new StringBuilder();
+            for (int j = rand.nextInt(5); j > 0; j--) {
+                text.append(words[rand.nextInt(words.length)]).append(rand.nextBoolean() ? " " : "");
+            }
+            String id = ids[rand.nextInt(ids.length)];
+            switch (rand.nextInt(12)) {
+                case 0:
+                case 1:
+                    story.append("R").append(id).append(":").append(text);
+                    break;
+                case 2:
+                    story.append("R").append(text);
+                    break;
+                case 3:
+                    story.append(";;;").append(rand.nextInt(4) == 0 ? text : "");
+                    break;
+                case 4:
+                    story.append(": ").append(text).append(" -> ").append(id);
+                    break;
+                case 5:
+                    story.append(": ").append(text).append(" -> ").append(id).append(" ? ")
+                        .append(rand.nextInt(3) == 0 ? text : "" + rand.nextInt(100));
+                    break;
+                case 6:
+                    story.append(":").append(text);
+                    break;
+                case 7:
+                    story.append(rand.nextBoolean() ? Config.SUCCESS : Config.FAIL);
+                    break;
+                case 8:
+                    story.append("# ").append(text);
+                    break;
+                case 9:
+                    break; // a blank line
+                case 10:
+                    story.append(rand.nextInt(10) == 0 ? "  " : text); // rarely only whitespace
+                    break;
+                default:
+                    story.append(text);
+            }
+        }
+        if (rand.nextBoolean()) {
+            story.append(ends[rand.nextInt(ends.length)]);
+        }
+        return story.toString();
+    }
+
+    /**
+     * @return What AdventureStory.parseFile returned for a story read through a Scanner, with
+     *         the start room, rooms, transitions and output.
+     */
+    private static String parsedWithScanner(String story) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        boolean[] parsed = new boolean[1];
+        String output = captureOutput(() -> {
+            Scanner scan = new Scanner(story);
+            scan.nextLine(); // the magic number
+            try {
+                parsed[0] = AdventureStory.parseStory(scan, rooms, trans, curRoom);
+            } catch (RuntimeException e) { // parseFile returns false
+                parsed[0] = false;
+            }
+        });
+        return parsed[0] + " " + curRoom[0] + " " + Arrays.deepToString(rooms.toArray()) + " "
+            + toString2dArrayLists(trans) + " " + output;
+    }
+
+    /**
+     * @param parallel Whether to parse the story in chunks, or null to decide by its size.
+     * @return What StoryParser returned for a story, with the start room, rooms, transitions and
+     *         output, the same as parsedWithScanner.
+     */
+    private static String parsedWithStoryParser(String story, Boolean parallel) {
+        ArrayList<String[]> rooms = new ArrayList<String[]>();
+        ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+        String[] curRoom = new String[1];
+        boolean[] parsed = new boolean[1];
+        String output = captureOutput(() -> parsed[0] = StoryParser.parseStory(
+            ByteBuffer.wrap(story.getBytes(StandardCharsets.UTF_8)), parallel, rooms, trans,
+            curRoom));
+        return parsed[0] + " " + curRoom[0] + " " + Arrays.deepToString(rooms.toArray()) + " "
+            + toString2dArrayLists(trans) + " " + output;
+    }
+
+    /**
+     * @return The text with its line terminators and other control characters escaped.
+     */
+    private static String escaped(String text) {
+        StringBuilder out = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            out.append(c < ' ' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+                ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+        }
+        return out.toString();
+    }
+
     /**
      * This runs some test on probsTran
      */
@@ -313,6 +681,1721 @@ public class TestAdventureStory {
         }
     }
 
+    /**
+     * This plays a whole game through main and compares the output with a transcript recorded
+     * before the output was rendered into a buffer.
+     */
+    private static void testTranscript() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\n# golden\nR1: The Long Hall, where a title is long enough "
+                + "to be wrapped past the edge of the screen\nA description that wraps: "
+                + "supercalifragilisticexpialidocious words are hyphenated, commas, dots. and "
+                + "spaces   break lines.\nA second line.\n;;;\n: Walk on -> 2\n: Stay -> 1\n"
+                + "R2: Crossroads\nThe road forks.\n;;;\n: Left -> 3 ? 50\n: Right -> 3 ? 50\n"
+                + "R3: The End\nYou made it.\n;;;\n=)\n");
+            String line = "-".repeat(80) + "\n";
+            String hall = line
+                + "The Long Hall, where a title is long enough to be wrapped past the edge of the \n"
+                + "screen\n\n"
+                + "A description that wraps: supercalifragilisticexpialidocious words are hyphenat-\n"
+                + "ed, commas, dots. and spaces   break lines.\nA second line.\n" + line
+                + "0) Walk on\n1) Stay\n";
+            String expected = "Welcome to this choose your own adventure system!\n"
+                + "Please enter the story filename: " + hall + "Choose: Invalid value.\n"
+                + "Choose: " + hall + "Choose: " + line + "Crossroads\n\nThe road forks.\n" + line
+                + line + "The End\n\nYou made it.\n" + line
+                + "Congratulations! You successfully completed the adventure!\n"
+                + "Do you want to try again? Thank you for playing!\n";
+            expected = expected.replace("\n", System.lineSeparator());
+            for (boolean lazy : new boolean[] {false, true}) { // the same with lazy descriptions
+                InputStream in = System.in;
+                boolean lazyDescriptions = Config.LAZY_DESCRIPTIONS;
+                System.setIn(new ByteArrayInputStream((story.getPath() + "\n5\n1\n0\nn\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+                Config.LAZY_DESCRIPTIONS = lazy;
+                String result;
+                try {
+                    result = captureOutput(() -> AdventureStory.main(new String[0]));
+                } finally {
+                    System.setIn(in);
+                    Config.LAZY_DESCRIPTIONS = lazyDescriptions;
+                }
+                if (!expected.equals(result)) {
+                    System.out.println((lazy ? "2" : "1") + ") testTranscript expected: "
+                        + expected + " result: " + result);
+                    error = true;
+                }
+            }
+
+            { // the same game recorded in a journal, which replays to the same end
+                File journal = File.createTempFile("test", ".journal");
+                journal.deleteOnExit();
+                InputStream in = System.in;
+                System.setIn(new ByteArrayInputStream((story.getPath() + "\n5\n1\n0\nn\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+                Config.JOURNAL_FILE = journal.getPath();
+                String result;
+                try {
+                    result = captureOutput(() -> AdventureStory.main(new String[0]));
+                } finally {
+                    System.setIn(in);
+                    Config.JOURNAL_FILE = null;
+                }
+                SessionJournal.Replay replay = SessionJournal.replay(
+                    StoryGraph.load(story.getPath(), new String[1]),
+                    Files.readAllBytes(journal.toPath()));
+                if (!expected.equals(result) || !replay.same() || replay.turns() != 4
+                    || !Config.SUCCESS.equals(replay.result())) {
+                    System.out.println("3) testTranscript expected a journal of 4 turns, "
+                        + "result: " + replay);
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testTranscript: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testTranscript failed");
+        } else {
+            System.out.println("testTranscript passed");
+        }
+    }
+
+    /**
+     * This runs some tests on StoryGraph.compile
+     */
+    private static void testStoryGraph() {
+        boolean error = false;
+
+        { // targets are resolved to room indices and weights are parsed
+            Scanner testSc = new Scanner("R1: Room 1\nRoom 1 description\n;;;\n"
+                + ": Transition 1 -> 2 ? 3\n: Transition 2 -> 9 ? x\n"
+                + "R2: Room 2\nRoom 2 description\n;;;\n=(\n");
+            ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseStory(testSc, arrRooms, arrTrans, new String[1]);
+            StoryGraph graph = StoryGraph.compile(arrRooms, arrTrans);
+            int first = graph.firstTransition(0);
+            if (graph.roomCount() != 2 || graph.transitionCount(0) != 2
+                || graph.target(first) != 1 || graph.weight(first) != 3
+                || graph.target(first + 1) != StoryGraph.TARGET_MISSING
+                || graph.weight(first + 1) != StoryGraph.BAD_WEIGHT) {
+                System.out.println("1) testStoryGraph room 1 transitions not compiled");
+                error = true;
+            }
+            if (graph.isTerminal(0) || !graph.isTerminal(1)
+                || graph.target(graph.firstTransition(1)) != StoryGraph.TARGET_FAIL) {
+                System.out.println("2) testStoryGraph terminal room not compiled");
+                error = true;
+            }
+        }
+
+        { // weighted picks must match probTrans draw for draw
+            ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+            arrRooms.add(new String[] {"1", "Room 1", ""});
+            arrTrans.add(new ArrayList<String[]>());
+            int[] weights = {3, 0, 7, 1, 0, 12, 5};
+            for (int i = 0; i < weights.length; i++) {
+                arrTrans.get(0).add(new String[] {"T" + i, "" + i, "" + weights[i]});
+            }
+            StoryGraph graph = StoryGraph.compile(arrRooms, arrTrans);
+            Random expectedRand = new Random(Config.SEED);
+            Random resultRand = new Random(Config.SEED);
+            for (int i = 0; i < 1000; i++) {
+                String expected = AdventureStory.probTrans(expectedRand, arrTrans.get(0));
+                String result = AdventureStory.probTrans(resultRand, graph, "1");
+                if (!expected.equals(result)) {
+                    System.out.println("3) testStoryGraph draw " + i + " expected: " + expected
+                        + " result: " + result);
+                    error = true;
+                    break;
+                }
+            }
+        }
+
+        { // negative weights are summed as probTrans sums them
+            int[][] rooms = {{5, -2}, {-2, 5}, {3, -1, 4, -5, 2}, {2, -1, -1}};
+            for (int[] weights : rooms) {
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+                arrRooms.add(new String[] {"1", "Room 1", ""});
+                arrTrans.add(new ArrayList<String[]>());
+                for (int i = 0; i < weights.length; i++) {
+                    arrTrans.get(0).add(new String[] {"T" + i, "" + i, "" + weights[i]});
+                }
+                StoryGraph graph = StoryGraph.compile(arrRooms, arrTrans);
+                Random expectedRand = new Random(Config.SEED);
+                Random resultRand = new Random(Config.SEED);
+                int[] chosen = new int[weights.length];
+                for (int i = 0; i < 1000 && !error; i++) {
+                    String expected = AdventureStory.probTrans(expectedRand, arrTrans.get(0));
+                    String result = AdventureStory.probTrans(resultRand, graph, "1");
+                    if (!Objects.equals(expected, result)) {
+                        System.out.println("4) testStoryGraph " + Arrays.toString(weights)
+                            + " draw " + i + " expected: " + expected + " result: " + result);
+                        error = true;
+                    } else if (result != null) {
+                        chosen[Integer.parseInt(result)]++;
+                    }
+                }
+                for (int t = 0; t < weights.length && !error; t++) { // as StoryAnalyzer sees it
+                    if (graph.chances(0, t) == 0 && chosen[t] > 0) {
+                        System.out.println("4) testStoryGraph " + Arrays.toString(weights)
+                            + " transition " + t + " has no chances but was chosen");
+                        error = true;
+                    }
+                }
+            }
+        }
+
+        { // weights adding up to less than 0 cannot be drawn from, the player chooses
+            ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+            arrRooms.add(new String[] {"1", "Room 1", ""});
+            arrTrans.add(new ArrayList<String[]>());
+            arrTrans.get(0).add(new String[] {"T0", "0", "-3"});
+            arrTrans.get(0).add(new String[] {"T1", "1", "2"});
+            StoryGraph graph = StoryGraph.compile(arrRooms, arrTrans);
+            Random rand = new Random(Config.SEED);
+            if (graph.totalWeight(0) != 0
+                || AdventureStory.probTrans(rand, graph, "1") != null
+                || rand.nextInt() != new Random(Config.SEED).nextInt()) {
+                System.out.println("5) testStoryGraph expected the room not to be weighted");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryGraph failed");
+        } else {
+            System.out.println("testStoryGraph passed");
+        }
+    }
+
+    /**
+     * This runs some tests on StoryCompiler
+     */
+    private static void testStoryCompiler() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            File compiled = new File(StoryCompiler.compiledName(story.getPath()));
+            story.deleteOnExit();
+            compiled.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\n"
+                + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+
+            { // a compiled story loads the same rooms and transitions as the story file
+                ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+                AdventureStory.parseFile(story.getPath(), expRooms, expTrans, new String[1]);
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+                String[] curRoom = new String[1];
+                if (!StoryCompiler.compile(story.getPath(), compiled.getPath())
+                    || !AdventureStory.parseFile(compiled.getPath(), arrRooms, arrTrans, curRoom)
+                    || !compareArrayListsArrays(arrRooms, expRooms)
+                    || !compare2dArrayLists(arrTrans, expTrans) || !"1".equals(curRoom[0])) {
+                    System.out.println("1) testStoryCompiler compiled story differs: \n"
+                        + Arrays.deepToString(arrRooms.toArray()) + "\n"
+                        + toString2dArrayLists(arrTrans));
+                    error = true;
+                }
+            }
+
+            { // a changed story file is parsed instead of its stale compiled copy
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n=(\n");
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+                AdventureStory.parseFile(compiled.getPath(), arrRooms, arrTrans, new String[1]);
+                if (arrRooms.size() != 1) {
+                    System.out.println("2) testStoryCompiler stale compiled story was loaded");
+                    error = true;
+                }
+            }
+
+            { // an edit that keeps the size and the modification time is seen too
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\n"
+                    + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+                StoryCompiler.compile(story.getPath(), compiled.getPath());
+                long modified = story.lastModified();
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 changed one\n;;;\n: Go -> 2\n"
+                    + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+                story.setLastModified(modified);
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+                AdventureStory.parseFile(compiled.getPath(), arrRooms, arrTrans, new String[1]);
+                if (arrRooms.isEmpty() || !"Room 1 changed one".equals(arrRooms.get(0)[2])) {
+                    System.out.println("3) testStoryCompiler compiled story of an edit in place "
+                        + "was loaded");
+                    error = true;
+                }
+            }
+
+            { // a stale compiled story is counted as one parse
+                long parses = Metrics.PARSES.sum();
+                AdventureStory.parseFile(compiled.getPath(), new ArrayList<String[]>(),
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                if (Metrics.PARSES.sum() != parses + 1) {
+                    System.out.println("4) testStoryCompiler expected 1 parse, result: "
+                        + (Metrics.PARSES.sum() - parses));
+                    error = true;
+                }
+            }
+
+            { // a story with parse errors is not compiled, as they would not be output again
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\nbad\n"
+                    + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+                compiled.delete();
+                boolean[] compiledStory = new boolean[1];
+                String result = captureOutput(() -> compiledStory[0] =
+                    StoryCompiler.compile(story.getPath(), compiled.getPath()));
+                String expected = "Error parsing file on line: 5: bad" + System.lineSeparator()
+                    + "Parse errors in file: " + story.getPath() + System.lineSeparator();
+                if (compiledStory[0] || compiled.exists() || !expected.equals(result)) {
+                    System.out.println("5) testStoryCompiler expected: " + expected + " result: "
+                        + result);
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testStoryCompiler: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryCompiler failed");
+        } else {
+            System.out.println("testStoryCompiler passed");
+        }
+    }
+
+    /**
+     * This runs some tests on StoryCache
+     */
+    private static void testStoryCache() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n=)\n");
+
+            { // the second load of an unchanged story comes from the cache
+                ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                AdventureStory.parseFile(story.getPath(), expRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                long hits = StoryCache.hits();
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                AdventureStory.parseFile(story.getPath(), arrRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                if (StoryCache.hits() != hits + 1 || !compareArrayListsArrays(arrRooms, expRooms)) {
+                    System.out.println("1) testStoryCache expected a cache hit: "
+                        + StoryCache.stats());
+                    error = true;
+                }
+            }
+
+            { // an edited story is parsed again
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\n"
+                    + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                AdventureStory.parseFile(story.getPath(), arrRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                if (arrRooms.size() != 2) {
+                    System.out.println("2) testStoryCache returned a stale story");
+                    error = true;
+                }
+            }
+
+            { // an edit that keeps the size and the modification time is parsed again
+                long modified = story.lastModified();
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 3\n"
+                    + "R3: Room 3\nRoom 3 description\n;;;\n=)\n");
+                story.setLastModified(modified);
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                AdventureStory.parseFile(story.getPath(), arrRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                if (arrRooms.size() != 2 || !arrRooms.get(1)[0].equals("3")) {
+                    System.out.println("3) testStoryCache returned a story edited in place");
+                    error = true;
+                }
+            }
+
+            { // the rooms returned can be changed without changing the story cached
+                ArrayList<String[]> firstRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> firstTrans = new ArrayList<ArrayList<String[]>>();
+                AdventureStory.parseFile(story.getPath(), firstRooms, firstTrans, new String[1]);
+                firstRooms.get(0)[Config.ROOM_DESC] = "changed";
+                firstTrans.get(0).get(0)[Config.TRAN_ROOM_ID] = "changed";
+                firstTrans.get(0).add(new String[] {"Added", "1", null});
+                for (int i = 0; i < 2; i++) { // the room put in the cache, then one from a hit
+                    ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                    ArrayList<ArrayList<String[]>> arrTrans =
+                        new ArrayList<ArrayList<String[]>>();
+                    AdventureStory.parseFile(story.getPath(), arrRooms, arrTrans, new String[1]);
+                    if (!arrRooms.get(0)[Config.ROOM_DESC].equals("Room 1 description")
+                        || arrTrans.get(0).size() != 1
+                        || !arrTrans.get(0).get(0)[Config.TRAN_ROOM_ID].equals("3")) {
+                        System.out.println("4) testStoryCache returned a room changed by a "
+                            + "caller: " + toString2dArrayLists(arrTrans));
+                        error = true;
+                    }
+                    arrRooms.get(0)[Config.ROOM_DESC] = "changed";
+                    arrTrans.get(0).clear();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testStoryCache: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryCache failed");
+        } else {
+            System.out.println("testStoryCache passed");
+        }
+    }
+
+    /**
+     * This runs some tests on resuming an indexed bookmark with the BookmarkResume class.
+     */
+    private static void testBookmarkResume() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            File bookmark = File.createTempFile("test", ".bookmark.txt");
+            bookmark.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\n"
+                + "R2: Room 2\nRoom 2 description\n;;;\n: Back -> 1\n: Win -> =)\n");
+            ArrayList<String[]> expRooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> expTrans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseFile(story.getPath(), expRooms, expTrans, new String[1]);
+            AdventureStory.saveBookmark(story.getPath(), "2", bookmark.getPath());
+
+            { // the bookmarked room alone, then the whole story
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> arrTrans = new ArrayList<ArrayList<String[]>>();
+                String[] curRoom = new String[1];
+                BookmarkResume resume =
+                    BookmarkResume.start(bookmark.getPath(), arrRooms, arrTrans, curRoom);
+                if (resume == null || arrRooms.size() != 1 || !"2".equals(curRoom[0])
+                    || !compareArrayListsArrays(arrRooms,
+                        new ArrayList<String[]>(expRooms.subList(1, 2)))
+                    || arrTrans.get(0).size() != 2) {
+                    System.out.println("1) testBookmarkResume expected only room 2, result: "
+                        + toString2dArrayLists(arrTrans));
+                    error = true;
+                } else if (!resume.finish(arrRooms, arrTrans)
+                    || !compareArrayListsArrays(arrRooms, expRooms)
+                    || !compare2dArrayLists(arrTrans, expTrans)) {
+                    System.out.println("2) testBookmarkResume expected: "
+                        + toString2dArrayLists(expTrans) + " result: "
+                        + toString2dArrayLists(arrTrans));
+                    error = true;
+                }
+            }
+
+            { // an edited story is not resumed from the old index
+                writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n=)\n");
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                if (BookmarkResume.start(bookmark.getPath(), arrRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]) != null
+                    || !arrRooms.isEmpty()) {
+                    System.out.println("3) testBookmarkResume resumed a changed story");
+                    error = true;
+                }
+            }
+
+            { // a story that is not in the StoryCache is still indexed when it is loaded
+                StoryCache.clear();
+                StoryParser.parseLazily(story.getPath(), new ArrayList<String[]>(),
+                    new ArrayList<ArrayList<String[]>>(), new String[1],
+                    new LazyDescriptions[1]);
+                AdventureStory.saveBookmark(story.getPath(), "1", bookmark.getPath());
+                ArrayList<String[]> arrRooms = new ArrayList<String[]>();
+                String[] curRoom = new String[1];
+                if (BookmarkResume.start(bookmark.getPath(), arrRooms,
+                    new ArrayList<ArrayList<String[]>>(), curRoom) == null
+                    || !"1".equals(curRoom[0])) {
+                    System.out.println("4) testBookmarkResume expected an indexed bookmark");
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testBookmarkResume: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testBookmarkResume failed");
+        } else {
+            System.out.println("testBookmarkResume passed");
+        }
+    }
+
+    /**
+     * This runs some tests on playing one story in many concurrent Sessions.
+     */
+    private static void testSession() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\n"
+                + ": Stay -> 1\nR2: Room 2\nRoom 2 description\n;;;\n=)\n");
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            AdventureStory.parseFile(story.getPath(), rooms, trans, new String[1]);
+            StoryGraph graph = StoryGraph.compile(rooms, trans);
+            String expected = captureOutput(() -> AdventureStory.displayFrame("1", rooms, trans))
+                + "Choose: Invalid value.\nChoose: "
+                + captureOutput(() -> AdventureStory.displayFrame("1", rooms, trans)) + "Choose: "
+                + captureOutput(() -> AdventureStory.displayFrame("2", rooms, trans))
+                + "Congratulations! You successfully completed the adventure!\n";
+            expected = expected.replace("\n", System.lineSeparator());
+
+            { // every session plays the shared graph with its own input and output
+                int count = 200;
+                ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[count];
+                ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+                try (SessionScheduler scheduler = new SessionScheduler()) {
+                    for (int i = 0; i < count; i++) {
+                        outputs[i] = new ByteArrayOutputStream();
+                        results.add(scheduler.submit(new Session(graph, story.getPath(), "1",
+                            new InputReader("5\n1\n0\n"), new PrintStream(outputs[i]),
+                            new Random(Config.SEED))));
+                    }
+                }
+                for (int i = 0; i < count && !error; i++) {
+                    String result = results.get(i).get();
+                    if (!Config.SUCCESS.equals(result) || !expected.equals(outputs[i].toString())) {
+                        System.out.println("1) testSession session " + i + " expected: "
+                            + expected + " result: " + result + " " + outputs[i]);
+                        error = true;
+                    }
+                }
+            }
+
+            { // a session ends when its input does
+                Session session = new Session(graph, story.getPath(), "1", new InputReader("1\n"),
+                    new PrintStream(new ByteArrayOutputStream()), new Random(Config.SEED));
+                if (session.play() != null || !"1".equals(session.currentRoom())) {
+                    System.out.println("2) testSession expected no result in room 1, result: "
+                        + session.result() + " in room " + session.currentRoom());
+                    error = true;
+                }
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("testSession: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testSession failed");
+        } else {
+            System.out.println("testSession passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StorySimulator class.
+     */
+    private static void testStorySimulator() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            // succeeds with probability 1/3: 1/2 to room 2, then 1/2 to win or back to room 1
+            writeFile(story, "#!STORY\nR1: Start\nPick\n;;;\n: Left -> 2\n: Right -> 3\n"
+                + "R2: Coin\nFlip\n;;;\n: Heads -> 4 ? 1\n: Tails -> 1 ? 1\n"
+                + "R3: Lose\n;;;\n=(\nR4: Win\n;;;\n=)\n");
+            String[] curRoom = new String[1];
+            StoryGraph graph = StoryGraph.load(story.getPath(), curRoom);
+
+            {
+                StorySimulator.Result result =
+                    StorySimulator.simulate(graph, curRoom[0], 50000, 100);
+                double ratio = (double) result.successes() / result.walks();
+                if (result.walks() != 50000 || result.unfinished() != 0
+                    || Math.abs(ratio - 1.0 / 3) > 0.02 || result.finishedIn(1) == 0) {
+                    System.out.println("1) testStorySimulator expected a success ratio of 1/3: "
+                        + result);
+                    error = true;
+                }
+                StorySimulator.Result again =
+                    StorySimulator.simulate(graph, curRoom[0], 50000, 100);
+                if (again.successes() != result.successes()) { // the same seeds
+                    System.out.println("2) testStorySimulator expected " + result.successes()
+                        + " successes again, result: " + again.successes());
+                    error = true;
+                }
+            }
+
+            { // walks that never end give up
+                StorySimulator.Result result = StorySimulator.simulate(graph, "2", 1000, 0);
+                if (result.unfinished() != 1000) {
+                    System.out.println("3) testStorySimulator expected 1000 unfinished: " + result);
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testStorySimulator: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStorySimulator failed");
+        } else {
+            System.out.println("testStorySimulator passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StoryAnalyzer class.
+     */
+    private static void testStoryAnalyzer() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            // room 1 succeeds with probability 1/3 in 2 moves on average, room 5 never ends
+            writeFile(story, "#!STORY\nR1: Start\nPick\n;;;\n: Left -> 2\n: Right -> 3\n"
+                + "R2: Coin\nFlip\n;;;\n: Heads -> 4 ? 1\n: Tails -> 1 ? 1\n"
+                + "R3: Lose\n;;;\n=(\nR4: Win\n;;;\n=)\n"
+                + "R5: Lost\n;;;\n: Maybe -> 4\n: Nowhere -> 6\n");
+            StoryGraph graph = StoryGraph.load(story.getPath(), new String[1]);
+            StoryAnalyzer.Result result = StoryAnalyzer.analyze(graph, 1e-12);
+
+            {
+                double[] expected = {1.0 / 3, 2.0 / 3, 2};
+                double[] found = {result.success(0), result.fail(0), result.moves(0)};
+                for (int i = 0; i < expected.length; i++) {
+                    if (Math.abs(expected[i] - found[i]) > 1e-9) {
+                        System.out.println("1) testStoryAnalyzer expected: "
+                            + Arrays.toString(expected) + " result: " + Arrays.toString(found));
+                        error = true;
+                        break;
+                    }
+                }
+            }
+
+            { // half of the walks from room 5 leave the story
+                if (Math.abs(result.success(4) - 0.5) > 1e-9 || result.fail(4) != 0
+                    || result.moves(4) != Double.POSITIVE_INFINITY || result.moves(3) != 0) {
+                    System.out.println("2) testStoryAnalyzer expected 0.5 and Infinity, result: "
+                        + result);
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testStoryAnalyzer: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryAnalyzer failed");
+        } else {
+            System.out.println("testStoryAnalyzer passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StoryGenerator class.
+     */
+    private static void testStoryGenerator() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            StoryGenerator generator = new StoryGenerator(500).branching(4).weighted(0.5);
+            generator.write(story.getPath());
+
+            { // a valid story without parse errors or missing rooms
+                ArrayList<String[]> rooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+                String[] curRoom = new String[1];
+                StoryCache.clear();
+                String output = captureOutput(
+                    () -> AdventureStory.parseFile(story.getPath(), rooms, trans, curRoom));
+                StoryGraph graph = StoryGraph.compile(rooms, trans);
+                boolean missing = false;
+                for (int t = 0; t < graph.transitionCount(); t++) {
+                    missing |= graph.target(t) == StoryGraph.TARGET_MISSING;
+                }
+                if (rooms.size() != 500 || !"1".equals(curRoom[0]) || !output.isEmpty()
+                    || missing || !graph.isTerminal(499) || trans.get(0).size() != 4) {
+                    System.out.println("1) testStoryGenerator expected 500 valid rooms, result: "
+                        + rooms.size() + " rooms " + output);
+                    error = true;
+                }
+            }
+
+            { // the same story again
+                StringWriter again = new StringWriter();
+                generator.write(again);
+                String written =
+                    new String(Files.readAllBytes(story.toPath()), StandardCharsets.UTF_8);
+                if (!written.equals(again.toString())) {
+                    System.out.println("2) testStoryGenerator wrote a different story");
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testStoryGenerator: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryGenerator failed");
+        } else {
+            System.out.println("testStoryGenerator passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StoryValidator class.
+     */
+    private static void testStoryValidator() {
+        boolean error = false;
+
+        {
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            rooms.add(new String[] {"1", "Start", ""});
+            trans.add(new ArrayList<String[]>(Arrays.asList(new String[] {"Go", "2", null},
+                new String[] {"Lost", "9", null}, new String[] {"Loop", "3", null})));
+            rooms.add(new String[] {"2", "Win", ""});
+            trans.add(
+                new ArrayList<String[]>(Arrays.<String[]>asList(new String[] {"=)", null, null})));
+            rooms.add(new String[] {"3", "Loop", ""});
+            trans.add(
+                new ArrayList<String[]>(Arrays.<String[]>asList(new String[] {"Again", "3", "0"})));
+            rooms.add(new String[] {"4", "Alone", ""});
+            trans.add(new ArrayList<String[]>());
+            rooms.add(new String[] {"5", "Odd", ""});
+            trans.add(new ArrayList<String[]>(Arrays.asList(new String[] {"Go", "2", "x"},
+                new String[] {"Stay", "5", null})));
+            String expected = "[DANGLING room 1: transition 1 leads to missing room 9, "
+                + "BAD_WEIGHT room 3: weights add up to 0, NO_EXIT room 4: no transitions, "
+                + "BAD_WEIGHT room 5: transition 0 has a weight that is not a non-negative int, "
+                + "BAD_WEIGHT room 5: only 1 of 2 transitions are weighted, "
+                + "UNREACHABLE room 4: cannot be reached from room 1, "
+                + "UNREACHABLE room 5: cannot be reached from room 1, "
+                + "DEAD_END room 3: no terminal room can be reached]";
+            String result =
+                StoryValidator.validate(StoryGraph.compile(rooms, trans)).toString();
+            if (!expected.equals(result)) {
+                System.out.println("1) testStoryValidator expected: " + expected + " result: "
+                    + result);
+                error = true;
+            }
+        }
+
+        try { // parse errors fail the validation of a story without problems
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Room 1\nRoom 1 description\n;;;\n: Go -> 2\nbad\n"
+                + "R2: Room 2\nRoom 2 description\n;;;\n=)\n");
+            int[] status = new int[2];
+            String output = captureOutput(() -> {
+                status[0] = StoryValidator.validateFiles(story.getPath());
+                status[1] = StoryValidator.validateFiles(story.getPath()); // counted again
+            });
+            String expected = "Error parsing file on line: 5: bad" + System.lineSeparator()
+                + story.getPath() + ": 2 rooms, 0 problems, 1 parse errors"
+                + System.lineSeparator();
+            if (status[0] != 1 || status[1] != 1 || !output.equals(expected + expected)) {
+                System.out.println("2) testStoryValidator expected status 1 and: " + expected
+                    + " result: " + status[0] + " " + status[1] + " " + output);
+                error = true;
+            }
+        } catch (IOException e) {
+            System.out.println("testStoryValidator: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryValidator failed");
+        } else {
+            System.out.println("testStoryValidator passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the Metrics class.
+     */
+    private static void testMetrics() {
+        boolean error = false;
+
+        {
+            Metrics.Histogram histogram = new Metrics.Histogram();
+            for (int i = 1; i <= 1000; i++) {
+                histogram.record(i);
+            }
+            long[] expected = {1000, 511, 1000};
+            long[] result = {histogram.count(), histogram.percentile(50),
+                histogram.percentile(99)};
+            if (!Arrays.equals(expected, result)) {
+                System.out.println("1) testMetrics expected: " + Arrays.toString(expected)
+                    + " result: " + Arrays.toString(result));
+                error = true;
+            }
+        }
+
+        { // a parse of Goldilocks.story.txt, counted once
+            long parses = Metrics.PARSES.sum();
+            long rooms = Metrics.ROOMS_LOADED.sum();
+            AdventureStory.parseFile("Goldilocks.story.txt", new ArrayList<String[]>(),
+                new ArrayList<ArrayList<String[]>>(), new String[1]);
+            if (Metrics.PARSES.sum() != parses + 1 || Metrics.ROOMS_LOADED.sum() != rooms + 16
+                || !Metrics.snapshot().contains("parse latency: count ")) {
+                System.out.println("2) testMetrics expected 1 parse of 16 rooms: "
+                    + Metrics.snapshot());
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testMetrics failed");
+        } else {
+            System.out.println("testMetrics passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the LazyDescriptions class.
+     */
+    private static void testLazyDescriptions() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            Files.write(story.toPath(), ("#!STORY\r\nR1: Start\r\n  Caf\u00e9 au lait  \r\n\r\n"
+                + "# not a comment\r\n;;;\r\n: Go -> 2\r\nR2: Empty\n;;;\n: Back -> 1\n"
+                + "R3: Unended\nLast\n").getBytes(StandardCharsets.UTF_8));
+            File large = File.createTempFile("test", ".story.txt");
+            large.deleteOnExit();
+            new StoryGenerator(40_000).write(large.getPath()); // parsed in parallel
+
+            for (File file : new File[] {story, large}) { // the same as the descriptions parsed
+                StoryCache.clear();
+                StoryGraph eager = StoryGraph.load(file.getPath(), new String[1]);
+                StoryGraph lazy = StoryGraph.loadLazy(file.getPath(), new String[1]);
+                for (int r = 0; r < eager.roomCount() && !error; r++) {
+                    if (!Objects.equals(eager.roomDesc(r), lazy.roomDesc(r))) {
+                        System.out.println("1) testLazyDescriptions expected: "
+                            + eager.roomDesc(r) + " result: " + lazy.roomDesc(r));
+                        error = true;
+                    }
+                }
+                if (eager.roomCount() != lazy.roomCount() || eager.descriptions() != null) {
+                    System.out.println("1) testLazyDescriptions expected "
+                        + eager.roomCount() + " rooms, result: " + lazy.roomCount());
+                    error = true;
+                }
+            }
+
+            { // a room shown again comes from the cache
+                StoryGraph graph = StoryGraph.loadLazy(story.getPath(), new String[1]);
+                graph.roomDesc(0);
+                graph.roomDesc(1);
+                graph.roomDesc(0);
+                LazyDescriptions descriptions = graph.descriptions();
+                if (descriptions.hits() != 1 || descriptions.misses() != 2) {
+                    System.out.println("2) testLazyDescriptions expected 1 hit and 2 misses, "
+                        + "result: " + descriptions.hits() + " and " + descriptions.misses());
+                    error = true;
+                }
+            }
+
+            { // a frame is laid out with the description, which is not kept in the room
+                ArrayList<String[]> rooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+                LazyDescriptions[] lazy = new LazyDescriptions[1];
+                StoryParser.parseLazily(story.getPath(), rooms, trans, new String[1], lazy);
+                String result = rendered(new Renderer().frame(new FrameCache(1), 0, rooms.get(0),
+                    lazy[0], trans.get(0)));
+                String expected = rendered(new Renderer().room(rooms.get(0)[Config.ROOM_TITLE],
+                    lazy[0].get(0)).transitions(trans.get(0)));
+                if (!result.equals(expected) || rooms.get(0)[Config.ROOM_DESC] != null) {
+                    System.out.println("3) testLazyDescriptions expected: " + expected
+                        + " result: " + result);
+                    error = true;
+                }
+            }
+
+            { // a corrupt compiled story is an error for main, as without lazy descriptions
+                File compiled = File.createTempFile("test", ".bin");
+                compiled.deleteOnExit();
+                writeFile(compiled, Config.MAGIC_COMPILED + "\n\u0001");
+                String expected = null;
+                for (boolean lazy : new boolean[] {false, true}) {
+                    InputStream in = System.in;
+                    boolean lazyDescriptions = Config.LAZY_DESCRIPTIONS;
+                    System.setIn(new ByteArrayInputStream((compiled.getPath() + "\nn\n")
+                        .getBytes(StandardCharsets.UTF_8)));
+                    Config.LAZY_DESCRIPTIONS = lazy;
+                    String result;
+                    try {
+                        result = captureOutput(() -> AdventureStory.main(new String[0]));
+                    } catch (RuntimeException e) {
+                        result = e.toString();
+                    } finally {
+                        System.setIn(in);
+                        Config.LAZY_DESCRIPTIONS = lazyDescriptions;
+                    }
+                    if (expected == null) {
+                        expected = result;
+                    } else if (!result.equals(expected) || !result.contains("try again")) {
+                        System.out.println("4) testLazyDescriptions expected: " + expected
+                            + " result: " + result);
+                        error = true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testLazyDescriptions: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testLazyDescriptions failed");
+        } else {
+            System.out.println("testLazyDescriptions passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StoryDeduplicator class.
+     */
+    private static void testStoryDeduplicator() {
+        boolean error = false;
+        boolean deduplicate = Config.DEDUPLICATE;
+
+        { // rooms R3 to R5 of Goldilocks share their transitions, which print the same
+            ArrayList<ArrayList<String[]>> rooms = new ArrayList<ArrayList<String[]>>();
+            ArrayList<ArrayList<ArrayList<String[]>>> trans =
+                new ArrayList<ArrayList<ArrayList<String[]>>>();
+            for (int i = 0; i < 2; i++) {
+                Config.DEDUPLICATE = i == 1;
+                StoryCache.clear();
+                rooms.add(new ArrayList<String[]>());
+                trans.add(new ArrayList<ArrayList<String[]>>());
+                AdventureStory.parseFile("Goldilocks.story.txt", rooms.get(i), trans.get(i),
+                    new String[1]);
+            }
+            Config.DEDUPLICATE = deduplicate;
+            StoryCache.clear();
+            ArrayList<ArrayList<String[]>> shared = trans.get(1);
+            if (shared.get(2) != shared.get(4) || shared.get(5).get(0) != shared.get(2).get(3)
+                || shared.get(2).get(0) == trans.get(0).get(2).get(0)
+                || !shared.get(2).get(0)[Config.TRAN_ROOM_ID].equals("4")) {
+                System.out.println("1) testStoryDeduplicator expected R3 to R5 to share their "
+                    + "transitions");
+                error = true;
+            }
+            for (String[] room : rooms.get(0)) {
+                String id = room[Config.ROOM_ID];
+                String expected = captureOutput(
+                    () -> AdventureStory.displayTransitions(id, rooms.get(0), trans.get(0)));
+                String result = captureOutput(
+                    () -> AdventureStory.displayTransitions(id, rooms.get(1), shared));
+                if (!expected.equals(result)) {
+                    System.out.println("2) testStoryDeduplicator expected: " + expected
+                        + " result: " + result);
+                    error = true;
+                    break;
+                }
+            }
+        }
+
+        {
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            rooms.add(new String[] {new String("1"), "Start", ""});
+            trans.add(new ArrayList<String[]>(Arrays.asList(new String[] {"Go", "2", null},
+                new String[] {new String("Go"), new String("2"), null})));
+            rooms.add(new String[] {"2", "End", ""});
+            trans.add(new ArrayList<String[]>(
+                Arrays.<String[]>asList(new String[] {new String("Go"), new String("2"), null})));
+            rooms.add(new String[] {"3", "Again", ""});
+            trans.add(new ArrayList<String[]>(
+                Arrays.<String[]>asList(new String[] {new String("Go"), new String("2"), null})));
+            StoryDeduplicator.Report report = StoryDeduplicator.deduplicate(rooms, trans);
+            int[] expected = {6, 3, 1};
+            int[] result = {report.strings(), report.transitions(), report.lists()};
+            if (!Arrays.equals(expected, result) || trans.get(1) != trans.get(2)
+                || trans.get(0).get(1) != trans.get(1).get(0) || report.saved() <= 0) {
+                System.out.println("3) testStoryDeduplicator expected: "
+                    + Arrays.toString(expected) + " result: " + report);
+                error = true;
+            }
+        }
+
+        { // a story parsed in chunks shares its Strings across the chunks
+            ArrayList<String[]> rooms = new ArrayList<String[]>();
+            ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+            byte[] story = chunkedStory(30000, -1).getBytes(StandardCharsets.UTF_8);
+            Config.DEDUPLICATE = true;
+            try {
+                captureOutput(() -> StoryParser.parseStory(ByteBuffer.wrap(story), true, rooms,
+                    trans, new String[1]));
+            } finally {
+                Config.DEDUPLICATE = deduplicate;
+            }
+            String[] first = trans.get(0).get(0);
+            String[] last = trans.get(trans.size() - 2).get(0);
+            if (rooms.size() != 30001 || first[Config.TRAN_DESC] != last[Config.TRAN_DESC]
+                || trans.get(1).get(0)[Config.TRAN_ROOM_ID] != rooms.get(2)[Config.ROOM_ID]
+                || trans.get(29998).get(0)[Config.TRAN_ROOM_ID]
+                    != rooms.get(29999)[Config.ROOM_ID]) {
+                System.out.println("4) testStoryDeduplicator expected the Strings of the first "
+                    + "and last chunks to be shared");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testStoryDeduplicator failed");
+        } else {
+            System.out.println("testStoryDeduplicator passed");
+        }
+    }
+
+    /**
+     * This runs some tests on the StoryHandle class.
+     */
+    private static void testStoryHandle() {
+        boolean error = false;
+
+        try {
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\n# rooms\nR1: Start\nHello\n;;;\n: Go -> 2\n"
+                + "R2: Middle\nOld\n;;;\n: On -> 3\nR3: End\n;;;\n=)\n");
+            StoryHandle handle = StoryHandle.load(story.getPath());
+
+            { // only the edited room is parsed again
+                StoryGraph before = handle.graph();
+                writeFile(story, "#!STORY\n# rooms\nR1: Start\nHello\n;;;\n: Go -> 2\n"
+                    + "R2: Middle\nNew text\n;;;\n: On -> 3\nR3: End\n;;;\n=)\n");
+                story.setLastModified(story.lastModified() + 2000);
+                StoryGraph after = handle.reload() ? handle.graph() : null;
+                if (handle.reparsed() != 1 || after == before || !"Old".equals(before.roomDesc(1))
+                    || !"New text".equals(after.roomDesc(1)) || !"Hello".equals(after.roomDesc(0))
+                    || after.roomCount() != 3) {
+                    System.out.println("1) testStoryHandle expected 1 room parsed again, "
+                        + "result: " + handle.reparsed());
+                    error = true;
+                }
+            }
+
+            { // a room with more transitions, patched into the same graph as a full compile
+                writeFile(story, "#!STORY\n# rooms\nR1: Start\nHello\n;;;\n: Go -> 2\n"
+                    + "R2: Middle\nNew text\n;;;\n: On -> 3 ? 1\n: Back -> 1 ? 2\n"
+                    + "R3: End\n;;;\n=)\n");
+                story.setLastModified(story.lastModified() + 2000);
+                StoryCache.clear();
+                StoryGraph expected = StoryGraph.load(story.getPath(), new String[1]);
+                StoryGraph result = handle.reload() ? handle.graph() : null;
+                String expectedText = "";
+                String resultText = "";
+                for (int r = 0; r < expected.roomCount(); r++) {
+                    for (int t = expected.firstTransition(r); t < expected.endTransition(r); t++) {
+                        expectedText += r + ":" + expected.transitionDesc(t) + expected.target(t)
+                            + expected.weight(t) + expected.totalWeight(r) + " ";
+                    }
+                    for (int t = result.firstTransition(r); t < result.endTransition(r); t++) {
+                        resultText += r + ":" + result.transitionDesc(t) + result.target(t)
+                            + result.weight(t) + result.totalWeight(r) + " ";
+                    }
+                }
+                Random expectedRand = new Random(Config.SEED);
+                Random resultRand = new Random(Config.SEED);
+                for (int i = 0; i < 20; i++) {
+                    expectedText += expected.pick(1, expectedRand);
+                    resultText += result.pick(1, resultRand);
+                }
+                if (handle.reparsed() != 1 || !expectedText.equals(resultText)) {
+                    System.out.println("2) testStoryHandle expected: " + expectedText
+                        + " result: " + resultText);
+                    error = true;
+                }
+            }
+
+            { // a version that cannot be parsed is not loaded
+                StoryGraph before = handle.graph();
+                writeFile(story, "#!STORY\nR1: Start\n;;;\n  \n");
+                story.setLastModified(story.lastModified() + 2000);
+                if (handle.reload() || handle.graph() != before) {
+                    System.out.println("3) testStoryHandle expected the last version to be kept");
+                    error = true;
+                }
+            }
+
+            { // watched: a session in room 2 carries on in the edited story
+                handle.watch();
+                writeFile(story, "#!STORY\nR1: Start\nHello\n;;;\n: Go -> 2\n"
+                    + "R2: Middle\nOld\n;;;\n: Win -> 4\nR4: Won\n;;;\n=)\n");
+                story.setLastModified(story.lastModified() + 2000);
+                for (int i = 0; i < 200 && handle.graph().indexOf("4") < 0; i++) {
+                    Thread.sleep(50);
+                }
+                handle.close();
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                Session session = new Session(handle, story.getPath(), "2", new InputReader("0\n"),
+                    new PrintStream(output), new Random(Config.SEED));
+                if (!Config.SUCCESS.equals(session.play()) || !output.toString().contains("Won")) {
+                    System.out.println("4) testStoryHandle expected to win in room 4, result: "
+                        + output);
+                    error = true;
+                }
+            }
+
+            { // an edit that keeps the size and the modification time is reloaded
+                long modified = story.lastModified();
+                writeFile(story, "#!STORY\nR1: Start\nHello\n;;;\n: Go -> 2\n"
+                    + "R2: Middle\nOdd\n;;;\n: Win -> 4\nR4: Won\n;;;\n=)\n");
+                story.setLastModified(modified);
+                if (!handle.reload() || handle.reparsed() != 1
+                    || !"Odd".equals(handle.graph().roomDesc(1))) {
+                    System.out.println("5) testStoryHandle expected the edit to be reloaded");
+                    error = true;
+                }
+            }
+
+            { // load and reload accept the stories parseFile accepts, with the same rooms
+                Random rand = new Random(7);
+                for (int i = 0; i < 300 && !error; i++) {
+                    String text = randomStory(rand);
+                    writeFile(story, "#!STORY\nR1: Start\n;;;\n=)\n");
+                    StoryHandle reloaded = StoryHandle.load(story.getPath());
+                    writeFile(story, text);
+                    ArrayList<String[]> expRooms = new ArrayList<String[]>();
+                    StoryHandle[] loaded = new StoryHandle[1];
+                    boolean[] parsed = new boolean[2];
+                    captureOutput(() -> {
+                        StoryCache.clear();
+                        parsed[0] = AdventureStory.parseFile(story.getPath(), expRooms,
+                            new ArrayList<ArrayList<String[]>>(), new String[1]);
+                        StoryCache.clear();
+                        loaded[0] = StoryHandle.load(story.getPath());
+                        parsed[1] = reloaded.reload();
+                    });
+                    String expected = parsed[0] + " " + parsed[0] + " " + parsed[0];
+                    String result = parsed[0] + " " + (loaded[0] != null) + " " + parsed[1];
+                    for (int r = 0; parsed[0] && r < expRooms.size(); r++) {
+                        expected += " " + expRooms.get(r)[Config.ROOM_ID];
+                        result += " " + (loaded[0] == null ? null : loaded[0].graph().roomId(r))
+                            + "/" + reloaded.graph().roomId(r);
+                        expected += "/" + expRooms.get(r)[Config.ROOM_ID];
+                    }
+                    if (!expected.equals(result)) {
+                        System.out.println("6) testStoryHandle of: " + escaped(text)
+                            + " expected: " + expected + " result: " + result);
+                        error = true;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("testStoryHandle: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testStoryHandle failed");
+        } else {
+            System.out.println("testStoryHandle passed");
+        }
+    }
+
+    /**
+     * This runs some tests on BatchPlayer.
+     */
+    private static void testBatchPlayer() {
+        boolean error = false;
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.load("Goldilocks.story.txt", curRoom);
+
+        try {
+            { // a replayed script has the same transcript as an interactive game
+                File script = File.createTempFile("test", ".script.txt");
+                script.deleteOnExit();
+                writeFile(script, "0\n0\n");
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                new Session(graph, "Goldilocks.story.txt", curRoom[0], new InputReader("0\n0\n"),
+                    new PrintStream(expected), new Random(Config.SEED)).play();
+                ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+                List<String> scripts = Arrays.asList(script.getPath(), script.getPath());
+                BatchPlayer.Summary summary = BatchPlayer.replay(graph, "Goldilocks.story.txt",
+                    curRoom[0], scripts, transcript);
+                String header = "== " + script.getPath() + System.lineSeparator();
+                if (summary.games() != 2 || summary.unfinished() != 2 || summary.turns() != 6
+                    || !transcript.toString().equals(header + expected + header + expected)) {
+                    System.out.println("1) testBatchPlayer expected: " + header + expected
+                        + " result: " + summary + " " + transcript);
+                    error = true;
+                }
+            }
+
+            { // auto played games end and are the same for the same seed
+                ByteArrayOutputStream first = new ByteArrayOutputStream();
+                BatchPlayer.Summary summary = BatchPlayer.autoPlay(graph, "Goldilocks.story.txt",
+                    curRoom[0], 42, 300, 1000, first);
+                ByteArrayOutputStream second = new ByteArrayOutputStream();
+                BatchPlayer.autoPlay(graph, "Goldilocks.story.txt", curRoom[0], 42, 300, 1000,
+                    second);
+                if (summary.games() != 300 || summary.successes() + summary.failures() != 300
+                    || summary.turns() < 600 || !first.toString().equals(second.toString())
+                    || !first.toString().contains("== seed 341")) {
+                    System.out.println("2) testBatchPlayer expected 300 finished games, result: "
+                        + summary);
+                    error = true;
+                }
+            }
+
+            { // every game of a batch recorded in a journal that replays it
+                File dir = Files.createTempDirectory("test").toFile();
+                BatchPlayer.Summary summary = BatchPlayer.autoPlay(graph, "Goldilocks.story.txt",
+                    curRoom[0], 42, 20, 1000, new ByteArrayOutputStream(), dir.getPath());
+                int successes = 0;
+                boolean same = true;
+                for (int i = 0; i < 20; i++) {
+                    File journal = new File(dir, i + ".journal");
+                    SessionJournal.Replay replay =
+                        SessionJournal.replay(graph, Files.readAllBytes(journal.toPath()));
+                    same &= replay.same() && replay.result() != null;
+                    successes += Config.SUCCESS.equals(replay.result()) ? 1 : 0;
+                    journal.delete();
+                }
+                dir.delete();
+                if (!same || successes != summary.successes()) {
+                    System.out.println("3) testBatchPlayer expected the journals to replay the "
+                        + "games, result: " + successes + " " + summary);
+                    error = true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("testBatchPlayer: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testBatchPlayer failed");
+        } else {
+            System.out.println("testBatchPlayer passed");
+        }
+    }
+
+    /**
+     * This runs some tests on InputReader, comparing the prompts reading it with the prompts
+     * reading a Scanner of the same input.
+     */
+    private static void testInputReader() {
+        boolean error = false;
+        Random rand = new Random(Config.SEED);
+        String[] pieces = {"0", "1", "7", "42", "-", "+", ",", "a", " ", "\t", "\n", "\r",
+            "\r\n", "1,000", "99999999999", "-2147483648", "\u0663", "\u2028", "\u0085"};
+
+        for (int test = 1; test <= 300 && !error; test++) { // random input and prompts
+            StringBuilder text = new StringBuilder();
+            for (int i = rand.nextInt(30); i > 0; i--) {
+                text.append(pieces[rand.nextInt(pieces.length)]);
+            }
+            long seed = rand.nextLong();
+            String expected = promptAll(new Scanner(text.toString()), null, new Random(seed));
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            String result = promptAll(null, new InputReader(Channels.newChannel(
+                new ByteArrayInputStream(bytes)), StandardCharsets.UTF_8), new Random(seed));
+            if (!expected.equals(result)) {
+                System.out.println("1) testInputReader input: " + text + " expected: " + expected
+                    + " result: " + result);
+                error = true;
+            }
+        }
+
+        { // more input than the buffer, and a line longer than it
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                text.append(i % 7).append(i % 5 == 0 ? "\r\n" : "\n");
+            }
+            text.append("x".repeat(3 * InputReader.BUFFER_BYTES)).append('\n');
+            InputReader in = new InputReader(new ByteArrayInputStream(
+                text.toString().getBytes(StandardCharsets.UTF_8)));
+            PrintStream out = new PrintStream(new ByteArrayOutputStream());
+            long sum = 0;
+            for (int i = 0; i < 20000; i++) {
+                sum += AdventureStory.promptInt(in, out, "Choose: ", 0, 6);
+            }
+            String last = AdventureStory.promptString(in, out, "Enter: ");
+            if (sum != 59997 || last.length() != 3 * InputReader.BUFFER_BYTES
+                || in.hasNextLine()) {
+                System.out.println("2) testInputReader expected: 59997 result: " + sum);
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testInputReader failed");
+        } else {
+            System.out.println("testInputReader passed");
+        }
+    }
+
+    /**
+     * Prompts for random values from a Scanner or an InputReader until the input ends.
+     *
+     * @return The output of the prompts and the values returned.
+     */
+    private static String promptAll(Scanner sc, InputReader in, Random rand) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output);
+        try {
+            for (int i = 0; i < 40; i++) {
+                int kind = rand.nextInt(3);
+                if (kind == 0) {
+                    int min = rand.nextInt(5) - 2;
+                    int max = min + rand.nextInt(50);
+                    out.print("=" + (sc != null ? AdventureStory.promptInt(sc, out, "I", min, max)
+                        : AdventureStory.promptInt(in, out, "I", min, max)));
+                } else if (kind == 1) {
+                    out.print("=" + (int) (sc != null ? AdventureStory.promptChar(sc, out, "C")
+                        : AdventureStory.promptChar(in, out, "C")));
+                } else {
+                    out.print("=" + (sc != null ? AdventureStory.promptString(sc, out, "S")
+                        : AdventureStory.promptString(in, out, "S")));
+                }
+            }
+        } catch (NoSuchElementException e) {
+            out.print(" ended");
+        }
+        out.flush();
+        return output.toString();
+    }
+
+    /**
+     * This runs some tests on BookmarkStore.
+     */
+    private static void testBookmarkStore() {
+        boolean error = false;
+
+        try {
+            File log = File.createTempFile("test", ".bookmarks");
+            log.deleteOnExit();
+            File bookmark = File.createTempFile("test", ".bookmark.txt");
+            bookmark.deleteOnExit();
+
+            { // the same bookmark as a file, resumed the same way
+                BookmarkStore store = BookmarkStore.open(log.getPath());
+                store.save("ann", "kitchen", "Goldilocks.story.txt", "R3");
+                AdventureStory.saveBookmark("Goldilocks.story.txt", "R3", bookmark.getPath());
+                String expected = String.join("\n", Files.readAllLines(bookmark.toPath()));
+                String result = String.join("\n", store.get("ann", "kitchen"));
+                ArrayList<String[]> rooms = new ArrayList<String[]>();
+                ArrayList<ArrayList<String[]>> trans = new ArrayList<ArrayList<String[]>>();
+                String[] curRoom = new String[1];
+                ArrayList<String[]> fileRooms = new ArrayList<String[]>();
+                AdventureStory.parseFile(bookmark.getPath(), fileRooms,
+                    new ArrayList<ArrayList<String[]>>(), new String[1]);
+                if (!expected.equals(result) || !expected.contains("\n")
+                    || !store.resume("ann", "kitchen", rooms, trans, curRoom)
+                    || !"R3".equals(curRoom[0]) || rooms.size() != fileRooms.size()) {
+                    System.out.println("1) testBookmarkStore expected: " + expected + " result: "
+                        + result);
+                    error = true;
+                }
+                store.close();
+            }
+
+            { // saved from many threads, with forces shared, and read back after a crash
+                BookmarkStore store = BookmarkStore.open(log.getPath());
+                Thread[] threads = new Thread[8];
+                for (int i = 0; i < threads.length; i++) {
+                    String player = "player" + i;
+                    threads[i] = new Thread(() -> {
+                        for (int j = 0; j < 50; j++) {
+                            store.save(player, "b" + j % 10, "Goldilocks.story.txt", "R" + j);
+                        }
+                    });
+                    threads[i].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                store.remove("ann", "kitchen");
+                long syncs = store.syncs();
+                store.close();
+                Files.write(log.toPath(), new byte[] {0, 0, 0, 40, 1, 2}, // a record cut short
+                    StandardOpenOption.APPEND);
+                long size = log.length();
+                BookmarkStore reopened = BookmarkStore.open(log.getPath());
+                if (reopened.size() != 80 || reopened.get("ann", "kitchen") != null
+                    || !"R49".equals(reopened.get("player3", "b9")[2])
+                    || reopened.names("player0").size() != 10 || reopened.logSize() != size - 6
+                    || syncs > 401) {
+                    System.out.println("2) testBookmarkStore expected 80 bookmarks, result: "
+                        + reopened.size() + " " + syncs);
+                    error = true;
+                }
+
+                long before = reopened.logSize();
+                reopened.compact();
+                reopened.save("bob", "start", "Goldilocks.story.txt", "R1");
+                reopened.exportFile("player3", "b9", bookmark.getPath());
+                reopened.importFile("bob", "copy", bookmark.getPath());
+                reopened.close();
+                BookmarkStore compacted = BookmarkStore.open(log.getPath());
+                if (compacted.logSize() * 3 > before || compacted.size() != 82
+                    || !Arrays.equals(compacted.get("bob", "copy"),
+                        compacted.get("player3", "b9"))) {
+                    System.out.println("3) testBookmarkStore expected a smaller log, result: "
+                        + before + " " + compacted.logSize() + " " + compacted.size());
+                    error = true;
+                }
+                compacted.close();
+            }
+
+            { // a compaction that fails does not fail the save that ran it
+                BookmarkStore store = BookmarkStore.open(log.getPath());
+                File tmp = new File(log.getPath() + ".tmp");
+                tmp.mkdir(); // the new log cannot be written
+                char[] text = new char[400000];
+                Arrays.fill(text, 'x');
+                writeFile(bookmark, Config.MAGIC_BOOKMARK + "\nstory\n"
+                    + new String(text) + "\n");
+                boolean saved = true;
+                for (int i = 0; i < 4; i++) { // more than COMPACT_MIN_BYTES replaced
+                    saved &= store.importFile("cid", "big", bookmark.getPath());
+                }
+                long errors = store.compactionErrors();
+                long size = store.logSize();
+                tmp.delete();
+                saved &= store.save("cid", "small", "Goldilocks.story.txt", "R1");
+                if (!saved || errors == 0 || store.compactionErrors() != errors
+                    || store.logSize() >= size || store.get("cid", "big") == null) {
+                    System.out.println("4) testBookmarkStore expected the saves to succeed, "
+                        + "result: " + saved + " " + errors + " " + store.compactionErrors());
+                    error = true;
+                }
+                store.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("testBookmarkStore: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testBookmarkStore failed");
+        } else {
+            System.out.println("testBookmarkStore passed");
+        }
+    }
+
+    /**
+     * This runs some tests on SessionJournal.
+     */
+    private static void testSessionJournal() {
+        boolean error = false;
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.load("Goldilocks.story.txt", curRoom);
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+
+        { // a game played by hand replays to the same rooms
+            ByteArrayOutputStream journal = new ByteArrayOutputStream();
+            Session session = new Session(graph, "Goldilocks.story.txt", curRoom[0],
+                new InputReader("0\nabc\n3\n-1\nn\n0\n0\n-1\ny\n"), out,
+                new Random(Config.SEED)).journalTo(new SessionJournal(journal,
+                    "Goldilocks.story.txt", graph, graph.indexOf(curRoom[0]), Config.SEED));
+            String result = session.play();
+            SessionJournal.Replay replay = SessionJournal.replay(graph, journal.toByteArray());
+            if (!replay.same() || replay.turns() != session.turns()
+                || !Objects.equals(result, replay.result())
+                || !graph.roomId(replay.room()).equals(session.currentRoom())) {
+                System.out.println("1) testSessionJournal expected " + session.turns()
+                    + " turns, result: " + replay);
+                error = true;
+            }
+
+            byte[] changed = journal.toByteArray(); // the last choice made differently
+            changed[changed.length - 3]++;
+            if (SessionJournal.replay(graph, changed).same()) {
+                System.out.println("2) testSessionJournal expected a changed journal to differ");
+                error = true;
+            }
+        }
+
+        try { // with weighted rooms, whose draws are checked against the seed
+            File story = File.createTempFile("test", ".story.txt");
+            story.deleteOnExit();
+            writeFile(story, "#!STORY\nR1: Start\n;;;\n: Left -> 2 ? 1\n: Right -> 3 ? 2\n"
+                + "R2: Two\n;;;\n: Back -> 1\n: Win -> 4\nR3: Three\n;;;\n: Back -> 1\n"
+                + ": Lose -> 5\nR4: Won\n;;;\n=)\nR5: Lost\n;;;\n=(\n");
+            StoryGraph weighted = StoryGraph.load(story.getPath(), new String[1]);
+            int wrongSeeds = 0;
+            for (long seed = 0; seed < 200 && !error; seed++) {
+                ByteArrayOutputStream journal = new ByteArrayOutputStream();
+                ByteArrayOutputStream wrong = new ByteArrayOutputStream();
+                SessionJournal both = new SessionJournal(journal, story.getPath(), weighted, 0,
+                    seed);
+                Session session = new Session(weighted, story.getPath(), "1",
+                    new InputReader(""), out, new Random(seed)).autoChoose(new Random(~seed), 1000)
+                    .journalTo(both);
+                String result = session.play();
+                SessionJournal.Replay replay = SessionJournal.replay(weighted,
+                    journal.toByteArray());
+                if (!replay.same() || !Objects.equals(result, replay.result())
+                    || replay.turns() != session.turns()) {
+                    System.out.println("3) testSessionJournal seed " + seed + " result: "
+                        + replay);
+                    error = true;
+                }
+                new Session(weighted, story.getPath(), "1", new InputReader(""), out,
+                    new Random(seed)).autoChoose(new Random(~seed), 1000).journalTo(
+                        new SessionJournal(wrong, story.getPath(), weighted, 0, seed + 1)).play();
+                if (!SessionJournal.replay(weighted, wrong.toByteArray()).same()) {
+                    wrongSeeds++;
+                }
+            }
+            if (wrongSeeds < 100) {
+                System.out.println("4) testSessionJournal expected the wrong seeds to differ, "
+                    + "result: " + wrongSeeds);
+                error = true;
+            }
+        } catch (IOException e) {
+            System.out.println("testSessionJournal: " + e);
+            error = true;
+        }
+
+        if (error) {
+            System.out.println("testSessionJournal failed");
+        } else {
+            System.out.println("testSessionJournal passed");
+        }
+    }
+
+    /**
+     * This runs some tests on SessionConfig.
+     */
+    private static void testSessionConfig() {
+        boolean error = false;
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.load("Goldilocks.story.txt", curRoom);
+
+        { // copies with one setting changed
+            SessionConfig config = SessionConfig.defaults();
+            SessionConfig narrow = config.withDisplayWidth(40).withLineChar('=');
+            boolean thrown = false;
+            try {
+                config.withDisplayWidth(1);
+            } catch (IllegalArgumentException e) {
+                thrown = true;
+            }
+            if (config.displayWidth() != Config.DISPLAY_WIDTH || config.lineChar() != Config.LINE_CHAR
+                || config.seed() != Config.SEED || narrow.displayWidth() != 40
+                || narrow.lineChar() != '=' || narrow.seed() != Config.SEED || !thrown
+                || !config.equals(SessionConfig.defaults()) || config.equals(narrow)) {
+                System.out.println("1) testSessionConfig expected: " + config + " result: "
+                    + narrow);
+                error = true;
+            }
+        }
+
+        { // sessions with different settings at the same time, and the defaults as before
+            SessionConfig[] configs = {SessionConfig.defaults(),
+                SessionConfig.defaults().withDisplayWidth(40).withLineChar('='),
+                SessionConfig.defaults().withDisplayWidth(120)};
+            ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[configs.length];
+            try (SessionScheduler scheduler = new SessionScheduler()) {
+                ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+                for (int i = 0; i < configs.length; i++) {
+                    outputs[i] = new ByteArrayOutputStream();
+                    results.add(scheduler.submit(new Session(StoryHandle.of(graph),
+                        "Goldilocks.story.txt", curRoom[0], new InputReader("0\n3\n"),
+                        new PrintStream(outputs[i]), configs[i])));
+                }
+                for (Future<String> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("testSessionConfig: " + e);
+                error = true;
+            }
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            new Session(graph, "Goldilocks.story.txt", curRoom[0], new InputReader("0\n3\n"),
+                new PrintStream(expected), new Random(Config.SEED)).play();
+            String[] firstLines = new String[configs.length];
+            for (int i = 0; i < configs.length; i++) {
+                firstLines[i] = outputs[i].toString().split(System.lineSeparator())[0];
+            }
+            if (!expected.toString().equals(outputs[0].toString())
+                || !firstLines[1].equals("=".repeat(40)) || !firstLines[2].equals("-".repeat(120))
+                || outputs[1].toString().lines().takeWhile(line -> !line.startsWith("0)"))
+                    .anyMatch(line -> line.length() > 40)) {
+                System.out.println("2) testSessionConfig expected lines of 80, 40 and 120, result: "
+                    + Arrays.toString(firstLines));
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testSessionConfig failed");
+        } else {
+            System.out.println("testSessionConfig passed");
+        }
+    }
+
+    /**
+     * This runs some tests on FrameCache and Renderer.frame.
+     */
+    private static void testFrameCache() {
+        boolean error = false;
+        String[] curRoom = new String[1];
+        StoryGraph graph = StoryGraph.load("Goldilocks.story.txt", curRoom);
+
+        { // the same frames as room and transitions, laid out once per room and width
+            String laidOut = "";
+            String frames = "";
+            for (int pass = 0; pass < 2; pass++) {
+                for (int room = 0; room < graph.roomCount(); room++) {
+                    laidOut += rendered(new Renderer()
+                        .room(graph.roomTitle(room), graph.roomDesc(room)).transitions(graph, room));
+                    frames += rendered(new Renderer().frame(graph, room));
+                }
+            }
+            String narrow = rendered(new Renderer(SessionConfig.defaults().withDisplayWidth(40))
+                .frame(graph, 0));
+            FrameCache cache = graph.frames();
+            if (!laidOut.equals(frames) || narrow.equals(frames.substring(0, narrow.length()))
+                || cache.misses() != graph.roomCount() + 1 || cache.hits() != graph.roomCount()
+                || cache.size() != graph.roomCount() + 1) {
+                System.out.println("1) testFrameCache expected " + graph.roomCount()
+                    + " hits and the same frames, result: " + cache.hits() + " hits, "
+                    + cache.misses() + " misses, same frames " + laidOut.equals(frames));
+                error = true;
+            }
+        }
+
+        { // the least recently shown frame is evicted
+            FrameCache cache = new FrameCache(2);
+            cache.put(0, 80, '-', null, null, "zero");
+            cache.put(1, 80, '-', null, null, "one");
+            cache.get(0, 80, '-', null, null);
+            cache.put(2, 80, '-', null, null, "two");
+            if (cache.size() != 2 || cache.get(1, 80, '-', null, null) != null
+                || !"zero".equals(cache.get(0, 80, '-', null, null))
+                || !"two".equals(cache.get(2, 80, '-', null, null))
+                || cache.get(0, 81, '-', null, null) != null || cache.get(0, 80, '=', null, null) != null) {
+                System.out.println("2) testFrameCache expected frames 0 and 2, result: "
+                    + cache.get(0, 80, '-', null, null) + " " + cache.get(2, 80, '-', null, null));
+                error = true;
+            }
+        }
+
+        { // a frame of another room array at the same index is a miss
+            FrameCache cache = new FrameCache(FrameCache.DEFAULT_FRAMES);
+            String[] room = {"1", "Room", "Description"};
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[] {"Go", "2", null});
+            String first = rendered(new Renderer().frame(cache, 0, room, curTrans));
+            String again = rendered(new Renderer().frame(cache, 0, room, curTrans));
+            String[] other = {"1", "Other room", "Description"};
+            String changed = rendered(new Renderer().frame(cache, 0, other, curTrans));
+            String expected = rendered(new Renderer().room(other).transitions(curTrans));
+            if (!first.equals(again) || !changed.equals(expected) || cache.hits() != 1
+                || cache.misses() != 2) {
+                System.out.println("3) testFrameCache expected 1 hit and 2 misses, result: "
+                    + cache.hits() + " hits, " + cache.misses() + " misses");
+                error = true;
+            }
+        }
+
+        { // a frame of the same room array with other transitions is a miss
+            FrameCache cache = new FrameCache(FrameCache.DEFAULT_FRAMES);
+            String[] room = {"1", "Room", "Description"};
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[] {"Go", "2", null});
+            rendered(new Renderer().frame(cache, 0, room, curTrans));
+            ArrayList<String[]> otherTrans = new ArrayList<String[]>();
+            otherTrans.add(new String[] {"Stay", "1", null});
+            String changed = rendered(new Renderer().frame(cache, 0, room, otherTrans));
+            String expected = rendered(new Renderer().room(room).transitions(otherTrans));
+            if (!changed.equals(expected) || cache.hits() != 0 || cache.misses() != 2) {
+                System.out.println("4) testFrameCache expected: " + expected + " result: "
+                    + changed);
+                error = true;
+            }
+        }
+
+        { // the cache does not keep the rooms and transitions of its frames in memory
+            FrameCache cache = new FrameCache(FrameCache.DEFAULT_FRAMES);
+            String[] room = {"1", "Room", "Description"};
+            ArrayList<String[]> curTrans = new ArrayList<String[]>();
+            curTrans.add(new String[] {"Go", "2", null});
+            rendered(new Renderer().frame(cache, 0, room, curTrans));
+            WeakReference<String[]> roomRef = new WeakReference<String[]>(room);
+            WeakReference<ArrayList<String[]>> transRef =
+                new WeakReference<ArrayList<String[]>>(curTrans);
+            room = null;
+            curTrans = null;
+            for (int i = 0; i < 50 && (roomRef.get() != null || transRef.get() != null); i++) {
+                System.gc();
+            }
+            if (roomRef.get() != null || transRef.get() != null || cache.size() != 1) {
+                System.out.println("5) testFrameCache expected the room to be collected");
+                error = true;
+            }
+        }
+
+        if (error) {
+            System.out.println("testFrameCache failed");
+        } else {
+            System.out.println("testFrameCache passed");
+        }
+    }
+
+    /**
+     * @return What the renderer has appended since its last flush, flushing it.
+     */
+    private static String rendered(Renderer renderer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.flush(new PrintStream(out));
+        return out.toString();
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.print(contents);
+        out.close();
+    }
+
+    private static String captureOutput(Runnable print) {
+        PrintStream original = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured));
+        try {
+            print.run();
+        } finally {
+            System.setOut(original);
+        }
+        return captured.toString();
+    }
+
     private static String toString2dArrayLists(ArrayList<ArrayList<String[]>> arrL1) {
         String toRet = "[\n";
         for (int i = 0; i < arrL1.size(); ++i) {
@@ -0,0 +1,2 @@
+javac StoryBenchmark.java
+java StoryBenchmark | tee bench_output.txt